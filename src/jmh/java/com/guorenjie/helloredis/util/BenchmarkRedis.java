@@ -0,0 +1,77 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.config.RedisConfig;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+
+/**
+ * @Description 基准测试用的进程内redis，以及连到它上面的RedisUtil
+ * 设置-Dbenchmark.redis.port时连接已有的redis，不再启动进程内redis
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+final class BenchmarkRedis {
+
+    private final RedisServer server;
+    private final LettuceConnectionFactory factory;
+    private final RedisUtil redisUtil;
+
+    BenchmarkRedis(HelloRedisProperties.SerializerType serializerType) {
+        String configuredPort = System.getProperty("benchmark.redis.port");
+        int port;
+        if (configuredPort == null) {
+            port = freePort();
+            server = RedisServer.builder().port(port).setting("maxmemory 256M").build();
+            server.start();
+        } else {
+            port = Integer.parseInt(configuredPort);
+            server = null;
+        }
+        factory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("localhost", port));
+        factory.afterPropertiesSet();
+
+        HelloRedisProperties properties = new HelloRedisProperties();
+        properties.setSerializer(serializerType);
+        RedisConfig config = new RedisConfig();
+        RedisSerializer<Object> serializer = config.redisValueSerializer(properties);
+        RedisTemplate<String, Object> template;
+        try {
+            template = config.redisTemplate(factory, serializer);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        redisUtil = new RedisUtil();
+        redisUtil.redisTemplate = template;
+        redisUtil.properties = properties;
+        redisUtil.luaScripts = new LuaScriptRegistry();
+        redisUtil.luaScripts.redisTemplate = template;
+    }
+
+    RedisUtil redisUtil() {
+        return redisUtil;
+    }
+
+    void close() {
+        factory.destroy();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.entity.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description RedisUtil常用操作基准测试，对比逐条发送和管道批量发送
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisUtilBenchmark {
+
+    private static final int KEY_COUNT = 1000;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"JSON", "COMPACT"})
+    public HelloRedisProperties.SerializerType serializer;
+
+    private BenchmarkRedis redis;
+    private RedisUtil redisUtil;
+    private List<String> mgetKeys;
+    private User user;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        redis = new BenchmarkRedis(serializer);
+        redisUtil = redis.redisUtil();
+        user = new User();
+        user.setId("5");
+        user.setName("杨瑞");
+        user.setAge(30);
+        user.setEmail("yangrui@example.com");
+        for (int i = 0; i < KEY_COUNT; i++) {
+            redisUtil.set(key(i), user);
+            redisUtil.zAdd("bench:zset", i, "member:" + i);
+        }
+        redisUtil.hSet("bench:hash", "name", user.getName());
+        mgetKeys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            mgetKeys.add(key(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        redis.close();
+    }
+
+    @Benchmark
+    public Object get() {
+        return redisUtil.get(key(nextIndex()));
+    }
+
+    @Benchmark
+    public void set() {
+        redisUtil.set(key(nextIndex()), user);
+    }
+
+    @Benchmark
+    public List<Object> mget() {
+        return redisUtil.mget(mgetKeys);
+    }
+
+    @Benchmark
+    public Object hGet() {
+        return redisUtil.hGet("bench:hash", "name");
+    }
+
+    @Benchmark
+    public void hSet() {
+        redisUtil.hSet("bench:hash", "age", nextIndex());
+    }
+
+    @Benchmark
+    public Boolean zAdd() {
+        int index = nextIndex();
+        return redisUtil.zAdd("bench:zset", index, "member:" + index);
+    }
+
+    @Benchmark
+    public Set<Object> zRange() {
+        return redisUtil.zRange("bench:zset", 0, 9);
+    }
+
+    /**
+     * 逐条发送BATCH_SIZE次set，每条一个往返
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void setOneByOne() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            redisUtil.set(key(nextIndex()), user, 60, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 同样BATCH_SIZE次set走一次管道
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Object> setPipelined() {
+        RedisBatch batch = redisUtil.batch();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.set(key(nextIndex()), user, 60, TimeUnit.SECONDS);
+        }
+        return batch.execute();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) % KEY_COUNT;
+        return next;
+    }
+
+    private static String key(int i) {
+        return "bench:user:" + i;
+    }
+}
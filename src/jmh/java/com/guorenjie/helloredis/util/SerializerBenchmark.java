@@ -0,0 +1,71 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.config.RedisConfig;
+import com.guorenjie.helloredis.entity.User;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description value序列化基准测试，对比jackson json和紧凑二进制在不同大小User上的编解码速度
+ * 编码后的字节数记录在encodedBytes辅助计数里，一起输出到结果文件
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Param({"JSON", "COMPACT"})
+    public HelloRedisProperties.SerializerType serializer;
+
+    /**
+     * name/email字段的长度
+     */
+    @Param({"8", "256", "4096"})
+    public int fieldLength;
+
+    private RedisSerializer<Object> redisSerializer;
+    private User user;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        HelloRedisProperties properties = new HelloRedisProperties();
+        properties.setSerializer(serializer);
+        redisSerializer = new RedisConfig().redisValueSerializer(properties);
+        char[] chars = new char[fieldLength];
+        Arrays.fill(chars, 'x');
+        user = new User();
+        user.setId("5");
+        user.setName(new String(chars));
+        user.setAge(30);
+        user.setEmail(new String(chars));
+        encoded = redisSerializer.serialize(user);
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Size {
+        public long encodedBytes;
+    }
+
+    @Benchmark
+    public byte[] serialize(Size size) {
+        byte[] bytes = redisSerializer.serialize(user);
+        size.encodedBytes = bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return redisSerializer.deserialize(encoded);
+    }
+}
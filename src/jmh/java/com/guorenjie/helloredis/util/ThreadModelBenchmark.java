@@ -0,0 +1,79 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 平台线程池与虚拟线程处理并发请求的对比，每个请求做一次RedisUtil.get和一次RedisUtil.set，
+ * 平台线程池大小与tomcat默认的server.tomcat.threads.max(200)相同；virtual需要在JDK 21+上运行
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadModelBenchmark {
+
+    private static final int TOMCAT_MAX_THREADS = 200;
+    private static final int KEY_COUNT = 1000;
+    /**
+     * 同时提交的请求数，是平台线程池大小的10倍
+     */
+    private static final int REQUESTS = 2000;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    private BenchmarkRedis redis;
+    private RedisUtil redisUtil;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        redis = new BenchmarkRedis(HelloRedisProperties.SerializerType.COMPACT);
+        redisUtil = redis.redisUtil();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            redisUtil.set(key(i), "value:" + i);
+        }
+        executor = "virtual".equals(threads) ? VirtualThreads.newExecutor("bench-virtual-")
+                : Executors.newFixedThreadPool(TOMCAT_MAX_THREADS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        redis.close();
+    }
+
+    /**
+     * REQUESTS个请求同时提交，全部完成为一次调用，吞吐量按请求数计算
+     */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void handleRequests() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            String key = key(i % KEY_COUNT);
+            executor.execute(() -> {
+                try {
+                    redisUtil.set(key, redisUtil.get(key));
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    private static String key(int i) {
+        return "bench:thread:" + i;
+    }
+}
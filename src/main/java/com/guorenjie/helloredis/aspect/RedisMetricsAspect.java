@@ -0,0 +1,149 @@
+package com.guorenjie.helloredis.aspect;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.util.MeteringRedisSerializer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description RedisUtil命令级别的延迟、调用次数、错误次数和payload大小统计
+ * 按命令名和key前缀(第一个分隔符之前的部分)打标签，通过/actuator/prometheus暴露
+ * 每个命令/前缀组合的meter只创建一次，热路径上只有一次map查找和一次计时
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Aspect
+@Component
+@ConditionalOnProperty(prefix = "helloredis.metrics", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class RedisMetricsAspect {
+
+    /**
+     * 不是redis命令或者只返回惰性对象的方法，计时没有意义
+     */
+    private static final Set<String> IGNORED = new HashSet<>(Arrays.asList(
+            "batch", "nearCacheStats", "hotKeys", "readFromPrimary", "scan", "hScan", "sScan", "zScan"));
+
+    private static final String NO_KEY = "none";
+    private static final String MULTI_KEY = "multi";
+    private static final String OTHER_PREFIX = "other";
+
+    private final MeterRegistry registry;
+    private final HelloRedisProperties.Metrics config;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, CommandMeters>> meters = new ConcurrentHashMap<>();
+    private final Set<String> prefixes = ConcurrentHashMap.newKeySet();
+
+    public RedisMetricsAspect(MeterRegistry registry, HelloRedisProperties properties) {
+        this.registry = registry;
+        this.config = properties.getMetrics();
+    }
+
+    @Around("execution(public * com.guorenjie.helloredis.util.RedisUtil.*(..))")
+    public Object around(ProceedingJoinPoint joinPoint) throws Throwable {
+        String command = joinPoint.getSignature().getName();
+        if (IGNORED.contains(command)) {
+            return joinPoint.proceed();
+        }
+        CommandMeters commandMeters = meters(command, keyPrefix(joinPoint.getArgs()));
+        MeteringRedisSerializer.PayloadRecorder previous = MeteringRedisSerializer.bind(commandMeters);
+        long start = System.nanoTime();
+        try {
+            return joinPoint.proceed();
+        } catch (Throwable e) {
+            Counter.builder("redis.command.errors")
+                    .tag("command", command)
+                    .tag("prefix", commandMeters.prefix)
+                    .tag("exception", e.getClass().getSimpleName())
+                    .register(registry)
+                    .increment();
+            throw e;
+        } finally {
+            commandMeters.timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            MeteringRedisSerializer.restore(previous);
+        }
+    }
+
+    private CommandMeters meters(String command, String prefix) {
+        ConcurrentHashMap<String, CommandMeters> byPrefix =
+                meters.computeIfAbsent(command, name -> new ConcurrentHashMap<>());
+        CommandMeters commandMeters = byPrefix.get(prefix);
+        if (commandMeters == null) {
+            commandMeters = byPrefix.computeIfAbsent(prefix, name -> new CommandMeters(command, name));
+        }
+        return commandMeters;
+    }
+
+    /**
+     * 取第一个参数作为key，没有分隔符的key和超过maxPrefixes个不同前缀后的key都归到other，防止标签基数爆炸
+     */
+    private String keyPrefix(Object[] args) {
+        if (args.length == 0 || args[0] == null) {
+            return NO_KEY;
+        }
+        if (!(args[0] instanceof String)) {
+            return MULTI_KEY;
+        }
+        String key = (String) args[0];
+        int end = key.indexOf(config.getPrefixDelimiter());
+        if (end < 0) {
+            //没有分隔符时整个key都是业务数据(如随机id)，不能作为标签
+            return OTHER_PREFIX;
+        }
+        String prefix = key.substring(0, end);
+        if (prefixes.contains(prefix)) {
+            return prefix;
+        }
+        if (prefixes.size() >= config.getMaxPrefixes()) {
+            return OTHER_PREFIX;
+        }
+        prefixes.add(prefix);
+        return prefix;
+    }
+
+    private final class CommandMeters implements MeteringRedisSerializer.PayloadRecorder {
+        private final String prefix;
+        private final Timer timer;
+        private final DistributionSummary written;
+        private final DistributionSummary read;
+
+        private CommandMeters(String command, String prefix) {
+            this.prefix = prefix;
+            this.timer = Timer.builder("redis.command")
+                    .description("RedisUtil命令耗时")
+                    .tag("command", command)
+                    .tag("prefix", prefix)
+                    .publishPercentiles(0.5, 0.99, 0.999)
+                    .publishPercentileHistogram(config.isPercentileHistogram())
+                    .register(registry);
+            this.written = payload(command, prefix, "write");
+            this.read = payload(command, prefix, "read");
+        }
+
+        private DistributionSummary payload(String command, String prefix, String direction) {
+            return DistributionSummary.builder("redis.command.payload")
+                    .description("RedisUtil命令value序列化后的字节数")
+                    .baseUnit("bytes")
+                    .tag("command", command)
+                    .tag("prefix", prefix)
+                    .tag("direction", direction)
+                    .register(registry);
+        }
+
+        @Override
+        public void recordPayload(boolean write, int bytes) {
+            (write ? written : read).record(bytes);
+        }
+    }
+}
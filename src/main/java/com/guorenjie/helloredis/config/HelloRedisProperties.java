@@ -0,0 +1,562 @@
+package com.guorenjie.helloredis.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * @Description 项目自定义配置，对应application.yml中的helloredis前缀
+ * @Author guorenjie
+ * @Date 2020/5/20 0:38
+ **/
+@Data
+@Component
+@ConfigurationProperties(prefix = "helloredis")
+public class HelloRedisProperties {
+
+    /**
+     * value序列化方式
+     */
+    private SerializerType serializer = SerializerType.JSON;
+
+    /**
+     * 本地近端缓存配置
+     */
+    private NearCache nearCache = new NearCache();
+
+    /**
+     * SCAN系列命令配置
+     */
+    private Scan scan = new Scan();
+
+    /**
+     * 批量管道配置
+     */
+    private Batch batch = new Batch();
+
+    /**
+     * getOrLoad回源配置
+     */
+    private Load load = new Load();
+
+    /**
+     * RedisUtil命令统计配置
+     */
+    private Metrics metrics = new Metrics();
+
+    /**
+     * 分布式锁配置
+     */
+    private Lock lock = new Lock();
+
+    /**
+     * User读穿透/写回配置
+     */
+    private UserRepository userRepository = new UserRepository();
+
+    /**
+     * 大key防护配置
+     */
+    private BigKey bigKey = new BigKey();
+
+    /**
+     * 热点key探测配置
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 读请求路由配置
+     */
+    private ReadRouting readRouting = new ReadRouting();
+
+    /**
+     * 排行榜配置
+     */
+    private Leaderboard leaderboard = new Leaderboard();
+
+    /**
+     * 限流配置
+     */
+    private RateLimit rateLimit = new RateLimit();
+
+    /**
+     * key布隆过滤器配置
+     */
+    private BloomFilter bloomFilter = new BloomFilter();
+
+    /**
+     * 过期时间打散和提前刷新配置
+     */
+    private Expiry expiry = new Expiry();
+
+    private Queue queue = new Queue();
+
+    private Stream stream = new Stream();
+
+    private Transfer transfer = new Transfer();
+
+    private VirtualThreads virtualThreads = new VirtualThreads();
+
+    private Startup startup = new Startup();
+
+    public enum ReadPolicy {
+        /**
+         * 只读主节点
+         */
+        PRIMARY,
+        /**
+         * 优先读从节点，没有可用从节点时读主节点
+         */
+        REPLICA_PREFERRED,
+        /**
+         * 读延迟最低的节点，不区分主从
+         */
+        NEAREST
+    }
+
+    public enum RateLimitAlgorithm {
+        /**
+         * 滑动窗口计数：上一个窗口的计数按剩余比例加权，加上当前窗口的计数
+         */
+        SLIDING_WINDOW,
+        /**
+         * 令牌桶：按limit/window的速率补充令牌，桶容量为limit，允许突发
+         */
+        TOKEN_BUCKET
+    }
+
+    public enum SerializerType {
+        /**
+         * jackson json，带类名
+         */
+        JSON,
+        /**
+         * 紧凑二进制，兼容读取json
+         */
+        COMPACT
+    }
+
+    @Data
+    public static class NearCache {
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+        /**
+         * 最多缓存的key数量，超出后按LRU淘汰
+         */
+        private int maximumSize = 10000;
+        /**
+         * 本地副本存活时间(毫秒)，即使没有收到失效通知也会在此时间后过期
+         */
+        private long ttlMillis = 5000;
+        /**
+         * 失效通知使用的pub/sub频道
+         */
+        private String invalidationChannel = "helloredis:near-cache:invalidate";
+    }
+
+    @Data
+    public static class Scan {
+        /**
+         * 每次SCAN/HSCAN/SSCAN/ZSCAN的COUNT提示值，越大往返次数越少，单次阻塞越长
+         */
+        private long count = 1000;
+    }
+
+    @Data
+    public static class Batch {
+        /**
+         * 单个管道分块最多包含的命令数
+         */
+        private int maxOps = 1000;
+        /**
+         * 单个管道分块最多包含的key/value字节数
+         */
+        private long maxBytes = 1024 * 1024;
+    }
+
+    @Data
+    public static class Load {
+        /**
+         * 跨节点回源租约时长(毫秒)，应大于一次回源的耗时，持有者宕机后最多等待这么久
+         */
+        private long leaseMillis = 3000;
+        /**
+         * 未拿到租约的节点轮询结果的间隔(毫秒)
+         */
+        private long pollMillis = 50;
+        /**
+         * 租约key后缀
+         */
+        private String leaseSuffix = ":load-lease";
+    }
+
+    @Data
+    public static class Metrics {
+        /**
+         * 是否统计RedisUtil命令的耗时、次数、错误和payload大小
+         */
+        private boolean enabled = true;
+        /**
+         * key前缀分隔符，前缀作为标签
+         */
+        private String prefixDelimiter = ":";
+        /**
+         * 最多区分的key前缀个数，超出的归为other
+         */
+        private int maxPrefixes = 100;
+        /**
+         * 是否输出直方图桶，prometheus可以据此跨实例聚合分位数
+         */
+        private boolean percentileHistogram = true;
+    }
+
+    @Data
+    public static class Lock {
+        /**
+         * 锁key前缀，实际key为prefix{name}
+         */
+        private String prefix = "helloredis:lock:";
+        /**
+         * 看门狗模式下的租约(毫秒)，每三分之一租约续期一次；持有者进程停顿超过租约后锁会被其他人获得
+         */
+        private long leaseMillis = 30000;
+        /**
+         * 锁释放通知频道
+         */
+        private String channel = "helloredis:lock:release";
+    }
+
+    @Data
+    public static class UserRepository {
+        /**
+         * redis中User的key前缀
+         */
+        private String keyPrefix = "user:";
+        /**
+         * 按字段存储的User hash的key前缀
+         */
+        private String hashKeyPrefix = "user:hash:";
+        /**
+         * redis中User的过期时间(秒)
+         */
+        private long ttlSeconds = 3600;
+        /**
+         * 写回MySQL的最大间隔(毫秒)，即正常情况下MySQL落后redis的最长时间
+         */
+        private long flushIntervalMillis = 1000;
+        /**
+         * 每个jdbc批次的行数，积压达到这个数量时提前写回
+         */
+        private int batchSize = 500;
+        /**
+         * 最大积压，超过后写入方同步写回
+         */
+        private int maxPending = 10000;
+    }
+
+    @Data
+    public static class BigKey {
+        /**
+         * 是否开启，默认关闭；开启后RedisUtil、RedisBatch、ReactiveRedisUtil的String读写支持分块，lRange/zRange自动分页
+         */
+        private boolean enabled = false;
+        /**
+         * 序列化后超过这个字节数的value分块存储
+         */
+        private int chunkThresholdBytes = 512 * 1024;
+        /**
+         * 每个分块的字节数，不能大于阈值
+         */
+        private int chunkSizeBytes = 256 * 1024;
+        /**
+         * lRange/zRange每次往返最多取回的元素数
+         */
+        private int pageSize = 1000;
+        /**
+         * 集合元素数超过这个值时打印告警
+         */
+        private long collectionWarnSize = 10000;
+        /**
+         * set/zset写入后按1/sampleRate的概率检查元素数，避免每次写入都多一次往返
+         */
+        private int sampleRate = 64;
+    }
+
+    @Data
+    public static class HotKey {
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+        /**
+         * 每sampleRate次读取采样一次
+         */
+        private int sampleRate = 8;
+        /**
+         * 一个窗口内估计读取次数达到这个值即为热点
+         */
+        private long threshold = 1000;
+        /**
+         * 最多同时跟踪的热点key数量，也是本地副本的容量
+         */
+        private int topK = 32;
+        /**
+         * 衰减窗口(毫秒)，每个窗口结束时计数减半
+         */
+        private long windowMillis = 10000;
+        /**
+         * count-min sketch每行的计数器个数
+         */
+        private int sketchWidth = 4096;
+        /**
+         * count-min sketch行数
+         */
+        private int sketchDepth = 4;
+        /**
+         * 热点key本地副本存活时间(毫秒)，即其他节点写入后本节点的最大陈旧时间
+         */
+        private long localTtlMillis = 1000;
+    }
+
+    @Data
+    public static class ReadRouting {
+        /**
+         * 是否开启，默认关闭(所有读写都走主节点)
+         */
+        private boolean enabled = false;
+        /**
+         * 读策略
+         */
+        private ReadPolicy policy = ReadPolicy.REPLICA_PREFERRED;
+        /**
+         * 从节点落后主节点的复制偏移量上限(字节)，超过后读请求退回主节点
+         */
+        private long maxLagBytes = 1024 * 1024;
+        /**
+         * 从节点未确认复制的时间上限(秒)，超过后读请求退回主节点
+         */
+        private long maxLagSeconds = 5;
+        /**
+         * 检查复制延迟的间隔(毫秒)
+         */
+        private long lagCheckIntervalMillis = 1000;
+    }
+
+    @Data
+    public static class Leaderboard {
+        /**
+         * 排行榜key前缀
+         */
+        private String keyPrefix = "helloredis:leaderboard:";
+        /**
+         * 本地加分刷到redis的间隔(毫秒)
+         */
+        private long flushIntervalMillis = 100;
+        /**
+         * 单个排行榜本地待刷出的成员数上限，达到后由加分方同步刷出
+         */
+        private int maxPending = 10000;
+        /**
+         * 每次刷出后保留的最大名次，之后的成员被裁剪
+         */
+        private long maxSize = 10000;
+        /**
+         * 前N名快照缓存的名次数，top(n)的n不超过它时读快照
+         */
+        private int snapshotSize = 100;
+        /**
+         * 前N名快照的存活时间(毫秒)
+         */
+        private long snapshotTtlMillis = 1000;
+    }
+
+    @Data
+    public static class RateLimit {
+        /**
+         * 是否开启，默认关闭(@RateLimited不生效)
+         */
+        private boolean enabled = false;
+        /**
+         * 限流算法
+         */
+        private RateLimitAlgorithm algorithm = RateLimitAlgorithm.SLIDING_WINDOW;
+        /**
+         * 限流key前缀
+         */
+        private String keyPrefix = "helloredis:rate:";
+        /**
+         * 每个窗口允许的请求数，@RateLimited未指定时使用
+         */
+        private long limit = 100;
+        /**
+         * 窗口长度(毫秒)，@RateLimited未指定时使用
+         */
+        private long windowMillis = 1000;
+        /**
+         * 每个实例一次从redis租用的令牌数，大于1时在本地扣减，用完再租；0或1表示每个请求都访问redis
+         */
+        private long leaseSize = 0;
+        /**
+         * 租来的令牌在本地的有效期(毫秒)，过期未用完的令牌作废
+         */
+        private long leaseTtlMillis = 200;
+        /**
+         * 本地最多保留租约的key数量，超过后清理过期租约
+         */
+        private int maxLeaseKeys = 10000;
+    }
+
+    @Data
+    public static class BloomFilter {
+        /**
+         * 是否开启，默认关闭；只覆盖通过本应用写入的key，其他客户端写入的key在下次重建之前会被误拦截
+         */
+        private boolean enabled = false;
+        /**
+         * 过滤器名称，bitmap的key为{name}
+         */
+        private String name = "helloredis:bloom:keys";
+        /**
+         * 预计的key数量，与误判率一起决定bitmap大小，超出后误判率上升
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 期望误判率
+         */
+        private double falsePositiveRate = 0.01;
+        /**
+         * 重建时SCAN的key匹配模式
+         */
+        private String scanPattern = "*";
+        /**
+         * 重建时每次SCAN的COUNT，也是每批写入的key数
+         */
+        private int scanCount = 1000;
+        /**
+         * 新写入的key刷到redis bitmap的间隔(毫秒)
+         */
+        private long flushIntervalMillis = 100;
+        /**
+         * 从redis同步bitmap到本地镜像的间隔(毫秒)，即其他节点新写入的key的最大可见延迟
+         */
+        private long syncIntervalMillis = 5000;
+    }
+
+    @Data
+    public static class Expiry {
+        /**
+         * RedisUtil.set和getOrRefresh写入时过期时间随机延长的比例上限，默认0表示不打散
+         */
+        private double ttlJitterRatio = 0;
+        /**
+         * getOrRefresh提前刷新的激进程度，大于1更早刷新，小于1更接近过期才刷新
+         */
+        private double earlyRefreshBeta = 1.0;
+        /**
+         * 后台提前刷新的线程数
+         */
+        private int refreshThreads = 4;
+        /**
+         * 后台提前刷新的队列长度，队列满时放弃刷新(当前值仍然有效)
+         */
+        private int refreshQueueCapacity = 1000;
+    }
+
+    @Data
+    public static class Queue {
+        /**
+         * 是否启用RedisQueueWorkers
+         */
+        private boolean enabled = false;
+        /**
+         * BRPOPLPUSH每次阻塞的秒数，也是关闭时worker退出的最长等待时间
+         */
+        private int blockSeconds = 2;
+        /**
+         * 取到一条后最多再搬出的条数+1，积压时一次往返处理一批
+         */
+        private int batchSize = 50;
+        /**
+         * worker心跳过期秒数，必须大于block-seconds；心跳过期后处理中的元素被放回队列
+         */
+        private long heartbeatSeconds = 10;
+        /**
+         * 检查失效worker的间隔
+         */
+        private long recoveryIntervalMillis = 10000;
+    }
+
+    @Data
+    public static class Stream {
+        /**
+         * 是否启用RedisStreams
+         */
+        private boolean enabled = false;
+        /**
+         * 每个stream保留的大约条数，XADD时用MAXLEN ~近似裁剪
+         */
+        private long maxLen = 100000;
+        /**
+         * 每次XREADGROUP最多拉取的条数
+         */
+        private int batchSize = 100;
+        /**
+         * XREADGROUP每次阻塞的毫秒数
+         */
+        private long blockMillis = 2000;
+        /**
+         * pending消息空闲超过该时长后被其他消费者认领，应大于单条消息的最长处理时间
+         */
+        private long claimIdleMillis = 60000;
+        /**
+         * 投递次数达到该值的消息转入死信stream
+         */
+        private int maxDeliveries = 5;
+    }
+
+    @Data
+    public static class Transfer {
+        /**
+         * KeyspaceTransfer每个管道最多包含的key数
+         */
+        private int batchSize = 1000;
+        /**
+         * 导入时每个管道最多包含的DUMP数据字节数
+         */
+        private long batchBytes = 8 * 1024 * 1024;
+        /**
+         * 打印进度的间隔
+         */
+        private long progressIntervalMillis = 5000;
+    }
+
+    @Data
+    public static class VirtualThreads {
+        /**
+         * 是否用虚拟线程处理请求，需要JDK 21+
+         */
+        private boolean enabled = false;
+        /**
+         * 虚拟线程模式下lettuce连接池的最大连接数下限
+         */
+        private int poolMaxActive = 64;
+    }
+
+    @Data
+    public static class Startup {
+        /**
+         * 启动后、就绪之前是否预热连接池、序列化器和RedisUtil
+         */
+        private boolean warmupEnabled = true;
+        /**
+         * 预热打开的连接数，0表示取spring.redis.lettuce.pool.min-idle
+         */
+        private int warmupConnections = 0;
+        /**
+         * 训练运行：创建全部bean后立即退出，构建镜像时用于生成AppCDS归档
+         */
+        private boolean trainingRun = false;
+    }
+}
@@ -3,12 +3,44 @@ package com.guorenjie.helloredis.config;
 
 import java.net.UnknownHostException;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.guorenjie.helloredis.util.ChunkedValueStore;
+import com.guorenjie.helloredis.util.CompactRedisSerializer;
+import com.guorenjie.helloredis.util.DistributedLock;
+import com.guorenjie.helloredis.util.EarlyRefresher;
+import com.guorenjie.helloredis.util.HotKeyDetector;
+import com.guorenjie.helloredis.util.LuaScriptRegistry;
+import com.guorenjie.helloredis.util.MeteringRedisSerializer;
+import com.guorenjie.helloredis.util.NearCache;
+import com.guorenjie.helloredis.util.RedisBloomFilter;
+import com.guorenjie.helloredis.util.RedisQueueWorkers;
+import com.guorenjie.helloredis.util.RedisStreams;
+import com.guorenjie.helloredis.util.RedisUtil;
+import com.guorenjie.helloredis.util.ReplicaReadRouter;
+import io.lettuce.core.ReadFrom;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
@@ -37,31 +69,367 @@ public class RedisConfig {
      * @throws UnknownHostException
      */
     @Bean
-    public RedisTemplate<String, Object> redisTemplate(LettuceConnectionFactory  factory)
+    public RedisTemplate<String, Object> redisTemplate(LettuceConnectionFactory  factory,
+                                                       RedisSerializer<Object> redisValueSerializer)
             throws UnknownHostException {
         //为了开发方便一般使用string,object
         RedisTemplate<String, Object> template = new RedisTemplate<>();
         template.setConnectionFactory(factory);
-        //json序列化
-        Jackson2JsonRedisSerializer jackson2JsonRedisSerializer = new Jackson2JsonRedisSerializer(Object.class);
-        ObjectMapper om = new ObjectMapper();
-        om.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
-        // 在序列化中增加类信息，否则无法反序列化。
-        //om.enableDefaultTyping(ObjectMapper.DefaultTyping.NON_FINAL); 部分版本因为漏洞或者其他原因弃用
-        om.activateDefaultTyping(LaissezFaireSubTypeValidator.instance,ObjectMapper.DefaultTyping.NON_FINAL);
-        jackson2JsonRedisSerializer.setObjectMapper(om);
         //String的序列化
         StringRedisSerializer stringRedisSerializer = new StringRedisSerializer();
         //key采用的string序列化方式
         template.setKeySerializer(stringRedisSerializer);
         //hash的key也采用string的序列化方式
         template.setHashKeySerializer(stringRedisSerializer);
-        //value序列化方式采用jackson
-        template.setValueSerializer(jackson2JsonRedisSerializer);
-        //hash的value采用jackson序列化
-        template.setHashValueSerializer(jackson2JsonRedisSerializer);
+        //value序列化方式由helloredis.serializer决定，默认jackson；外面包一层用于统计payload大小
+        MeteringRedisSerializer meteringRedisSerializer = new MeteringRedisSerializer(redisValueSerializer);
+        template.setValueSerializer(meteringRedisSerializer);
+        //hash的value与value相同
+        template.setHashValueSerializer(meteringRedisSerializer);
         template.afterPropertiesSet();
         return template;
     }
-}
 
+    /**
+     * 响应式redisTemplate，序列化方式与redisTemplate保持一致，两边读写的数据可以互通
+     * bean名称覆盖spring boot自动配置的reactiveRedisTemplate(默认是jdk序列化)
+     * @param factory
+     * @return
+     */
+    @Bean
+    public ReactiveRedisTemplate<String, Object> reactiveRedisTemplate(ReactiveRedisConnectionFactory factory,
+                                                                       RedisSerializer<Object> redisValueSerializer) {
+        StringRedisSerializer stringRedisSerializer = new StringRedisSerializer();
+        RedisSerializationContext<String, Object> context = RedisSerializationContext
+                .<String, Object>newSerializationContext(stringRedisSerializer)
+                .value(redisValueSerializer)
+                .hashValue(redisValueSerializer)
+                .build();
+        return new ReactiveRedisTemplate<>(factory, context);
+    }
+
+    /**
+     * value序列化方式
+     * helloredis.serializer=json：jackson json，带类名，可读性好
+     * helloredis.serializer=compact：紧凑二进制，体积小编解码快，仍能读取json格式的旧数据
+     * 滚动发布时先让所有节点都升级到能读compact的版本，再切换配置
+     * @param properties
+     * @return
+     */
+    @Bean
+    public RedisSerializer<Object> redisValueSerializer(HelloRedisProperties properties) {
+        Jackson2JsonRedisSerializer<Object> jackson2JsonRedisSerializer = jackson2JsonRedisSerializer();
+        if (properties.getSerializer() == HelloRedisProperties.SerializerType.COMPACT) {
+            return new CompactRedisSerializer(jackson2JsonRedisSerializer);
+        }
+        return jackson2JsonRedisSerializer;
+    }
+
+    /**
+     * json序列化，在序列化中增加类信息，否则无法反序列化
+     * @return
+     */
+    public static Jackson2JsonRedisSerializer<Object> jackson2JsonRedisSerializer() {
+        Jackson2JsonRedisSerializer<Object> jackson2JsonRedisSerializer = new Jackson2JsonRedisSerializer<>(Object.class);
+        ObjectMapper om = new ObjectMapper();
+        om.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
+        // 在序列化中增加类信息，否则无法反序列化。
+        //om.enableDefaultTyping(ObjectMapper.DefaultTyping.NON_FINAL); 部分版本因为漏洞或者其他原因弃用
+        om.activateDefaultTyping(LaissezFaireSubTypeValidator.instance,ObjectMapper.DefaultTyping.NON_FINAL);
+        jackson2JsonRedisSerializer.setObjectMapper(om);
+        return jackson2JsonRedisSerializer;
+    }
+
+    /**
+     * 本地近端缓存，helloredis.near-cache.enabled=true时才创建
+     * @param properties
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.near-cache", name = "enabled", havingValue = "true")
+    public NearCache nearCache(HelloRedisProperties properties) {
+        HelloRedisProperties.NearCache config = properties.getNearCache();
+        return new NearCache(config.getMaximumSize(), config.getTtlMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 近端缓存的命中、未命中、淘汰计数注册为指标，和RedisUtil命令指标一起暴露
+     * @param nearCache
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.near-cache", name = "enabled", havingValue = "true")
+    public MeterBinder nearCacheMeterBinder(NearCache nearCache) {
+        return registry -> nearCache.stats().keySet().forEach(stat ->
+                Gauge.builder("redis.near.cache", nearCache, cache -> cache.stats().get(stat))
+                        .tag("stat", stat)
+                        .register(registry));
+    }
+
+    /**
+     * 大value分块存储，helloredis.big-key.enabled=true时才创建
+     * 开启读路由时读取同样经过路由，readFromPrimary和复制延迟回退对分块读取也生效
+     * @param redisTemplate
+     * @param replicaReadRouter
+     * @param properties
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.big-key", name = "enabled", havingValue = "true")
+    public ChunkedValueStore chunkedValueStore(RedisTemplate<String, Object> redisTemplate,
+                                               ObjectProvider<ReplicaReadRouter> replicaReadRouter,
+                                               HelloRedisProperties properties) {
+        HelloRedisProperties.BigKey config = properties.getBigKey();
+        ReplicaReadRouter router = replicaReadRouter.getIfAvailable();
+        return new ChunkedValueStore(redisTemplate, router == null ? () -> redisTemplate : router::template,
+                config.getChunkThresholdBytes(), config.getChunkSizeBytes());
+    }
+
+    /**
+     * 热点key探测，helloredis.hot-key.enabled=true时才创建
+     * @param properties
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.hot-key", name = "enabled", havingValue = "true")
+    public HotKeyDetector hotKeyDetector(HelloRedisProperties properties) {
+        HelloRedisProperties.HotKey config = properties.getHotKey();
+        return new HotKeyDetector(config.getSketchDepth(), config.getSketchWidth(), config.getSampleRate(),
+                config.getThreshold(), config.getTopK(), config.getWindowMillis(), config.getLocalTtlMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按helloredis.read-routing.policy设置spring boot自动配置的LettuceConnectionFactory的读策略，
+     * redisTemplate的读命令随之发往从节点或最近的节点，写命令仍然只发往主节点
+     * @param properties
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.read-routing", name = "enabled", havingValue = "true")
+    public LettuceClientConfigurationBuilderCustomizer readFromCustomizer(HelloRedisProperties properties) {
+        return builder -> builder.readFrom(readFrom(properties.getReadRouting().getPolicy()));
+    }
+
+    /**
+     * 读请求路由，持有一个只连主节点的连接工厂，用于读己之写和从节点延迟过大时的回退
+     * 连接工厂不注册为bean，避免影响spring boot对RedisConnectionFactory的自动配置
+     * @param factory
+     * @param redisTemplate
+     * @param properties
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "helloredis.read-routing", name = "enabled", havingValue = "true")
+    public ReplicaReadRouter replicaReadRouter(LettuceConnectionFactory factory,
+                                               RedisTemplate<String, Object> redisTemplate,
+                                               HelloRedisProperties properties) {
+        HelloRedisProperties.ReadRouting config = properties.getReadRouting();
+        return new ReplicaReadRouter(redisTemplate, primaryConnectionFactory(factory), config.getMaxLagBytes(),
+                config.getMaxLagSeconds(), config.getLagCheckIntervalMillis());
+    }
+
+    /**
+     * 从节点复制延迟注册为指标
+     * @param replicaReadRouter
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.read-routing", name = "enabled", havingValue = "true")
+    public MeterBinder replicaLagMeterBinder(ReplicaReadRouter replicaReadRouter) {
+        return registry -> {
+            Gauge.builder("redis.replica.lag", replicaReadRouter, ReplicaReadRouter::getLagBytes)
+                    .tag("unit", "bytes")
+                    .register(registry);
+            Gauge.builder("redis.replica.lag", replicaReadRouter, ReplicaReadRouter::getLagSeconds)
+                    .tag("unit", "seconds")
+                    .register(registry);
+            Gauge.builder("redis.replica.fallback", replicaReadRouter, router -> router.isReplicasLagging() ? 1 : 0)
+                    .register(registry);
+        };
+    }
+
+    private static ReadFrom readFrom(HelloRedisProperties.ReadPolicy policy) {
+        switch (policy) {
+            case REPLICA_PREFERRED:
+                return ReadFrom.REPLICA_PREFERRED;
+            case NEAREST:
+                return ReadFrom.NEAREST;
+            default:
+                return ReadFrom.MASTER;
+        }
+    }
+
+    /**
+     * 复制自动配置的连接工厂，去掉读策略后所有命令都发往主节点；拓扑、连接池、超时、ssl等配置保持一致
+     */
+    private static LettuceConnectionFactory primaryConnectionFactory(LettuceConnectionFactory factory) {
+        return primaryConnectionFactory(factory, false, factory.getClientConfiguration().getCommandTimeout());
+    }
+
+    /**
+     * dedicated为true时不使用连接池、不共享连接，每次getConnection都新建独占连接，用于阻塞命令
+     */
+    private static LettuceConnectionFactory primaryConnectionFactory(LettuceConnectionFactory factory,
+                                                                     boolean dedicated, Duration commandTimeout) {
+        LettuceClientConfiguration source = factory.getClientConfiguration();
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder builder =
+                source instanceof LettucePoolingClientConfiguration && !dedicated
+                        ? LettucePoolingClientConfiguration.builder()
+                        .poolConfig(((LettucePoolingClientConfiguration) source).getPoolConfig())
+                        : LettuceClientConfiguration.builder();
+        if (source.isUseSsl()) {
+            LettuceClientConfiguration.LettuceSslClientConfigurationBuilder ssl = builder.useSsl();
+            if (!source.isVerifyPeer()) {
+                ssl.disablePeerVerification();
+            }
+            if (source.isStartTls()) {
+                ssl.startTls();
+            }
+            builder = ssl.and();
+        }
+        source.getClientResources().ifPresent(builder::clientResources);
+        source.getClientOptions().ifPresent(builder::clientOptions);
+        source.getClientName().ifPresent(builder::clientName);
+        builder.commandTimeout(commandTimeout)
+                .shutdownTimeout(source.getShutdownTimeout())
+                .shutdownQuietPeriod(source.getShutdownQuietPeriod());
+        LettuceClientConfiguration clientConfiguration = builder.build();
+        LettuceConnectionFactory primary;
+        if (factory.isClusterAware()) {
+            primary = new LettuceConnectionFactory(factory.getClusterConfiguration(), clientConfiguration);
+        } else if (factory.isRedisSentinelAware()) {
+            primary = new LettuceConnectionFactory(factory.getSentinelConfiguration(), clientConfiguration);
+        } else {
+            primary = new LettuceConnectionFactory(factory.getStandaloneConfiguration(), clientConfiguration);
+        }
+        if (dedicated) {
+            primary.setShareNativeConnection(false);
+        }
+        primary.afterPropertiesSet();
+        return primary;
+    }
+
+    /**
+     * 阻塞队列消费者，helloredis.queue.enabled=true时才创建
+     * worker的阻塞连接不占用共享连接和连接池
+     * @param factory
+     * @param luaScripts
+     * @param redisTemplate
+     * @param properties
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "helloredis.queue", name = "enabled", havingValue = "true")
+    @SuppressWarnings("unchecked")
+    public RedisQueueWorkers redisQueueWorkers(LettuceConnectionFactory factory, LuaScriptRegistry luaScripts,
+                                               RedisTemplate<String, Object> redisTemplate,
+                                               HelloRedisProperties properties) {
+        HelloRedisProperties.Queue config = properties.getQueue();
+        LettuceConnectionFactory dedicated = blockingConnectionFactory(factory,
+                Duration.ofSeconds(config.getBlockSeconds()));
+        return new RedisQueueWorkers(dedicated, redisTemplate, luaScripts,
+                (RedisSerializer<String>) redisTemplate.getKeySerializer(),
+                (RedisSerializer<Object>) redisTemplate.getValueSerializer(), config.getBlockSeconds(),
+                config.getBatchSize(), config.getHeartbeatSeconds(), config.getRecoveryIntervalMillis());
+    }
+
+    /**
+     * stream事件管道，helloredis.stream.enabled=true时才创建
+     * 读线程的XREADGROUP BLOCK同样使用独占连接，不占用共享连接和连接池
+     * @param factory
+     * @param luaScripts
+     * @param redisTemplate
+     * @param properties
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "helloredis.stream", name = "enabled", havingValue = "true")
+    @SuppressWarnings("unchecked")
+    public RedisStreams redisStreams(LettuceConnectionFactory factory, LuaScriptRegistry luaScripts,
+                                     RedisTemplate<String, Object> redisTemplate, HelloRedisProperties properties) {
+        HelloRedisProperties.Stream config = properties.getStream();
+        LettuceConnectionFactory dedicated = blockingConnectionFactory(factory,
+                Duration.ofMillis(config.getBlockMillis()));
+        return new RedisStreams(dedicated, luaScripts, (RedisSerializer<String>) redisTemplate.getKeySerializer(),
+                (RedisSerializer<Object>) redisTemplate.getValueSerializer(), config.getMaxLen(),
+                config.getBatchSize(), config.getBlockMillis(), config.getClaimIdleMillis(),
+                config.getMaxDeliveries());
+    }
+
+    /**
+     * 阻塞命令用的独占连接工厂，命令超时至少比阻塞时长多1秒，避免阻塞中的命令被判定超时
+     */
+    private static LettuceConnectionFactory blockingConnectionFactory(LettuceConnectionFactory factory,
+                                                                      Duration block) {
+        Duration blockTimeout = block.plusSeconds(1);
+        Duration commandTimeout = factory.getClientConfiguration().getCommandTimeout();
+        return primaryConnectionFactory(factory, true,
+                commandTimeout.compareTo(blockTimeout) > 0 ? commandTimeout : blockTimeout);
+    }
+
+    /**
+     * RedisUtil.getOrRefresh的后台提前刷新线程池
+     * @param properties
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    public EarlyRefresher earlyRefresher(HelloRedisProperties properties) {
+        HelloRedisProperties.Expiry config = properties.getExpiry();
+        return new EarlyRefresher(config.getEarlyRefreshBeta(), config.getRefreshThreads(),
+                config.getRefreshQueueCapacity());
+    }
+
+    /**
+     * key布隆过滤器，helloredis.bloom-filter.enabled=true时才创建，拦截一定不存在的key
+     * @param redisTemplate
+     * @param redisUtil
+     * @param distributedLock
+     * @param properties
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "helloredis.bloom-filter", name = "enabled", havingValue = "true")
+    public RedisBloomFilter redisBloomFilter(RedisTemplate<String, Object> redisTemplate,
+                                             ObjectProvider<RedisUtil> redisUtil, DistributedLock distributedLock,
+                                             HelloRedisProperties properties) {
+        HelloRedisProperties.BloomFilter config = properties.getBloomFilter();
+        return new RedisBloomFilter(redisTemplate, redisUtil, distributedLock, config.getName(), config.getExpectedInsertions(),
+                config.getFalsePositiveRate(), config.getScanPattern(), config.getScanCount(),
+                config.getFlushIntervalMillis(), config.getSyncIntervalMillis());
+    }
+
+    /**
+     * 布隆过滤器的填充率注册为指标，接近0.5时应调大expected-insertions
+     * @param redisBloomFilter
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "helloredis.bloom-filter", name = "enabled", havingValue = "true")
+    public MeterBinder bloomFilterMeterBinder(RedisBloomFilter redisBloomFilter) {
+        return registry -> Gauge.builder("redis.bloom.fill", redisBloomFilter, RedisBloomFilter::fillRatio)
+                .register(registry);
+    }
+
+    /**
+     * 共用的pub/sub监听容器，只在有订阅时才占用连接
+     * 开启近端缓存时订阅失效频道，任意节点对key的写操作都会让本节点的本地副本失效
+     * 没有其他bean依赖它，开启懒加载时也必须在启动时创建，否则不会订阅
+     * @param factory
+     * @param nearCache
+     * @param properties
+     * @return
+     */
+    @Bean
+    @Lazy(false)
+    public RedisMessageListenerContainer redisMessageListenerContainer(LettuceConnectionFactory factory,
+                                                                       ObjectProvider<NearCache> nearCache,
+                                                                       HelloRedisProperties properties) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        nearCache.ifAvailable(cache -> container.addMessageListener(
+                (message, pattern) -> cache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(properties.getNearCache().getInvalidationChannel())));
+        return container;
+    }
+}
@@ -0,0 +1,76 @@
+package com.guorenjie.helloredis.config;
+
+import com.guorenjie.helloredis.util.VirtualThreads;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration.LettucePoolingClientConfigurationBuilder;
+
+/**
+ * @Description 虚拟线程模式，helloredis.virtual-threads.enabled=true时生效，需要JDK 21+
+ * tomcat用每个请求一个虚拟线程的执行器代替平台线程池，请求在RedisUtil等待lettuce响应时不再占住平台线程，
+ * 并发上限由server.tomcat.max-connections而不是server.tomcat.threads.max决定；
+ * lettuce连接池同时放大到pool-max-active，避免并发请求在借连接时排队
+ * @Author guorenjie
+ * @Date 2020/5/20 0:38
+ **/
+@Slf4j
+@Configuration
+@ConditionalOnProperty(prefix = "helloredis.virtual-threads", name = "enabled", havingValue = "true")
+public class VirtualThreadConfig {
+
+    public VirtualThreadConfig() {
+        if (!VirtualThreads.isSupported()) {
+            throw new IllegalStateException("helloredis.virtual-threads.enabled=true 需要JDK 21+，当前为"
+                    + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * tomcat请求处理改用虚拟线程
+     * @return
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            protocolHandler.setExecutor(VirtualThreads.newExecutor("tomcat-virtual-"));
+            log.info("tomcat请求处理使用虚拟线程");
+        };
+    }
+
+    /**
+     * 按spring.redis.lettuce.pool重建连接池配置，最大连接数和最大空闲数不小于pool-max-active
+     * @param redisProperties
+     * @param properties
+     * @return
+     */
+    @Bean
+    public LettuceClientConfigurationBuilderCustomizer virtualThreadPoolCustomizer(RedisProperties redisProperties,
+                                                                                   HelloRedisProperties properties) {
+        return builder -> {
+            RedisProperties.Pool pool = redisProperties.getLettuce().getPool();
+            if (pool == null || !(builder instanceof LettucePoolingClientConfigurationBuilder)) {
+                return;
+            }
+            int maxActive = Math.max(pool.getMaxActive(), properties.getVirtualThreads().getPoolMaxActive());
+            GenericObjectPoolConfig<?> config = new GenericObjectPoolConfig<>();
+            config.setMaxTotal(maxActive);
+            config.setMaxIdle(Math.max(pool.getMaxIdle(), maxActive));
+            config.setMinIdle(pool.getMinIdle());
+            if (pool.getTimeBetweenEvictionRuns() != null) {
+                config.setTimeBetweenEvictionRunsMillis(pool.getTimeBetweenEvictionRuns().toMillis());
+            }
+            if (pool.getMaxWait() != null) {
+                config.setMaxWaitMillis(pool.getMaxWait().toMillis());
+            }
+            ((LettucePoolingClientConfigurationBuilder) builder).poolConfig(config);
+            log.info("虚拟线程模式下lettuce连接池最大连接数调整为{}", maxActive);
+        };
+    }
+}
@@ -0,0 +1,28 @@
+package com.guorenjie.helloredis.config;
+
+import com.guorenjie.helloredis.interceptor.RateLimitInterceptor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * @Description web mvc配置，注册拦截器
+ * @Author guorenjie
+ * @Date 2020/5/20 0:38
+ **/
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    private final ObjectProvider<RateLimitInterceptor> rateLimitInterceptor;
+
+    public WebMvcConfig(ObjectProvider<RateLimitInterceptor> rateLimitInterceptor) {
+        this.rateLimitInterceptor = rateLimitInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        //只对标注了@RateLimited的映射生效
+        rateLimitInterceptor.ifAvailable(registry::addInterceptor);
+    }
+}
@@ -0,0 +1,33 @@
+package com.guorenjie.helloredis.controller;
+
+import com.guorenjie.helloredis.util.RedisUtil;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * <p>
+ * redis运行状态
+ * </p>
+ *
+ * @author guorenjie
+ * @since 2019-09-22
+ */
+@RestController
+@RequestMapping("/redis")
+public class RedisController {
+
+    @Resource
+    RedisUtil redisUtil;
+
+    /**
+     * 当前热点key及其估计的窗口内读取次数，按次数降序
+     */
+    @RequestMapping("/hot-keys")
+    public Map<String, Long> hotKeys() {
+        return redisUtil.hotKeys();
+    }
+
+}
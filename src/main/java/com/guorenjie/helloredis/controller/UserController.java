@@ -1,10 +1,12 @@
 package com.guorenjie.helloredis.controller;
 
+import com.guorenjie.helloredis.interceptor.RateLimited;
 import com.guorenjie.helloredis.service.impl.UserServiceImpl;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
@@ -27,9 +29,21 @@ public class UserController {
     UserServiceImpl userService;
 
 
+    @RateLimited
     @RequestMapping("/{key}")
 	public String index(@PathVariable String key) {
         return key+"在redis中对应的String="+(String) userService.getString(key);
 	}
 
+    /**
+     * 非阻塞版本，servlet线程在等待redis期间立即释放，结果由lettuce事件循环线程写回
+     */
+    @RequestMapping("/async/{key}")
+    public Mono<String> asyncIndex(@PathVariable String key) {
+        return userService.getStringReactive(key)
+                .map(value -> (String) value)
+                .defaultIfEmpty("null")
+                .map(value -> key + "在redis中对应的String=" + value);
+    }
+
 }
@@ -0,0 +1,47 @@
+package com.guorenjie.helloredis.interceptor;
+
+import com.guorenjie.helloredis.util.StartupWarmup;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * @Description 记录启动后第一个业务请求的耗时(包含DispatcherServlet初始化)，actuator探针请求不计入
+ * 记录之后只剩一次volatile读的开销；filter在web容器启动时创建，预热组件等到第一个请求时才获取，不提前创建RedisUtil等bean
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Component
+public class FirstRequestTimingFilter extends OncePerRequestFilter {
+
+    private final ObjectProvider<StartupWarmup> startupWarmup;
+    private volatile boolean recorded;
+
+    public FirstRequestTimingFilter(ObjectProvider<StartupWarmup> startupWarmup) {
+        this.startupWarmup = startupWarmup;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return recorded || request.getRequestURI().startsWith("/actuator");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long started = System.nanoTime();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            recorded = true;
+            long millis = (System.nanoTime() - started) / 1000000;
+            startupWarmup.ifAvailable(warmup -> warmup.recordFirstRequest(millis));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.guorenjie.helloredis.interceptor;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.util.LeasedRateLimiter;
+import com.guorenjie.helloredis.util.LuaScriptRegistry;
+import com.guorenjie.helloredis.util.RateLimiter;
+import com.guorenjie.helloredis.util.RedisRateLimiter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Description 对标注了@RateLimited的映射限流，每个映射按自己的上限和窗口创建一个限流器
+ * 限流key为"controller类名.方法名"，perClient时再加上客户端IP；redis不可用时放行，不让限流拖垮接口
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "helloredis.rate-limit", name = "enabled", havingValue = "true")
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final LuaScriptRegistry luaScripts;
+    private final HelloRedisProperties.RateLimit config;
+    private final MeterRegistry registry;
+    private final ConcurrentHashMap<Method, Limit> limits = new ConcurrentHashMap<>();
+
+    public RateLimitInterceptor(LuaScriptRegistry luaScripts, HelloRedisProperties properties,
+                                MeterRegistry registry) {
+        this.luaScripts = luaScripts;
+        this.config = properties.getRateLimit();
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws Exception {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        Limit limit = limits.computeIfAbsent(((HandlerMethod) handler).getMethod(), this::create);
+        if (limit == Limit.NONE) {
+            return true;
+        }
+        String key = limit.perClient ? limit.name + ":" + request.getRemoteAddr() : limit.name;
+        boolean allowed;
+        try {
+            allowed = limit.limiter.tryAcquire(key);
+        } catch (RuntimeException e) {
+            log.warn("限流检查失败，放行请求{}: {}", limit.name, e.getMessage());
+            return true;
+        }
+        if (!allowed) {
+            registry.counter("redis.rate.limit.rejected", "mapping", limit.name).increment();
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setContentType("text/plain;charset=UTF-8");
+            response.getWriter().write("请求过于频繁，请稍后再试");
+        }
+        return allowed;
+    }
+
+    private Limit create(Method method) {
+        RateLimited annotation = AnnotatedElementUtils.findMergedAnnotation(method, RateLimited.class);
+        if (annotation == null) {
+            annotation = AnnotatedElementUtils.findMergedAnnotation(method.getDeclaringClass(), RateLimited.class);
+        }
+        if (annotation == null) {
+            return Limit.NONE;
+        }
+        long limit = annotation.limit() > 0 ? annotation.limit() : config.getLimit();
+        long windowMillis = annotation.windowMillis() > 0 ? annotation.windowMillis() : config.getWindowMillis();
+        RateLimiter limiter = new RedisRateLimiter(luaScripts, config.getAlgorithm(), config.getKeyPrefix(), limit,
+                windowMillis);
+        if (config.getLeaseSize() > 1) {
+            limiter = new LeasedRateLimiter(limiter, config.getLeaseSize(), config.getLeaseTtlMillis(),
+                    config.getMaxLeaseKeys());
+        }
+        return new Limit(method.getDeclaringClass().getSimpleName() + "." + method.getName(), limiter,
+                annotation.perClient());
+    }
+
+    private static final class Limit {
+        private static final Limit NONE = new Limit(null, null, false);
+
+        private final String name;
+        private final RateLimiter limiter;
+        private final boolean perClient;
+
+        private Limit(String name, RateLimiter limiter, boolean perClient) {
+            this.name = name;
+            this.limiter = limiter;
+            this.perClient = perClient;
+        }
+    }
+}
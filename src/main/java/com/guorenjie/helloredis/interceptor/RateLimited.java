@@ -0,0 +1,34 @@
+package com.guorenjie.helloredis.interceptor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @Description 标注在controller映射方法(或controller类)上，由RateLimitInterceptor按helloredis.rate-limit限流
+ * 超限的请求返回429；未开启helloredis.rate-limit时不生效
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface RateLimited {
+
+    /**
+     * 每个窗口允许的请求数，0表示使用helloredis.rate-limit.limit
+     */
+    long limit() default 0;
+
+    /**
+     * 窗口长度(毫秒)，0表示使用helloredis.rate-limit.window-millis
+     */
+    long windowMillis() default 0;
+
+    /**
+     * 是否按客户端IP分别限流，默认整个映射共享一个额度
+     */
+    boolean perClient() default false;
+}
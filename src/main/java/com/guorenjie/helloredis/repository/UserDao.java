@@ -0,0 +1,73 @@
+package com.guorenjie.helloredis.repository;
+
+import com.guorenjie.helloredis.entity.User;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @Description t_user表的jdbc访问
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Repository
+public class UserDao {
+
+    private static final RowMapper<User> USER_ROW_MAPPER = (rs, rowNum) -> {
+        User user = new User();
+        user.setId(rs.getString("id"));
+        user.setName(rs.getString("name"));
+        user.setAge(rs.getLong("age"));
+        user.setEmail(rs.getString("email"));
+        return user;
+    };
+
+    @Resource
+    JdbcTemplate jdbcTemplate;
+
+    /**
+     * 按id查询，不存在返回null
+     *
+     * @Param: [id]
+     * @return: com.guorenjie.helloredis.entity.User
+     */
+    public User findById(String id) {
+        List<User> users = jdbcTemplate.query("SELECT id, name, age, email FROM t_user WHERE id = ?",
+                USER_ROW_MAPPER, id);
+        return users.isEmpty() ? null : users.get(0);
+    }
+
+    /**
+     * 批量写入，已存在的行更新，不存在的插入
+     * 先批量UPDATE，再对影响行数为0的批量INSERT，MySQL和H2都适用
+     *
+     * @Param: [users]
+     * @return: int 写入的行数
+     */
+    public int batchUpsert(Collection<User> users) {
+        if (users == null || users.isEmpty()) {
+            return 0;
+        }
+        List<Object[]> updates = new ArrayList<>(users.size());
+        for (User user : users) {
+            updates.add(new Object[]{user.getName(), user.getAge(), user.getEmail(), user.getId()});
+        }
+        int[] updated = jdbcTemplate.batchUpdate("UPDATE t_user SET name = ?, age = ?, email = ? WHERE id = ?", updates);
+        List<Object[]> inserts = new ArrayList<>();
+        int i = 0;
+        for (User user : users) {
+            if (updated[i++] == 0) {
+                inserts.add(new Object[]{user.getId(), user.getName(), user.getAge(), user.getEmail()});
+            }
+        }
+        if (!inserts.isEmpty()) {
+            jdbcTemplate.batchUpdate("INSERT INTO t_user (id, name, age, email) VALUES (?, ?, ?, ?)", inserts);
+        }
+        return users.size();
+    }
+}
@@ -0,0 +1,213 @@
+package com.guorenjie.helloredis.repository;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.entity.User;
+import com.guorenjie.helloredis.util.RedisBatch;
+import com.guorenjie.helloredis.util.RedisUtil;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description User按字段存成redis hash，每个字段一个field
+ * 只读需要的字段(HMGET)、只改变化的字段(HSET/HMSET)、数值字段直接HINCRBY，不用整体读改写json；
+ * 局部更新只作用于已经整体保存过的User，并刷新过期时间，key不存在时不写入
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Repository
+public class UserHashRepository {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_NAME = "name";
+    public static final String FIELD_AGE = "age";
+    public static final String FIELD_EMAIL = "email";
+
+    private static final List<String> FIELDS = Collections.unmodifiableList(
+            Arrays.asList(FIELD_ID, FIELD_NAME, FIELD_AGE, FIELD_EMAIL));
+
+    private final RedisUtil redisUtil;
+    private final HelloRedisProperties.UserRepository config;
+
+    public UserHashRepository(RedisUtil redisUtil, HelloRedisProperties properties) {
+        this.redisUtil = redisUtil;
+        this.config = properties.getUserRepository();
+    }
+
+    /**
+     * 整体保存，null字段从hash中删除，不会保留上次保存的旧值
+     *
+     * @Param: [user]
+     * @return: void
+     */
+    public void save(User user) {
+        if (user == null || user.getId() == null) {
+            throw new IllegalArgumentException("save user和id不能为null");
+        }
+        String key = key(user.getId());
+        //HDEL、HMSET和EXPIRE走同一个管道，一次往返；只删除null字段，读取方不会看到整个hash消失
+        Map<String, Object> hash = toHash(user);
+        List<String> cleared = clearedFields(hash);
+        RedisBatch batch = redisUtil.batch();
+        if (!cleared.isEmpty()) {
+            batch.hDel(key, cleared.toArray());
+        }
+        batch.hmSet(key, hash);
+        batch.expire(key, config.getTtlSeconds(), TimeUnit.SECONDS);
+        batch.execute();
+    }
+
+    /**
+     * 读取全部字段，不存在返回null
+     *
+     * @Param: [id]
+     * @return: com.guorenjie.helloredis.entity.User
+     */
+    public User findById(String id) {
+        if (id == null) {
+            return null;
+        }
+        Map<Object, Object> hash = redisUtil.hgetAll(key(id));
+        if (hash == null || hash.isEmpty()) {
+            return null;
+        }
+        return fromHash(hash);
+    }
+
+    /**
+     * 只读取指定字段，其余字段保持默认值，不存在返回null
+     * 例：findFields(id, FIELD_NAME, FIELD_AGE)
+     *
+     * @Param: [id, fields]
+     * @return: com.guorenjie.helloredis.entity.User
+     */
+    public User findFields(String id, String... fields) {
+        if (id == null || fields == null || fields.length == 0) {
+            return null;
+        }
+        List<Object> names = new ArrayList<>(fields.length);
+        for (String field : fields) {
+            checkField(field);
+            names.add(field);
+        }
+        List<Object> values = redisUtil.hmGet(key(id), names);
+        Map<Object, Object> hash = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            if (values.get(i) != null) {
+                hash.put(fields[i], values.get(i));
+            }
+        }
+        return hash.isEmpty() ? null : fromHash(hash);
+    }
+
+    /**
+     * 只更新一个字段，User不存在时不写入
+     *
+     * @Param: [id, field, value]
+     * @return: boolean User不存在返回false
+     */
+    public boolean updateField(String id, String field, Object value) {
+        checkField(field);
+        if (FIELD_ID.equals(field)) {
+            throw new IllegalArgumentException("updateField 不能修改id");
+        }
+        return redisUtil.hmSetIfExists(key(id), Collections.singletonMap(field, value), config.getTtlSeconds(),
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * 只更新给出的字段，User不存在时不写入
+     *
+     * @Param: [id, fields]
+     * @return: boolean User不存在返回false
+     */
+    public boolean updateFields(String id, Map<String, Object> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return false;
+        }
+        for (String field : fields.keySet()) {
+            checkField(field);
+        }
+        if (fields.containsKey(FIELD_ID)) {
+            throw new IllegalArgumentException("updateFields 不能修改id");
+        }
+        return redisUtil.hmSetIfExists(key(id), fields, config.getTtlSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * 原子地增加年龄，返回增加后的值
+     *
+     * @Param: [id, delta]
+     * @return: java.lang.Long User不存在返回null
+     */
+    public Long incrementAge(String id, long delta) {
+        return redisUtil.hIncrbyIfExists(key(id), FIELD_AGE, delta, config.getTtlSeconds(), TimeUnit.SECONDS);
+    }
+
+    public boolean delete(String id) {
+        return id != null && redisUtil.delete(key(id));
+    }
+
+    static Map<String, Object> toHash(User user) {
+        Map<String, Object> hash = new LinkedHashMap<>();
+        hash.put(FIELD_ID, user.getId());
+        if (user.getName() != null) {
+            hash.put(FIELD_NAME, user.getName());
+        }
+        hash.put(FIELD_AGE, user.getAge());
+        if (user.getEmail() != null) {
+            hash.put(FIELD_EMAIL, user.getEmail());
+        }
+        return hash;
+    }
+
+    /**
+     * 整体保存时需要删除的字段，即值为null、没有出现在hash中的字段
+     */
+    static List<String> clearedFields(Map<String, Object> hash) {
+        List<String> cleared = new ArrayList<>();
+        for (String field : FIELDS) {
+            if (!hash.containsKey(field)) {
+                cleared.add(field);
+            }
+        }
+        return cleared;
+    }
+
+    static User fromHash(Map<Object, Object> hash) {
+        User user = new User();
+        Object id = hash.get(FIELD_ID);
+        Object name = hash.get(FIELD_NAME);
+        Object age = hash.get(FIELD_AGE);
+        Object email = hash.get(FIELD_EMAIL);
+        user.setId(id == null ? null : id.toString());
+        user.setName(name == null ? null : name.toString());
+        //数值在json/compact中都可能被读成Integer或Long，HINCRBY之后也可能是字符串
+        if (age instanceof Number) {
+            user.setAge(((Number) age).longValue());
+        } else if (age != null) {
+            user.setAge(Long.parseLong(age.toString()));
+        }
+        user.setEmail(email == null ? null : email.toString());
+        return user;
+    }
+
+    private static void checkField(String field) {
+        if (!FIELDS.contains(field)) {
+            throw new IllegalArgumentException("User没有字段: " + field);
+        }
+    }
+
+    private String key(String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("id不能为null");
+        }
+        return config.getHashKeyPrefix() + id;
+    }
+}
@@ -0,0 +1,81 @@
+package com.guorenjie.helloredis.repository;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.entity.User;
+import com.guorenjie.helloredis.util.RedisUtil;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description User读写入口：读先走redis，未命中再查MySQL并回填；
+ * 写先更新redis，再进入写回队列异步批量落MySQL
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Repository
+public class UserRepository {
+
+    private final RedisUtil redisUtil;
+    private final UserDao userDao;
+    private final UserWriteBehind writeBehind;
+    private final HelloRedisProperties.UserRepository config;
+
+    public UserRepository(RedisUtil redisUtil, UserDao userDao, HelloRedisProperties properties) {
+        this.redisUtil = redisUtil;
+        this.userDao = userDao;
+        this.config = properties.getUserRepository();
+        this.writeBehind = new UserWriteBehind(userDao, config.getFlushIntervalMillis(),
+                config.getBatchSize(), config.getMaxPending());
+    }
+
+    /**
+     * 按id读取，redis未命中时从MySQL加载并回填，并发未命中只查一次库
+     * 写回队列中还没落库的更新优先于MySQL中的旧数据
+     *
+     * @Param: [id]
+     * @return: com.guorenjie.helloredis.entity.User
+     */
+    public User findById(String id) {
+        if (id == null) {
+            return null;
+        }
+        return (User) redisUtil.getOrLoad(key(id), () -> {
+            User pending = writeBehind.getPending(id);
+            return pending != null ? pending : userDao.findById(id);
+        }, config.getTtlSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * 保存：立即写redis，MySQL异步批量写入
+     *
+     * @Param: [user]
+     * @return: void
+     */
+    public void save(User user) {
+        if (user == null || user.getId() == null) {
+            throw new IllegalArgumentException("save user和id不能为null");
+        }
+        redisUtil.set(key(user.getId()), user, config.getTtlSeconds(), TimeUnit.SECONDS);
+        writeBehind.enqueue(user);
+    }
+
+    /**
+     * 立即把写回队列中的数据写入MySQL
+     *
+     * @return: int
+     */
+    public int flush() {
+        return writeBehind.flush();
+    }
+
+    @PreDestroy
+    public void close() {
+        writeBehind.close();
+    }
+
+    private String key(String id) {
+        return config.getKeyPrefix() + id;
+    }
+}
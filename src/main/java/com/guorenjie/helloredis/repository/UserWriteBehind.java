@@ -0,0 +1,121 @@
+package com.guorenjie.helloredis.repository;
+
+import com.guorenjie.helloredis.entity.User;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description User异步写回MySQL的队列
+ * 同一个id的多次更新在队列里合并成最后一次，后台线程按固定间隔(或者攒够一批时)批量写入；
+ * 积压超过上限时写入方同步刷盘，限制最大滞后；关闭时刷完剩余数据
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class UserWriteBehind implements AutoCloseable {
+
+    private final UserDao userDao;
+    private final int batchSize;
+    private final int maxPending;
+    private final ConcurrentHashMap<String, User> pending = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    public UserWriteBehind(UserDao userDao, long flushIntervalMillis, int batchSize, int maxPending) {
+        if (flushIntervalMillis <= 0 || batchSize <= 0 || maxPending < batchSize) {
+            throw new IllegalArgumentException("UserWriteBehind 参数不合法");
+        }
+        this.userDao = userDao;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加入写回队列，同一个id只保留最新的一次
+     *
+     * @Param: [user]
+     * @return: void
+     */
+    public void enqueue(User user) {
+        if (user == null || user.getId() == null) {
+            throw new IllegalArgumentException("enqueue user和id不能为null");
+        }
+        pending.put(user.getId(), user);
+        int size = pending.size();
+        if (size >= maxPending) {
+            //MySQL跟不上时由写入方承担刷盘，形成背压
+            flush();
+        } else if (size >= batchSize) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * 还没写回MySQL的最新值，没有返回null
+     *
+     * @Param: [id]
+     * @return: com.guorenjie.helloredis.entity.User
+     */
+    public User getPending(String id) {
+        return id == null ? null : pending.get(id);
+    }
+
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * 把进入时的积压写回MySQL，期间新加入或再次更新的id留给下一次，不会因为写入方持续写入而一直不返回
+     *
+     * @return: int 写入的行数
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            List<User> snapshot = new ArrayList<>(pending.values());
+            int total = 0;
+            for (int from = 0; from < snapshot.size(); from += batchSize) {
+                List<User> batch = snapshot.subList(from, Math.min(from + batchSize, snapshot.size()));
+                userDao.batchUpsert(batch);
+                for (User user : batch) {
+                    //期间又有更新的id留在队列里，下一次写入
+                    pending.remove(user.getId(), user);
+                }
+                total += batch.size();
+            }
+            return total;
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("User写回MySQL失败，{}条保留在队列中下次重试", pending.size(), e);
+        }
+    }
+}
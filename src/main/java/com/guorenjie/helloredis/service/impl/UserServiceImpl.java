@@ -1,11 +1,15 @@
 package com.guorenjie.helloredis.service.impl;
 
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.guorenjie.helloredis.util.ReactiveRedisUtil;
+import com.guorenjie.helloredis.util.RedisBloomFilter;
 import com.guorenjie.helloredis.util.RedisUtil;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.Resource;
 
@@ -19,10 +23,47 @@ public class UserServiceImpl {
 	@Resource
     RedisUtil redisUtil;
 
+	@Resource
+	ReactiveRedisUtil reactiveRedisUtil;
+
+	/**
+	 * key布隆过滤器，未开启时为null
+	 */
+	@Autowired(required = false)
+	RedisBloomFilter keyFilter;
 
+
+	/**
+	 * 布隆过滤器判定一定不存在的key直接返回null，不访问redis
+	 */
     public Object getString(String key) {
+		if (keyFilter != null && !keyFilter.mightContain(key)) {
+			return null;
+		}
 		return  redisUtil.get(key);
 	}
+
+	/**
+	 * 非阻塞版本的getString，key不存在时为空Mono
+	 */
+	public Mono<Object> getStringReactive(String key) {
+		if (keyFilter != null && !keyFilter.mightContain(key)) {
+			return Mono.empty();
+		}
+		return reactiveRedisUtil.get(key);
+	}
+	/**
+	 * 读取key，未命中时回源并写回，并发未命中同一个key时只回源一次
+	 */
+	public Object getOrLoad(String key, Supplier<?> loader, long time, TimeUnit timeUnit) {
+		return redisUtil.getOrLoad(key, loader, time, timeUnit);
+	}
+	/**
+	 * 读取key，接近过期时按概率在后台提前回源，调用方不会阻塞在过期的瞬间
+	 */
+	public Object getOrRefresh(String key, Supplier<?> loader, long time, TimeUnit timeUnit) {
+		return redisUtil.getOrRefresh(key, loader, time, timeUnit);
+	}
 	public boolean setString(String key,Object object,long time,TimeUnit timeUnit) {
 		return redisUtil.setIfAbsent(key, object, time, timeUnit);
 	}
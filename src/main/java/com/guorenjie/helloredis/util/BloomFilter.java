@@ -0,0 +1,193 @@
+package com.guorenjie.helloredis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Description 进程内布隆过滤器，位的排列与redis bitmap相同(第i位是第i/8个字节的第i%8高位)，
+ * 可以直接与GETRANGE取回的字节合并；位只会被置1，并发写入无锁
+ * 按预计元素数n和误判率p计算：位数m = -n*ln(p)/(ln2)^2，哈希函数个数k = m/n*ln2，
+ * k个位置由两个murmur3哈希组合得到(h1 + i*h2)
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class BloomFilter {
+
+    /**
+     * redis字符串最大512MB
+     */
+    static final long MAX_BITS = 512L * 1024 * 1024 * 8;
+
+    private final long bits;
+    private final int hashes;
+    private final AtomicLongArray words;
+
+    public BloomFilter(long bits, int hashes) {
+        if (bits <= 0 || bits > MAX_BITS || hashes <= 0) {
+            throw new IllegalArgumentException("BloomFilter 位数必须在(0, 2^32]之间，哈希函数个数必须大于0");
+        }
+        this.bits = bits;
+        this.hashes = hashes;
+        this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+    }
+
+    /**
+     * 按预计元素数和误判率创建
+     *
+     * @Param: [expectedInsertions, falsePositiveRate]
+     * @return: com.guorenjie.helloredis.util.BloomFilter
+     */
+    public static BloomFilter create(long expectedInsertions, double falsePositiveRate) {
+        long bits = optimalBits(expectedInsertions, falsePositiveRate);
+        return new BloomFilter(bits, optimalHashes(bits, expectedInsertions));
+    }
+
+    public static long optimalBits(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("optimalBits 预计元素数必须大于0，误判率必须在(0, 1)之间");
+        }
+        double bits = -expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return Math.min(MAX_BITS, Math.max(64, (long) Math.ceil(bits)));
+    }
+
+    public static int optimalHashes(long bits, long expectedInsertions) {
+        return Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+    }
+
+    public long bitSize() {
+        return bits;
+    }
+
+    public int hashCount() {
+        return hashes;
+    }
+
+    /**
+     * 对应的redis bitmap字节数
+     *
+     * @return: long
+     */
+    public long byteSize() {
+        return (bits + 7) >>> 3;
+    }
+
+    /**
+     * key对应的k个位
+     *
+     * @Param: [key]
+     * @return: long[]
+     */
+    public long[] offsets(String key) {
+        byte[] data = key.getBytes(StandardCharsets.UTF_8);
+        int h1 = murmur3(data, 0);
+        int h2 = murmur3(data, h1);
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod((h1 & 0xFFFFFFFFL) + (long) i * (h2 & 0xFFFFFFFFL), bits);
+        }
+        return offsets;
+    }
+
+    public void put(String key) {
+        set(offsets(key));
+    }
+
+    public void set(long[] offsets) {
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << (63 - (offset & 63));
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+    }
+
+    /**
+     * false表示一定不存在，true表示可能存在
+     *
+     * @Param: [key]
+     * @return: boolean
+     */
+    public boolean mightContain(String key) {
+        for (long offset : offsets(key)) {
+            if ((words.get((int) (offset >>> 6)) & (1L << (63 - (offset & 63)))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把从byteOffset开始的一段bitmap按位或进来
+     *
+     * @Param: [chunk, byteOffset]
+     * @return: void
+     */
+    public void merge(byte[] chunk, long byteOffset) {
+        for (int i = 0; i < chunk.length; i++) {
+            if (chunk[i] == 0) {
+                continue;
+            }
+            long position = byteOffset + i;
+            int index = (int) (position >>> 3);
+            if (index >= words.length()) {
+                break;
+            }
+            long bitsOfByte = (chunk[i] & 0xFFL) << (56 - ((position & 7) << 3));
+            long word = words.get(index);
+            while ((word | bitsOfByte) != word && !words.compareAndSet(index, word, word | bitsOfByte)) {
+                word = words.get(index);
+            }
+        }
+    }
+
+    /**
+     * 置1的位数占比，接近0.5时误判率开始明显超过设计值
+     *
+     * @return: double
+     */
+    public double fillRatio() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return (double) set / bits;
+    }
+
+    private static int murmur3(byte[] data, int seed) {
+        int h = seed;
+        int length = data.length;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            int k = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | data[i + 3] << 24;
+            h ^= mixK(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        int k = 0;
+        switch (length - i) {
+            case 3:
+                k ^= (data[i + 2] & 0xFF) << 16;
+            case 2:
+                k ^= (data[i + 1] & 0xFF) << 8;
+            case 1:
+                k ^= data[i] & 0xFF;
+                h ^= mixK(k);
+            default:
+                break;
+        }
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixK(int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1b873593;
+    }
+}
@@ -0,0 +1,557 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * @Description 大value分块存储，避免单个大key的读写阻塞redis
+ * 序列化后超过阈值的value拆成多个分块key，原key只保存一个很小的清单(MARKER + nonce|分块数|总长度)，
+ * 读取时按清单逐块取回再拼接；覆盖或删除时顺带清理旧分块。
+ * 分块带与清单相同的过期时间，expire/persist同时作用于清单和分块，分块缺失时按未命中处理。
+ * RedisUtil、RedisBatch、ReactiveRedisUtil的String读写(set/get/getSet/mget/delete/expire/persist)都经过这里；
+ * setIfAbsent只在key不存在时写入，不会覆盖已有的分块，写入的大value不分块
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class ChunkedValueStore {
+
+    /**
+     * 清单前缀，以0x00开头，不会与json或紧凑二进制格式冲突
+     */
+    static final byte[] MARKER = "\u0000HRCHUNK".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 清单最大长度，超过这个长度的旧值肯定不是清单，不需要读回来
+     */
+    private static final int MAX_MANIFEST_LENGTH = 128;
+
+    /**
+     * 写入新值并返回旧值(仅当旧值是清单时)，一次往返内完成
+     */
+    static final RedisScript<byte[]> SET_SCRIPT = new DefaultRedisScript<>(
+            "local prev = false " +
+            "if redis.call('type', KEYS[1]).ok == 'string' and redis.call('strlen', KEYS[1]) <= tonumber(ARGV[4]) then " +
+                    "prev = redis.call('get', KEYS[1]) " +
+            "end " +
+            "if tonumber(ARGV[2]) > 0 then " +
+                    "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "else " +
+                    "redis.call('set', KEYS[1], ARGV[1]) " +
+            "end " +
+            "if prev and string.sub(prev, 1, string.len(ARGV[3])) == ARGV[3] then return prev end " +
+            "return false", byte[].class);
+
+    /**
+     * 删除key，旧值是清单时返回清单，否则返回删除的key数
+     */
+    static final RedisScript<byte[]> DELETE_SCRIPT = new DefaultRedisScript<>(
+            "local prev = false " +
+            "if redis.call('type', KEYS[1]).ok == 'string' and redis.call('strlen', KEYS[1]) <= tonumber(ARGV[2]) then " +
+                    "prev = redis.call('get', KEYS[1]) " +
+            "end " +
+            "local deleted = redis.call('del', KEYS[1]) " +
+            "if prev and string.sub(prev, 1, string.len(ARGV[1])) == ARGV[1] then return prev end " +
+            "return tostring(deleted)", byte[].class);
+
+    /**
+     * 写入新值并返回完整的旧值，一次往返内完成，用于getSet
+     */
+    static final RedisScript<byte[]> GET_AND_SET_SCRIPT = new DefaultRedisScript<>(
+            "local prev = redis.call('get', KEYS[1]) " +
+            "if tonumber(ARGV[2]) > 0 then " +
+                    "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "else " +
+                    "redis.call('set', KEYS[1], ARGV[1]) " +
+            "end " +
+            "return prev", byte[].class);
+
+    /**
+     * 不存在时写入并返回false，已存在时返回当前值
+     */
+    static final RedisScript<byte[]> SET_IF_ABSENT_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return false end " +
+            "return redis.call('get', KEYS[1])", byte[].class);
+
+    /**
+     * ARGV[1]大于等于0时PEXPIRE，否则PERSIST；返回{命令结果}，旧值是清单时返回{命令结果, 清单}
+     */
+    @SuppressWarnings("rawtypes")
+    static final RedisScript<List> EXPIRE_SCRIPT = new DefaultRedisScript<>(
+            "local prev = false " +
+            "if redis.call('type', KEYS[1]).ok == 'string' and redis.call('strlen', KEYS[1]) <= tonumber(ARGV[3]) then " +
+                    "prev = redis.call('get', KEYS[1]) " +
+            "end " +
+            "local result " +
+            "if tonumber(ARGV[1]) >= 0 then " +
+                    "result = redis.call('pexpire', KEYS[1], ARGV[1]) " +
+            "else " +
+                    "result = redis.call('persist', KEYS[1]) " +
+            "end " +
+            "if prev and string.sub(prev, 1, string.len(ARGV[2])) == ARGV[2] then return {result, prev} end " +
+            "return {result}", List.class);
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    /**
+     * 读命令使用的模板，开启读路由时由路由决定读从节点还是主节点；清单和分块从同一个模板读取
+     */
+    private final Supplier<RedisTemplate<String, Object>> reads;
+    private final RedisSerializer<String> keySerializer;
+    private final RedisSerializer<Object> valueSerializer;
+    private final int thresholdBytes;
+    private final int chunkBytes;
+    private final byte[] maxManifestLength = String.valueOf(MAX_MANIFEST_LENGTH).getBytes(StandardCharsets.US_ASCII);
+
+    public ChunkedValueStore(RedisTemplate<String, Object> redisTemplate, int thresholdBytes, int chunkBytes) {
+        this(redisTemplate, () -> redisTemplate, thresholdBytes, chunkBytes);
+    }
+
+    /**
+     * @param reads 每次读取时调用，返回读命令使用的模板
+     */
+    @SuppressWarnings("unchecked")
+    public ChunkedValueStore(RedisTemplate<String, Object> redisTemplate,
+                             Supplier<RedisTemplate<String, Object>> reads, int thresholdBytes, int chunkBytes) {
+        if (chunkBytes <= 0 || thresholdBytes < chunkBytes) {
+            throw new IllegalArgumentException("ChunkedValueStore 分块大小必须大于0且不大于阈值");
+        }
+        this.redisTemplate = redisTemplate;
+        this.reads = reads;
+        this.keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        this.valueSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        this.thresholdBytes = thresholdBytes;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * 写入value，超过阈值时分块；ttlMillis小于等于0表示不过期
+     *
+     * @Param: [key, value, ttlMillis]
+     * @return: void
+     */
+    public void write(String key, Object value, long ttlMillis) {
+        byte[] stored = store(key, valueSerializer.serialize(value), ttlMillis);
+        byte[] previous = redisTemplate.execute(SET_SCRIPT, RedisSerializer.byteArray(), RedisSerializer.byteArray(),
+                Collections.singletonList(key), stored, decimal(ttlMillis), MARKER, maxManifestLength);
+        deleteChunks(key, Manifest.decode(previous));
+    }
+
+    /**
+     * 写入value并返回旧值，旧值是分块存储的先取回再清理分块；ttlMillis小于等于0表示不过期
+     *
+     * @Param: [key, value, ttlMillis]
+     * @return: java.lang.Object 旧值，不存在返回null
+     */
+    public Object getAndWrite(String key, Object value, long ttlMillis) {
+        byte[] stored = store(key, valueSerializer.serialize(value), ttlMillis);
+        byte[] previous = redisTemplate.execute(GET_AND_SET_SCRIPT, RedisSerializer.byteArray(),
+                RedisSerializer.byteArray(), Collections.singletonList(key), stored, decimal(ttlMillis));
+        Manifest manifest = Manifest.decode(previous);
+        if (manifest == null) {
+            return valueSerializer.deserialize(previous);
+        }
+        try {
+            return assemble(redisTemplate, key, manifest);
+        } finally {
+            deleteChunks(key, manifest);
+        }
+    }
+
+    /**
+     * key不存在时写入value并返回null，已存在时不修改，返回当前值(分块存储的取回后拼接)
+     *
+     * @Param: [key, value, ttlMillis]
+     * @return: java.lang.Object
+     */
+    public Object writeIfAbsent(String key, Object value, long ttlMillis) {
+        byte[] stored = store(key, valueSerializer.serialize(value), ttlMillis);
+        byte[] current = redisTemplate.execute(SET_IF_ABSENT_SCRIPT, RedisSerializer.byteArray(),
+                RedisSerializer.byteArray(), Collections.singletonList(key), stored, decimal(ttlMillis));
+        if (current == null) {
+            return null;
+        }
+        //没有写入，清理本次预先写好的分块
+        deleteChunks(key, Manifest.decode(stored));
+        return resolve(key, current);
+    }
+
+    /**
+     * 读取value，分块存储的value逐块取回后拼接
+     *
+     * @Param: [key]
+     * @return: java.lang.Object
+     */
+    public Object read(String key) {
+        RedisTemplate<String, Object> template = reads.get();
+        byte[] rawKey = keySerializer.serialize(key);
+        byte[] raw = template.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+        return resolve(template, key, raw);
+    }
+
+    /**
+     * 批量读取，一次MGET取回全部清单或value，分块存储的再逐个取回
+     *
+     * @Param: [keys]
+     * @return: java.util.List<java.lang.Object>
+     */
+    public List<Object> readAll(List<String> keys) {
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = keySerializer.serialize(keys.get(i));
+        }
+        RedisTemplate<String, Object> template = reads.get();
+        List<byte[]> raws = template.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        List<Object> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(resolve(template, keys.get(i), raws == null ? null : raws.get(i)));
+        }
+        return values;
+    }
+
+    /**
+     * 把管道中GET取回的原始字节还原为value，是清单时从同一个模板取回分块拼接
+     *
+     * @Param: [key, raw]
+     * @return: java.lang.Object
+     */
+    Object resolve(String key, byte[] raw) {
+        return resolve(redisTemplate, key, raw);
+    }
+
+    private Object resolve(RedisTemplate<String, Object> template, String key, byte[] raw) {
+        Manifest manifest = Manifest.decode(raw);
+        return manifest == null ? valueSerializer.deserialize(raw) : assemble(template, key, manifest);
+    }
+
+    private Object assemble(RedisTemplate<String, Object> template, String key, Manifest manifest) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) manifest.length);
+        try (InputStream in = new ChunkInputStream(template, key, manifest)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (MissingChunkException e) {
+            log.warn("大value {} 的分块已缺失，按未命中处理: {}", key, e.getMessage());
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return valueSerializer.deserialize(out.toByteArray());
+    }
+
+    /**
+     * 以流的形式读取value序列化后的字节，分块按需逐个取回，不会一次性把整个value读进内存
+     * key不存在返回null
+     *
+     * @Param: [key]
+     * @return: java.io.InputStream
+     */
+    public InputStream openStream(String key) {
+        RedisTemplate<String, Object> template = reads.get();
+        byte[] rawKey = keySerializer.serialize(key);
+        byte[] raw = template.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+        if (raw == null) {
+            return null;
+        }
+        Manifest manifest = Manifest.decode(raw);
+        return manifest == null ? new ByteArrayInputStream(raw) : new ChunkInputStream(template, key, manifest);
+    }
+
+    /**
+     * 删除key，是清单时一并删除分块
+     *
+     * @Param: [key]
+     * @return: boolean key存在并被删除返回true
+     */
+    public boolean delete(String key) {
+        byte[] previous = redisTemplate.execute(DELETE_SCRIPT, RedisSerializer.byteArray(), RedisSerializer.byteArray(),
+                Collections.singletonList(key), MARKER, maxManifestLength);
+        return afterDelete(key, previous) == 1L;
+    }
+
+    /**
+     * 设置过期时间，是清单时分块一并设置；ttlMillis小于等于0时与redis相同，直接删除key
+     *
+     * @Param: [key, ttlMillis]
+     * @return: boolean key存在返回true
+     */
+    public boolean expire(String key, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return delete(key);
+        }
+        return applyExpire(key, ttlMillis);
+    }
+
+    /**
+     * 移除过期时间，是清单时分块一并移除
+     *
+     * @Param: [key]
+     * @return: boolean 移除了过期时间返回true
+     */
+    public boolean persist(String key) {
+        return applyExpire(key, -1);
+    }
+
+    /**-----------------------------RedisBatch管道中使用-------------------------------------*/
+    /**
+     * 序列化后的value超过阈值时写入分块并返回清单，否则原样返回；在管道之外调用
+     */
+    byte[] store(String key, byte[] raw, long ttlMillis) {
+        if (raw.length <= thresholdBytes) {
+            return raw;
+        }
+        Manifest manifest = new Manifest(UUID.randomUUID().toString(), (raw.length + chunkBytes - 1) / chunkBytes,
+                raw.length);
+        writeChunks(key, manifest, raw, ttlMillis);
+        return manifest.encode();
+    }
+
+    /**
+     * 在管道中排入写入命令，管道结果交给afterSet
+     */
+    void queueSet(RedisConnection connection, byte[] rawKey, byte[] stored, long ttlMillis) {
+        eval(connection, SET_SCRIPT, ReturnType.VALUE, rawKey, stored, decimal(ttlMillis), MARKER, maxManifestLength);
+    }
+
+    void afterSet(String key, Object previous) {
+        deleteChunks(key, Manifest.decode((byte[]) previous));
+    }
+
+    /**
+     * 在管道中排入删除命令，管道结果交给afterDelete
+     */
+    void queueDelete(RedisConnection connection, byte[] rawKey) {
+        eval(connection, DELETE_SCRIPT, ReturnType.VALUE, rawKey, MARKER, maxManifestLength);
+    }
+
+    long afterDelete(String key, Object previous) {
+        Manifest manifest = Manifest.decode((byte[]) previous);
+        if (manifest == null) {
+            return previous == null ? 0L : Long.parseLong(new String((byte[]) previous, StandardCharsets.US_ASCII));
+        }
+        deleteChunks(key, manifest);
+        return 1L;
+    }
+
+    /**
+     * 在管道中排入设置过期时间的命令，ttlMillis必须大于0，管道结果交给afterExpire
+     */
+    void queueExpire(RedisConnection connection, byte[] rawKey, long ttlMillis) {
+        eval(connection, EXPIRE_SCRIPT, ReturnType.MULTI, rawKey, decimal(ttlMillis), MARKER, maxManifestLength);
+    }
+
+    boolean afterExpire(String key, Object result, long ttlMillis) {
+        List<?> reply = (List<?>) result;
+        if (reply.size() > 1) {
+            expireChunks(key, Manifest.decode((byte[]) reply.get(1)), ttlMillis);
+        }
+        return Long.valueOf(1L).equals(reply.get(0));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private boolean applyExpire(String key, long ttlMillis) {
+        List<?> reply = redisTemplate.execute(EXPIRE_SCRIPT, RedisSerializer.byteArray(),
+                (RedisSerializer) RedisSerializer.byteArray(), Collections.singletonList(key), decimal(ttlMillis),
+                MARKER, maxManifestLength);
+        return afterExpire(key, reply, ttlMillis);
+    }
+
+    /**
+     * 管道中无法在NOSCRIPT时重试，直接用EVAL发送脚本正文
+     */
+    private static void eval(RedisConnection connection, RedisScript<?> script, ReturnType returnType, byte[] rawKey,
+                             byte[]... args) {
+        byte[][] keysAndArgs = new byte[1 + args.length][];
+        keysAndArgs[0] = rawKey;
+        System.arraycopy(args, 0, keysAndArgs, 1, args.length);
+        connection.scriptingCommands().eval(script.getScriptAsString().getBytes(StandardCharsets.UTF_8), returnType,
+                1, keysAndArgs);
+    }
+
+    private static byte[] decimal(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void writeChunks(String key, Manifest manifest, byte[] raw, long ttlMillis) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < manifest.chunks; i++) {
+                int from = i * chunkBytes;
+                byte[] chunk = Arrays.copyOfRange(raw, from, Math.min(raw.length, from + chunkBytes));
+                byte[] chunkKey = keySerializer.serialize(manifest.chunkKey(key, i));
+                if (ttlMillis > 0) {
+                    connection.stringCommands().set(chunkKey, chunk, Expiration.milliseconds(ttlMillis),
+                            RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.stringCommands().set(chunkKey, chunk);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * ttlMillis小于0时移除分块的过期时间
+     */
+    private void expireChunks(String key, Manifest manifest, long ttlMillis) {
+        if (manifest == null) {
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < manifest.chunks; i++) {
+                byte[] chunkKey = keySerializer.serialize(manifest.chunkKey(key, i));
+                if (ttlMillis >= 0) {
+                    connection.keyCommands().pExpire(chunkKey, ttlMillis);
+                } else {
+                    connection.keyCommands().persist(chunkKey);
+                }
+            }
+            return null;
+        });
+    }
+
+    private void deleteChunks(String key, Manifest manifest) {
+        if (manifest == null) {
+            return;
+        }
+        List<byte[]> chunkKeys = new ArrayList<>(manifest.chunks);
+        for (int i = 0; i < manifest.chunks; i++) {
+            chunkKeys.add(keySerializer.serialize(manifest.chunkKey(key, i)));
+        }
+        //UNLINK在后台线程释放内存，不阻塞redis
+        redisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.keyCommands().unlink(chunkKeys.toArray(new byte[0][])));
+    }
+
+    /**
+     * 分块清单
+     */
+    static final class Manifest {
+        private final String nonce;
+        private final int chunks;
+        private final long length;
+
+        Manifest(String nonce, int chunks, long length) {
+            this.nonce = nonce;
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        String chunkKey(String key, int index) {
+            return key + ":chunk:" + nonce + ":" + index;
+        }
+
+        byte[] encode() {
+            byte[] body = (nonce + "|" + chunks + "|" + length).getBytes(StandardCharsets.US_ASCII);
+            byte[] encoded = Arrays.copyOf(MARKER, MARKER.length + body.length);
+            System.arraycopy(body, 0, encoded, MARKER.length, body.length);
+            return encoded;
+        }
+
+        static Manifest decode(byte[] raw) {
+            if (raw == null || raw.length <= MARKER.length || raw.length > MAX_MANIFEST_LENGTH) {
+                return null;
+            }
+            for (int i = 0; i < MARKER.length; i++) {
+                if (raw[i] != MARKER[i]) {
+                    return null;
+                }
+            }
+            String[] parts = new String(raw, MARKER.length, raw.length - MARKER.length, StandardCharsets.US_ASCII)
+                    .split("\\|");
+            if (parts.length != 3) {
+                return null;
+            }
+            return new Manifest(parts[0], Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+        }
+    }
+
+    /**
+     * 分块已过期或被删除
+     */
+    static final class MissingChunkException extends IOException {
+        MissingChunkException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 按需逐个取回分块的输入流
+     */
+    private final class ChunkInputStream extends InputStream {
+        private final RedisTemplate<String, Object> template;
+        private final String key;
+        private final Manifest manifest;
+        private int nextChunk;
+        private byte[] current = new byte[0];
+        private int position;
+
+        private ChunkInputStream(RedisTemplate<String, Object> template, String key, Manifest manifest) {
+            this.template = template;
+            this.key = key;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int read = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        private boolean fill() throws IOException {
+            while (position >= current.length) {
+                if (nextChunk >= manifest.chunks) {
+                    return false;
+                }
+                byte[] chunkKey = keySerializer.serialize(manifest.chunkKey(key, nextChunk));
+                byte[] chunk = template.execute(
+                        (RedisCallback<byte[]>) connection -> connection.stringCommands().get(chunkKey));
+                if (chunk == null) {
+                    throw new MissingChunkException("chunk " + nextChunk + "/" + manifest.chunks);
+                }
+                nextChunk++;
+                current = chunk;
+                position = 0;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.guorenjie.helloredis.util;
+
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Description redis集群key工具
+ * 集群模式下多key命令要求所有key在同一个slot，相关的key用同一个hash tag({...}中的部分)保证落在同一个slot：
+ * ClusterKeys.colocated("user:5", "profile") 和 ClusterKeys.colocated("user:5", "orders") 总在同一个slot
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public final class ClusterKeys {
+
+    private ClusterKeys() {
+    }
+
+    /**
+     * 把tag包装成hash tag，tag本身不能包含'{'或'}'
+     *
+     * @Param: [tag]
+     * @return: java.lang.String
+     */
+    public static String hashTag(String tag) {
+        if (tag == null || tag.isEmpty() || tag.indexOf('{') >= 0 || tag.indexOf('}') >= 0) {
+            throw new IllegalArgumentException("hashTag tag不能为空且不能包含花括号: " + tag);
+        }
+        return "{" + tag + "}";
+    }
+
+    /**
+     * 生成与tag同slot的key，格式为{tag}:part1:part2
+     *
+     * @Param: [tag, parts]
+     * @return: java.lang.String
+     */
+    public static String colocated(String tag, String... parts) {
+        StringBuilder key = new StringBuilder(hashTag(tag));
+        for (String part : parts) {
+            key.append(':').append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * key所在的slot，有hash tag时只按tag计算
+     *
+     * @Param: [key]
+     * @return: int
+     */
+    public static int slot(String key) {
+        return ClusterSlotHashUtil.calculateSlot(key);
+    }
+
+    /**
+     * 所有key是否在同一个slot
+     *
+     * @Param: [keys]
+     * @return: boolean
+     */
+    public static boolean sameSlot(Collection<String> keys) {
+        int slot = -1;
+        for (String key : keys) {
+            int current = slot(key);
+            if (slot >= 0 && current != slot) {
+                return false;
+            }
+            slot = current;
+        }
+        return true;
+    }
+
+    /**
+     * 按slot分组，value是key在keys中的下标，组内保持原有顺序，便于把结果按调用方的顺序合并回去
+     *
+     * @Param: [keys]
+     * @return: java.util.Map<java.lang.Integer, java.util.List<java.lang.Integer>>
+     */
+    public static Map<Integer, List<Integer>> groupBySlot(List<String> keys) {
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(slot(keys.get(i)), slot -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+}
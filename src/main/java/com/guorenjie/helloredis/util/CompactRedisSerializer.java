@@ -0,0 +1,393 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.entity.User;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Description 紧凑二进制value序列化，替代带类名的jackson json
+ * 格式：[MAGIC][格式版本][类型id][数据]，类型id通过register注册，未注册的类型退回json
+ * Integer/Long写成十进制文本(不带头)，保证INCRBY/HINCRBY等命令仍然可用
+ * 不以MAGIC开头的数据按json读取，切换序列化方式期间旧数据依然可读
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class CompactRedisSerializer implements RedisSerializer<Object> {
+
+    /**
+     * 0xFE不是合法的utf-8首字节，也不会出现在json开头，用于区分新旧格式
+     */
+    public static final byte MAGIC = (byte) 0xFE;
+    public static final byte FORMAT_VERSION = 1;
+
+    public static final int TYPE_STRING = 1;
+    public static final int TYPE_BOOLEAN = 2;
+    public static final int TYPE_DOUBLE = 3;
+    public static final int TYPE_BYTES = 4;
+    public static final int TYPE_USER = 16;
+    /**
+     * 未注册类型，数据部分是fallback序列化的结果
+     */
+    public static final int TYPE_FALLBACK = 127;
+
+    private static final int HEADER_LENGTH = 3;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RedisSerializer<Object> fallback;
+    private final Registration<?>[] byId = new Registration<?>[256];
+    private final Map<Class<?>, Registration<?>> byClass = new HashMap<>();
+
+    /**
+     * @param fallback 未注册类型以及旧数据使用的序列化方式，一般是原来的jackson序列化
+     */
+    public CompactRedisSerializer(RedisSerializer<Object> fallback) {
+        this.fallback = fallback;
+        register(TYPE_STRING, String.class, new Codec<String>() {
+            @Override
+            public void write(String value, Output out) {
+                out.writeRaw(value.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public String read(Input in) {
+                return in.readRemainingString();
+            }
+        });
+        register(TYPE_BOOLEAN, Boolean.class, new Codec<Boolean>() {
+            @Override
+            public void write(Boolean value, Output out) {
+                out.writeByte(value ? 1 : 0);
+            }
+
+            @Override
+            public Boolean read(Input in) {
+                return in.readByte() != 0;
+            }
+        });
+        register(TYPE_DOUBLE, Double.class, new Codec<Double>() {
+            @Override
+            public void write(Double value, Output out) {
+                out.writeFixed64(Double.doubleToLongBits(value));
+            }
+
+            @Override
+            public Double read(Input in) {
+                return Double.longBitsToDouble(in.readFixed64());
+            }
+        });
+        register(TYPE_BYTES, byte[].class, new Codec<byte[]>() {
+            @Override
+            public void write(byte[] value, Output out) {
+                out.writeRaw(value);
+            }
+
+            @Override
+            public byte[] read(Input in) {
+                return in.readRemaining();
+            }
+        });
+        register(TYPE_USER, User.class, new UserCodec());
+    }
+
+    /**
+     * 注册类型，typeId一旦写入redis就不能再改变含义
+     *
+     * @Param: [typeId, type, codec]
+     * @return: void
+     */
+    public <T> void register(int typeId, Class<T> type, Codec<T> codec) {
+        if (typeId <= 0 || typeId >= TYPE_FALLBACK || type == null || codec == null) {
+            throw new IllegalArgumentException("register typeId必须在1到126之间，type和codec不能为null");
+        }
+        if (byId[typeId] != null && byId[typeId].type != type) {
+            throw new IllegalArgumentException("typeId " + typeId + " 已被 " + byId[typeId].type.getName() + " 占用");
+        }
+        Registration<T> registration = new Registration<>(typeId, type, codec);
+        byId[typeId] = registration;
+        byClass.put(type, registration);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return EMPTY;
+        }
+        Class<?> type = value.getClass();
+        if (type == Long.class || type == Integer.class) {
+            return value.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        Registration<Object> registration = (Registration<Object>) byClass.get(type);
+        Output out = new Output(32);
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        if (registration == null) {
+            out.writeByte(TYPE_FALLBACK);
+            out.writeRaw(fallback.serialize(value));
+        } else {
+            out.writeByte(registration.typeId);
+            registration.codec.write(value, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] != MAGIC) {
+            Object number = parseDecimal(bytes);
+            return number != null ? number : fallback.deserialize(bytes);
+        }
+        if (bytes.length < HEADER_LENGTH) {
+            throw new SerializationException("数据头不完整");
+        }
+        if (bytes[1] > FORMAT_VERSION) {
+            throw new SerializationException("不支持的格式版本: " + bytes[1]);
+        }
+        int typeId = bytes[2] & 0xFF;
+        if (typeId == TYPE_FALLBACK) {
+            return fallback.deserialize(Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length));
+        }
+        Registration<?> registration = byId[typeId];
+        if (registration == null) {
+            throw new SerializationException("未注册的类型id: " + typeId);
+        }
+        try {
+            return registration.codec.read(new Input(bytes, HEADER_LENGTH));
+        } catch (IndexOutOfBoundsException e) {
+            throw new SerializationException("数据不完整, typeId=" + typeId, e);
+        }
+    }
+
+    /**
+     * 十进制整数快速解析，与jackson一致：int范围内返回Integer，否则返回Long，不是整数返回null
+     */
+    private static Object parseDecimal(byte[] bytes) {
+        int i = 0;
+        boolean negative = bytes[0] == '-';
+        if (negative) {
+            i = 1;
+        }
+        int digits = bytes.length - i;
+        if (digits <= 0 || digits > 18) {
+            return null;
+        }
+        long value = 0;
+        for (; i < bytes.length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    /**
+     * 单个类型的编解码
+     */
+    public interface Codec<T> {
+
+        void write(T value, Output out);
+
+        T read(Input in);
+    }
+
+    /**
+     * User按字段顺序写入，开头记录字段数，以后只能在末尾追加字段，旧数据缺少的字段保持默认值
+     */
+    static final class UserCodec implements Codec<User> {
+
+        private static final int FIELD_COUNT = 4;
+
+        @Override
+        public void write(User user, Output out) {
+            out.writeVarint(FIELD_COUNT);
+            out.writeString(user.getId());
+            out.writeString(user.getName());
+            out.writeZigZag(user.getAge());
+            out.writeString(user.getEmail());
+        }
+
+        @Override
+        public User read(Input in) {
+            int fieldCount = (int) in.readVarint();
+            User user = new User();
+            if (fieldCount > 0) {
+                user.setId(in.readString());
+            }
+            if (fieldCount > 1) {
+                user.setName(in.readString());
+            }
+            if (fieldCount > 2) {
+                user.setAge(in.readZigZag());
+            }
+            if (fieldCount > 3) {
+                user.setEmail(in.readString());
+            }
+            return user;
+        }
+    }
+
+    private static final class Registration<T> {
+        private final int typeId;
+        private final Class<T> type;
+        private final Codec<T> codec;
+
+        private Registration(int typeId, Class<T> type, Codec<T> codec) {
+            this.typeId = typeId;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * 可增长的写缓冲
+     */
+    public static final class Output {
+        private byte[] buffer;
+        private int position;
+
+        Output(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        public void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeRaw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        public void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeZigZag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        public void writeFixed64(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buffer[position++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        /**
+         * 长度+1写在前面，0表示null
+         */
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1L);
+            writeRaw(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+    }
+
+    /**
+     * 读游标
+     */
+    public static final class Input {
+        private final byte[] buffer;
+        private int position;
+
+        Input(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        public byte readByte() {
+            if (position >= buffer.length) {
+                throw new IndexOutOfBoundsException("position " + position);
+            }
+            return buffer[position++];
+        }
+
+        public long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SerializationException("varint过长");
+        }
+
+        public long readZigZag() {
+            long raw = readVarint();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        public long readFixed64() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (readByte() & 0xFFL) << (i * 8);
+            }
+            return value;
+        }
+
+        public String readString() {
+            long length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            int size = (int) (length - 1);
+            if (size < 0 || position + size > buffer.length) {
+                throw new IndexOutOfBoundsException("string length " + size);
+            }
+            String value = new String(buffer, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+
+        public String readRemainingString() {
+            String value = new String(buffer, position, buffer.length - position, StandardCharsets.UTF_8);
+            position = buffer.length;
+            return value;
+        }
+
+        public byte[] readRemaining() {
+            byte[] value = Arrays.copyOfRange(buffer, position, buffer.length);
+            position = buffer.length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Description 基于redis的分布式锁
+ * 加锁时原子地分配单调递增的fencing token，下游存储可以据此拒绝已经失去锁的旧持有者的写入；
+ * 解锁和续期都先校验持有者，只能释放自己的锁；不指定租约时由看门狗定期续期；
+ * 等待者订阅释放通知，锁释放时立即被唤醒，不会轮询redis。锁不可重入
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+@Component
+public class DistributedLock {
+
+    /**
+     * 加锁成功返回fencing token(大于0)，失败返回锁的剩余毫秒数的相反数
+     */
+    static final RedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then " +
+                    "return redis.call('incr', KEYS[2]) " +
+            "end " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl < 1 then ttl = 1 end " +
+            "return -ttl", Long.class);
+
+    static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "redis.call('del', KEYS[1]) " +
+                    "redis.call('publish', ARGV[2], ARGV[3]) " +
+                    "return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "end " +
+            "return 0", Long.class);
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    HelloRedisProperties properties;
+
+    /**
+     * 区分本进程的持有者
+     */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    final ConcurrentHashMap<String, ReleaseSignal> signals = new ConcurrentHashMap<>();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redis-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 尝试加锁一次，不等待，租约由看门狗续期
+     *
+     * @Param: [name]
+     * @return: com.guorenjie.helloredis.util.DistributedLock.LockHandle 加锁失败返回null
+     */
+    public LockHandle tryLock(String name) {
+        try {
+            return tryLock(name, 0, -1, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * 最多等待waitTime加锁，租约由看门狗续期
+     *
+     * @Param: [name, waitTime, unit]
+     * @return: com.guorenjie.helloredis.util.DistributedLock.LockHandle 超时返回null
+     */
+    public LockHandle tryLock(String name, long waitTime, TimeUnit unit) throws InterruptedException {
+        return tryLock(name, waitTime, -1, unit);
+    }
+
+    /**
+     * 最多等待waitTime加锁
+     * leaseTime大于0时锁在leaseTime后自动过期，不续期；小于等于0时使用默认租约并由看门狗续期直到解锁
+     *
+     * @Param: [name, waitTime, leaseTime, unit]
+     * @return: com.guorenjie.helloredis.util.DistributedLock.LockHandle 超时返回null
+     */
+    public LockHandle tryLock(String name, long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        if (name == null || unit == null) {
+            throw new IllegalArgumentException("tryLock 参数不能为null");
+        }
+        HelloRedisProperties.Lock config = properties.getLock();
+        boolean watchdogEnabled = leaseTime <= 0;
+        long leaseMillis = watchdogEnabled ? config.getLeaseMillis() : unit.toMillis(leaseTime);
+        String key = config.getPrefix() + ClusterKeys.hashTag(name);
+        //每次加锁使用独立的持有者标识，同一线程重复加锁也不会误释放
+        String owner = instanceId + ":" + UUID.randomUUID();
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+
+        ReleaseSignal signal = null;
+        try {
+            while (true) {
+                long seen = signal == null ? 0 : signal.version;
+                Long result = stringRedisTemplate.execute(ACQUIRE_SCRIPT, Arrays.asList(key, key + ":fence"),
+                        owner, String.valueOf(leaseMillis));
+                if (result != null && result > 0) {
+                    LockHandle handle = new LockHandle(name, key, owner, result, leaseMillis);
+                    if (watchdogEnabled) {
+                        handle.startWatchdog();
+                    }
+                    return handle;
+                }
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+                if (signal == null) {
+                    //第一次竞争失败时才订阅，并在订阅后立即重试，避免错过订阅前发生的释放
+                    signal = subscribe(name);
+                    continue;
+                }
+                long ttlMillis = result == null ? leaseMillis : -result;
+                long waitMillis = Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(remainingNanos), ttlMillis));
+                synchronized (signal) {
+                    if (signal.version == seen) {
+                        signal.wait(waitMillis);
+                    }
+                }
+            }
+        } finally {
+            if (signal != null) {
+                unsubscribe(name, signal);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+    }
+
+    private ReleaseSignal subscribe(String name) {
+        if (subscribed.compareAndSet(false, true)) {
+            redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+                ReleaseSignal signal = signals.get(new String(message.getBody(), StandardCharsets.UTF_8));
+                if (signal != null) {
+                    synchronized (signal) {
+                        signal.version++;
+                        signal.notifyAll();
+                    }
+                }
+            }, new ChannelTopic(properties.getLock().getChannel()));
+        }
+        //计数在compute中修改，与unsubscribe的移除互斥
+        return signals.compute(name, (lockName, signal) -> {
+            ReleaseSignal current = signal == null ? new ReleaseSignal() : signal;
+            current.waiters++;
+            return current;
+        });
+    }
+
+    /**
+     * 等待者离开，最后一个等待者离开时移除信号，避免signals随锁名无限增长
+     */
+    private void unsubscribe(String name, ReleaseSignal signal) {
+        signals.computeIfPresent(name, (lockName, current) -> {
+            if (current != signal) {
+                return current;
+            }
+            return --current.waiters == 0 ? null : current;
+        });
+    }
+
+    /**
+     * 收到某个锁的释放通知时版本号加一并唤醒等待者
+     */
+    private static final class ReleaseSignal {
+        private volatile long version;
+        /**
+         * 正在等待该锁的线程数，只在signals.compute中读写
+         */
+        private int waiters;
+    }
+
+    /**
+     * 已获得的锁，使用完必须unlock，可配合try-with-resources
+     */
+    public final class LockHandle implements AutoCloseable {
+        private final String name;
+        private final String key;
+        private final String owner;
+        private final long fencingToken;
+        private final long leaseMillis;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean lost;
+        private volatile ScheduledFuture<?> renewal;
+
+        private LockHandle(String name, String key, String owner, long fencingToken, long leaseMillis) {
+            this.name = name;
+            this.key = key;
+            this.owner = owner;
+            this.fencingToken = fencingToken;
+            this.leaseMillis = leaseMillis;
+        }
+
+        /**
+         * 单调递增的令牌，写下游时带上，下游只接受不小于已见最大值的令牌
+         *
+         * @return: long
+         */
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 本地视角下锁是否仍被持有：未解锁且续期没有失败
+         *
+         * @return: boolean
+         */
+        public boolean isHeld() {
+            return !released.get() && !lost;
+        }
+
+        /**
+         * 释放锁，只会删除自己持有的锁，重复调用无副作用
+         *
+         * @return: boolean 锁在释放时仍由自己持有返回true
+         */
+        public boolean unlock() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> task = renewal;
+            if (task != null) {
+                task.cancel(false);
+            }
+            Long result = stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(key),
+                    owner, properties.getLock().getChannel(), name);
+            return result != null && result == 1L;
+        }
+
+        @Override
+        public void close() {
+            unlock();
+        }
+
+        private void startWatchdog() {
+            long period = Math.max(1, leaseMillis / 3);
+            renewal = watchdog.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void renew() {
+            if (released.get()) {
+                return;
+            }
+            try {
+                Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                        owner, String.valueOf(leaseMillis));
+                if (result == null || result == 0L) {
+                    lost = true;
+                    renewal.cancel(false);
+                    log.warn("分布式锁{}续期失败，锁已过期或被其他持有者获得", name);
+                }
+            } catch (RuntimeException e) {
+                //网络抖动时保留任务，下个周期再续，租约内恢复即可
+                log.warn("分布式锁{}续期异常: {}", name, e.getMessage());
+            }
+        }
+    }
+}
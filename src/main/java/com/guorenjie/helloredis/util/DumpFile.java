@@ -0,0 +1,290 @@
+package com.guorenjie.helloredis.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * @Description key导出文件格式：文件头"HRDUMP"+版本号，之后每条记录为
+ * varint key长度、key、varint过期时间戳(毫秒，0表示不过期)、varint DUMP数据长度、DUMP数据，
+ * 以key长度0和varint记录数结尾，读取时校验记录数，没有结尾的文件视为不完整；结尾只由Writer.finish写入，
+ * 导出中途失败时直接close，留下的文件不会被当成完整的导出。
+ * 读写都通过FileChannel和固定大小的缓冲区，内存占用与文件大小无关
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public final class DumpFile {
+
+    private static final byte[] MAGIC = "HRDUMP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private DumpFile() {
+    }
+
+    public static Writer create(Path path) throws IOException {
+        return new Writer(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    public static Reader open(Path path) throws IOException {
+        return new Reader(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * 一条导出记录
+     */
+    public static final class Record {
+        private final byte[] key;
+        private final long expireAt;
+        private final byte[] payload;
+
+        public Record(byte[] key, long expireAt, byte[] payload) {
+            this.key = key;
+            this.expireAt = expireAt;
+            this.payload = payload;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        /**
+         * 过期时间戳(毫秒)，0表示不过期
+         */
+        public long getExpireAt() {
+            return expireAt;
+        }
+
+        /**
+         * DUMP命令返回的序列化数据
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    public static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long records;
+        private long bytes;
+        private boolean finished;
+
+        private Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            buffer.put(MAGIC).put(VERSION);
+        }
+
+        public void write(byte[] key, long expireAt, byte[] payload) throws IOException {
+            if (key == null || key.length == 0 || payload == null || expireAt < 0) {
+                throw new IllegalArgumentException("write key和payload不能为空，expireAt不能为负数");
+            }
+            if (finished) {
+                throw new IllegalStateException("导出文件已写入结尾");
+            }
+            writeVarLong(key.length);
+            writeBytes(key);
+            writeVarLong(expireAt);
+            writeVarLong(payload.length);
+            writeBytes(payload);
+            records++;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * 已写入文件的字节数(不含缓冲区中的部分)
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 全部记录写完后写入结尾，之后不能再写入记录
+         */
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            writeVarLong(0);
+            writeVarLong(records);
+            flush();
+        }
+
+        /**
+         * 写出缓冲区并关闭文件；没有调用finish时不写结尾，读取时会被判定为不完整
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            if (buffer.remaining() < 10) {
+                flush();
+            }
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void writeBytes(byte[] data) throws IOException {
+            if (data.length <= buffer.remaining()) {
+                buffer.put(data);
+                return;
+            }
+            flush();
+            if (data.length <= buffer.remaining()) {
+                buffer.put(data);
+                return;
+            }
+            //大于缓冲区的数据直接写入，不复制
+            ByteBuffer wrapped = ByteBuffer.wrap(data);
+            while (wrapped.hasRemaining()) {
+                bytes += channel.write(wrapped);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bytes += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    public static final class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long records;
+        private boolean finished;
+
+        private Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            buffer.flip();
+            require(MAGIC.length + 1);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            byte version = buffer.get();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                channel.close();
+                throw new IOException("不是导出文件或版本不支持");
+            }
+        }
+
+        /**
+         * 读取下一条记录，读完时返回null
+         *
+         * @return: com.guorenjie.helloredis.util.DumpFile.Record
+         * @throws IOException 文件不完整或已损坏
+         */
+        public Record next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            int keyLength = readLength();
+            if (keyLength == 0) {
+                long expected = readVarLong();
+                if (expected != records) {
+                    throw new IOException("导出文件记录数不符：应有" + expected + "条，读到" + records + "条");
+                }
+                finished = true;
+                return null;
+            }
+            byte[] key = readBytes(keyLength);
+            long expireAt = readVarLong();
+            byte[] payload = readBytes(readLength());
+            records++;
+            return new Record(key, expireAt, payload);
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * 已读取的文件字节数，用于计算进度
+         */
+        public long position() throws IOException {
+            return channel.position() - buffer.remaining();
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("导出文件已损坏：长度" + length);
+            }
+            return (int) length;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("导出文件已损坏：varint过长");
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            byte[] data = new byte[length];
+            if (length <= buffer.capacity()) {
+                require(length);
+                buffer.get(data);
+                return data;
+            }
+            //大于缓冲区的数据先取走缓冲区里的部分，剩余的直接读入
+            int buffered = buffer.remaining();
+            buffer.get(data, 0, buffered);
+            ByteBuffer wrapped = ByteBuffer.wrap(data, buffered, length - buffered);
+            while (wrapped.hasRemaining()) {
+                if (channel.read(wrapped) < 0) {
+                    throw new EOFException("导出文件不完整");
+                }
+            }
+            return data;
+        }
+
+        private void require(int length) throws IOException {
+            if (buffer.remaining() >= length) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < length) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("导出文件不完整");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
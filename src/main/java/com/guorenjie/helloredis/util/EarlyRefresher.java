@@ -0,0 +1,123 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 缓存提前刷新(XFetch)：读到缓存值时按概率决定是否在过期前重新计算，
+ * 计算耗时delta越长、剩余ttl越短，提前刷新的概率越大：now - delta * beta * ln(random) >= expiry；
+ * 刷新在后台线程执行，调用方总是立即拿到当前值。同一个key同时只有一个刷新任务，队列满时放弃本次刷新
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class EarlyRefresher implements AutoCloseable {
+
+    private final double beta;
+    private final Executor executor;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    public EarlyRefresher(double beta, int threads, int queueCapacity) {
+        this(beta, newExecutor(threads, queueCapacity));
+    }
+
+    EarlyRefresher(double beta, Executor executor) {
+        if (beta <= 0) {
+            throw new IllegalArgumentException("EarlyRefresher beta必须大于0");
+        }
+        this.beta = beta;
+        this.executor = executor;
+    }
+
+    /**
+     * XFetch判定：剩余ttlMillis、上次计算耗时deltaMillis时是否应该提前刷新
+     *
+     * @Param: [deltaMillis, ttlMillis, beta, random] random取值(0, 1]
+     * @return: boolean
+     */
+    static boolean shouldRefresh(long deltaMillis, long ttlMillis, double beta, double random) {
+        if (ttlMillis <= 0) {
+            return true;
+        }
+        return -deltaMillis * beta * Math.log(random) >= ttlMillis;
+    }
+
+    /**
+     * 在timeoutMillis上随机增加[0, ratio)比例的时长，打散同时写入的key的过期时间
+     *
+     * @Param: [timeoutMillis, ratio, random] random取值[0, 1)
+     * @return: long
+     */
+    static long jitter(long timeoutMillis, double ratio, double random) {
+        if (ratio <= 0 || timeoutMillis <= 0) {
+            return timeoutMillis;
+        }
+        return timeoutMillis + (long) (timeoutMillis * ratio * random);
+    }
+
+    public static long jitter(long timeoutMillis, double ratio) {
+        return jitter(timeoutMillis, ratio, ThreadLocalRandom.current().nextDouble());
+    }
+
+    public boolean shouldRefresh(long deltaMillis, long ttlMillis) {
+        //nextDouble取值[0, 1)，换成(0, 1]避免ln(0)
+        return shouldRefresh(deltaMillis, ttlMillis, beta, 1 - ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 提交后台刷新，该key已有刷新任务或队列已满时返回false
+     *
+     * @Param: [key, refresh]
+     * @return: boolean
+     */
+    public boolean submit(String key, Runnable refresh) {
+        if (!refreshing.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh.run();
+                } catch (RuntimeException e) {
+                    //当前值仍然有效，等下一次读取再尝试
+                    log.warn("提前刷新{}失败: {}", key, e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executor instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) executor).shutdown();
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, int queueCapacity) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("EarlyRefresher 线程数和队列长度必须大于0");
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "redis-early-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,216 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * @Description 热点key探测：按1/sampleRate采样读请求，计入count-min sketch，估计值超过阈值的key进入top-K热点表
+ * 每个窗口结束时所有计数减半，热度随时间衰减，不再被访问的key会自然退出热点表。
+ * 热点key由RedisUtil.get从短TTL的本地副本读取，分摊单个分片的压力
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class HotKeyDetector {
+
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+            0x85EBCA77C2B2AE63L, 0x27D4EB2F165667C5L, 0xFF51AFD7ED558CCDL, 0xC4CEB9FE1A85EC53L, 0x94D049BB133111EBL};
+
+    private final int depth;
+    private final int widthMask;
+    private final AtomicLongArray counters;
+    private final int sampleRate;
+    private final long threshold;
+    private final int topK;
+    private final long windowNanos;
+    private final LongSupplier ticker;
+    private final AtomicLong nextDecayAt;
+
+    /**
+     * 热点key -> 估计的窗口内访问次数，只在持有自身锁时修改
+     */
+    private final Map<String, Long> hotKeys = new HashMap<>();
+
+    /**
+     * 热点key集合的只读快照，只在成员变化时重建，读路径无锁
+     */
+    private volatile Set<String> hotKeySet = Collections.emptySet();
+
+    /**
+     * 热点key的本地副本
+     */
+    private final NearCache localCopies;
+
+    /**
+     * @param depth      sketch行数，越大误差概率越小
+     * @param width      每行计数器个数，向上取2的幂，越大误差越小
+     * @param sampleRate 每sampleRate次访问采样一次
+     * @param threshold  一个窗口内估计访问次数达到这个值即为热点
+     * @param topK       最多同时跟踪的热点key数量
+     * @param window     衰减周期
+     * @param localTtl   本地副本存活时间，也是热点key在其他节点写入后的最大陈旧时间
+     */
+    public HotKeyDetector(int depth, int width, int sampleRate, long threshold, int topK,
+                          long window, long localTtl, TimeUnit unit) {
+        this(depth, width, sampleRate, threshold, topK, window, localTtl, unit, System::nanoTime);
+    }
+
+    HotKeyDetector(int depth, int width, int sampleRate, long threshold, int topK,
+                   long window, long localTtl, TimeUnit unit, LongSupplier ticker) {
+        if (depth <= 0 || depth > SEEDS.length || width <= 0 || sampleRate <= 0 || threshold <= 0 || topK <= 0
+                || window <= 0 || unit == null) {
+            throw new IllegalArgumentException("HotKeyDetector 参数必须大于0，depth不能超过" + SEEDS.length);
+        }
+        int roundedWidth = Integer.highestOneBit(Math.max(2, width) - 1) << 1;
+        this.depth = depth;
+        this.widthMask = roundedWidth - 1;
+        this.counters = new AtomicLongArray(depth * roundedWidth);
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.topK = topK;
+        this.windowNanos = unit.toNanos(window);
+        this.ticker = ticker;
+        this.nextDecayAt = new AtomicLong(ticker.getAsLong() + windowNanos);
+        this.localCopies = new NearCache(topK, localTtl, unit, ticker);
+    }
+
+    /**
+     * 记录一次访问，返回key当前是否是热点
+     * 未被采样的访问只查询热点表，不写sketch
+     *
+     * @Param: [key]
+     * @return: boolean
+     */
+    public boolean record(String key) {
+        decayIfDue();
+        if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            long estimate = increment(key) * sampleRate;
+            if (estimate >= threshold) {
+                offer(key, estimate);
+            }
+        }
+        return hotKeySet.contains(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeySet.contains(key);
+    }
+
+    /**
+     * 当前热点key及其估计的窗口内访问次数，按访问次数降序
+     *
+     * @return: java.util.Map<java.lang.String, java.lang.Long>
+     */
+    public Map<String, Long> hotKeys() {
+        List<Map.Entry<String, Long>> entries;
+        synchronized (hotKeys) {
+            entries = new ArrayList<>(hotKeys.entrySet());
+        }
+        entries.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        Map<String, Long> result = new LinkedHashMap<>();
+        entries.forEach(entry -> result.put(entry.getKey(), entry.getValue()));
+        return result;
+    }
+
+    /**
+     * 热点key的本地副本，容量等于topK
+     *
+     * @return: com.guorenjie.helloredis.util.NearCache
+     */
+    public NearCache getLocalCopies() {
+        return localCopies;
+    }
+
+    /**
+     * 各行对应计数器加一，返回最小值作为估计
+     */
+    private long increment(String key) {
+        long hash = hash(key);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * (widthMask + 1) + (int) (mix(hash ^ SEEDS[row]) & widthMask);
+            min = Math.min(min, counters.incrementAndGet(index));
+        }
+        return min;
+    }
+
+    private void offer(String key, long estimate) {
+        synchronized (hotKeys) {
+            if (!hotKeys.containsKey(key) && hotKeys.size() >= topK) {
+                Map.Entry<String, Long> coldest = null;
+                for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+                    if (coldest == null || entry.getValue() < coldest.getValue()) {
+                        coldest = entry;
+                    }
+                }
+                if (coldest.getValue() >= estimate) {
+                    return;
+                }
+                hotKeys.remove(coldest.getKey());
+                localCopies.invalidate(coldest.getKey());
+            }
+            if (hotKeys.put(key, estimate) == null) {
+                hotKeySet = new HashSet<>(hotKeys.keySet());
+            }
+        }
+    }
+
+    /**
+     * 窗口结束时计数减半，热点表中低于阈值的key退出
+     */
+    private void decayIfDue() {
+        long now = ticker.getAsLong();
+        long due = nextDecayAt.get();
+        if (now - due < 0 || !nextDecayAt.compareAndSet(due, now + windowNanos)) {
+            return;
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            long value;
+            do {
+                value = counters.get(i);
+            } while (value != 0 && !counters.compareAndSet(i, value, value >>> 1));
+        }
+        synchronized (hotKeys) {
+            hotKeys.replaceAll((key, estimate) -> estimate >>> 1);
+            hotKeys.entrySet().removeIf(entry -> {
+                boolean cooled = entry.getValue() < threshold;
+                if (cooled) {
+                    localCopies.invalidate(entry.getKey());
+                }
+                return cooled;
+            });
+            hotKeySet = new HashSet<>(hotKeys.keySet());
+        }
+    }
+
+    private static long hash(String key) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = 31 * hash + key.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * murmur3 fmix64
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
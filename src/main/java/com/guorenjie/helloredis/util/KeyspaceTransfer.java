@@ -0,0 +1,308 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import io.lettuce.core.RestoreArgs;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @Description key批量导出/导入，用于初始化新环境或在redis实例之间迁移
+ * 导出：SCAN分批遍历，每批用一次管道取回DUMP和PTTL，写入DumpFile；导入：顺序读取DumpFile，
+ * 按条数和字节数分批用一次管道RESTORE。两边同时只在内存中保留一批，每隔progress-interval-millis打印一次进度；
+ * 集群模式下SCAN依次遍历每个主节点，DUMP/PTTL/RESTORE改用lettuce集群异步命令按key路由到各自节点
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+@Component
+public class KeyspaceTransfer {
+
+    @Resource
+    RedisTemplate<String, Object> redisTemplate;
+
+    @Resource
+    RedisUtil redisUtil;
+
+    @Resource
+    HelloRedisProperties properties;
+
+    /**
+     * 导入的key记录到布隆过滤器，未开启时为null
+     */
+    @Autowired(required = false)
+    RedisBloomFilter keyFilter;
+
+    /**
+     * 导出匹配pattern的key到path，已存在的文件会被覆盖；导出期间过期或删除的key被跳过
+     *
+     * @Param: [pattern, path]
+     * @return: com.guorenjie.helloredis.util.KeyspaceTransfer.Result
+     */
+    @SuppressWarnings("unchecked")
+    public Result export(String pattern, Path path) throws IOException {
+        HelloRedisProperties.Transfer config = properties.getTransfer();
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        Progress progress = new Progress("导出", config.getProgressIntervalMillis());
+        try (DumpFile.Writer writer = DumpFile.create(path)) {
+            long scanned = redisUtil.scan(pattern, properties.getScan().getCount(), config.getBatchSize(), keys -> {
+                List<byte[]> rawKeys = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    rawKeys.add(keySerializer.serialize(key));
+                }
+                List<Object> results = dump(rawKeys);
+                long now = System.currentTimeMillis();
+                try {
+                    for (int i = 0; i < rawKeys.size(); i++) {
+                        byte[] payload = (byte[]) results.get(2 * i);
+                        Long ttl = (Long) results.get(2 * i + 1);
+                        //SCAN之后被删除或已过期
+                        if (payload == null || ttl == null || ttl == -2) {
+                            progress.skipped++;
+                            continue;
+                        }
+                        writer.write(rawKeys.get(i), ttl > 0 ? now + ttl : 0, payload);
+                        progress.done++;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                progress.report(writer.getBytes());
+            });
+            //只有完整导出才写结尾，中途失败的文件导入时被拒绝
+            writer.finish();
+            log.info("导出完成：遍历{}个key，写入{}条，跳过{}条，耗时{}ms", scanned, progress.done, progress.skipped,
+                    progress.elapsedMillis());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return progress.result();
+    }
+
+    /**
+     * 从path导入，replace为false时跳过已存在的key；已过期的记录被跳过，其余按剩余时间设置过期
+     *
+     * @Param: [path, replace]
+     * @return: com.guorenjie.helloredis.util.KeyspaceTransfer.Result
+     */
+    public Result importFrom(Path path, boolean replace) throws IOException {
+        HelloRedisProperties.Transfer config = properties.getTransfer();
+        Progress progress = new Progress("导入", config.getProgressIntervalMillis());
+        try (DumpFile.Reader reader = DumpFile.open(path)) {
+            List<DumpFile.Record> batch = new ArrayList<>(config.getBatchSize());
+            long batchBytes = 0;
+            DumpFile.Record record;
+            while ((record = reader.next()) != null) {
+                batch.add(record);
+                batchBytes += record.getKey().length + record.getPayload().length;
+                if (batch.size() >= config.getBatchSize() || batchBytes >= config.getBatchBytes()) {
+                    restore(batch, replace, progress);
+                    batch.clear();
+                    batchBytes = 0;
+                    progress.report(reader.position(), reader.size());
+                }
+            }
+            restore(batch, replace, progress);
+            log.info("导入完成：共{}条，写入{}条，跳过{}条，耗时{}ms", reader.getRecords(), progress.done,
+                    progress.skipped, progress.elapsedMillis());
+        }
+        return progress.result();
+    }
+
+    /**
+     * 一次管道RESTORE一批，已过期的记录不发送；replace为false时key已存在的记录计为跳过
+     */
+    @SuppressWarnings("unchecked")
+    private void restore(List<DumpFile.Record> batch, boolean replace, Progress progress) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<DumpFile.Record> sent = new ArrayList<>(batch.size());
+        List<Long> ttls = new ArrayList<>(batch.size());
+        for (DumpFile.Record record : batch) {
+            long ttl = record.getExpireAt() == 0 ? 0 : record.getExpireAt() - now;
+            if (record.getExpireAt() != 0 && ttl <= 0) {
+                progress.skipped++;
+                continue;
+            }
+            sent.add(record);
+            ttls.add(ttl);
+        }
+        if (sent.isEmpty()) {
+            return;
+        }
+        List<Object> results;
+        if (redisUtil.isCluster()) {
+            results = clusterRestore(sent, ttls, replace);
+        } else {
+            try {
+                results = redisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+                    connection.openPipeline();
+                    for (int i = 0; i < sent.size(); i++) {
+                        connection.keyCommands().restore(sent.get(i).getKey(), ttls.get(i),
+                                sent.get(i).getPayload(), replace);
+                    }
+                    return connection.closePipeline();
+                });
+            } catch (RedisPipelineException e) {
+                //key已存在(BUSYKEY)等单条错误不影响同一管道中的其他命令
+                results = e.getPipelineResult();
+            }
+        }
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        for (int i = 0; i < sent.size(); i++) {
+            Object result = results != null && i < results.size() ? results.get(i) : null;
+            if (result instanceof Exception) {
+                progress.skipped++;
+                String message = ((Exception) result).getMessage();
+                if (message == null || !message.contains("BUSYKEY")) {
+                    log.warn("导入{}失败: {}", new String(sent.get(i).getKey(), StandardCharsets.UTF_8),
+                            message);
+                }
+                continue;
+            }
+            progress.done++;
+            if (keyFilter != null) {
+                keyFilter.put(keySerializer.deserialize(sent.get(i).getKey()));
+            }
+        }
+    }
+
+    /**
+     * 按顺序返回每个key的DUMP和PTTL结果
+     */
+    private List<Object> dump(List<byte[]> rawKeys) {
+        if (redisUtil.isCluster()) {
+            //不同key在不同节点上，异步命令各自路由，全部发出后统一等待
+            return redisUtil.withClusterCommands(commands -> {
+                List<CompletableFuture<Object>> futures = new ArrayList<>(2 * rawKeys.size());
+                for (byte[] rawKey : rawKeys) {
+                    futures.add(commands.dump(rawKey).toCompletableFuture().thenApply(payload -> payload));
+                    futures.add(commands.pttl(rawKey).toCompletableFuture().thenApply(ttl -> ttl));
+                }
+                return RedisUtil.joinAll(futures);
+            });
+        }
+        return redisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            for (byte[] rawKey : rawKeys) {
+                connection.keyCommands().dump(rawKey);
+                connection.keyCommands().pTtl(rawKey);
+            }
+            return connection.closePipeline();
+        });
+    }
+
+    /**
+     * 集群模式下的RESTORE，失败的命令在结果中对应位置为异常，与管道的结果形式相同
+     */
+    private List<Object> clusterRestore(List<DumpFile.Record> sent, List<Long> ttls, boolean replace) {
+        return redisUtil.withClusterCommands(commands -> {
+            List<CompletableFuture<Object>> futures = new ArrayList<>(sent.size());
+            for (int i = 0; i < sent.size(); i++) {
+                RestoreArgs args = RestoreArgs.Builder.ttl(ttls.get(i));
+                if (replace) {
+                    args.replace();
+                }
+                futures.add(commands.restore(sent.get(i).getKey(), sent.get(i).getPayload(), args)
+                        .toCompletableFuture().handle((reply, error) -> error != null ? error : reply));
+            }
+            return RedisUtil.joinAll(futures);
+        });
+    }
+
+    /**
+     * 导出/导入结果
+     */
+    public static final class Result {
+        private final long transferred;
+        private final long skipped;
+        private final long elapsedMillis;
+
+        private Result(long transferred, long skipped, long elapsedMillis) {
+            this.transferred = transferred;
+            this.skipped = skipped;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getTransferred() {
+            return transferred;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{transferred=" + transferred + ", skipped=" + skipped + ", elapsedMillis=" + elapsedMillis
+                    + "}";
+        }
+    }
+
+    private static final class Progress {
+        private final String action;
+        private final long intervalMillis;
+        private final long startedAt = System.currentTimeMillis();
+        private long reportedAt = startedAt;
+        private long done;
+        private long skipped;
+
+        private Progress(String action, long intervalMillis) {
+            this.action = action;
+            this.intervalMillis = intervalMillis;
+        }
+
+        private void report(long bytes) {
+            if (due()) {
+                log.info("{}进度：{}条，跳过{}条，{}MB，{}条/秒", action, done, skipped, bytes / (1024 * 1024), rate());
+            }
+        }
+
+        private void report(long position, long size) {
+            if (due()) {
+                log.info("{}进度：{}%，{}条，跳过{}条，{}条/秒", action, size == 0 ? 100 : position * 100 / size, done,
+                        skipped, rate());
+            }
+        }
+
+        private boolean due() {
+            long now = System.currentTimeMillis();
+            if (now - reportedAt < intervalMillis) {
+                return false;
+            }
+            reportedAt = now;
+            return true;
+        }
+
+        private long rate() {
+            return done * 1000 / Math.max(1, elapsedMillis());
+        }
+
+        private long elapsedMillis() {
+            return System.currentTimeMillis() - startedAt;
+        }
+
+        private Result result() {
+            return new Result(done, skipped, elapsedMillis());
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 基于sorted set的排行榜，分数高的排在前面，名次从1开始
+ * 加分先在本地按成员合并，由Leaderboards按固定间隔用一次管道发出ZINCRBY，同一管道里裁剪到最多maxSize名；
+ * 前N名从短时间缓存的快照读取，成员附近的名次用一个lua脚本一次往返取回。
+ * 读到的分数和名次不包含本地还没刷出的加分，滞后最多一个刷新间隔；成员作为本地合并的key，需要正确实现equals/hashCode
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class Leaderboard {
+
+    /**
+     * 取成员前后各radius名，返回{起始下标, {member1, score1, member2, score2...}}，成员不存在时返回nil
+     */
+    @SuppressWarnings("rawtypes")
+    static final RedisScript<List> AROUND_SCRIPT = new DefaultRedisScript<>(
+            "local rank = redis.call('zrevrank', KEYS[1], ARGV[1]) " +
+            "if not rank then return nil end " +
+            "local start = rank - tonumber(ARGV[2]) " +
+            "if start < 0 then start = 0 end " +
+            "return {start, redis.call('zrevrange', KEYS[1], start, rank + tonumber(ARGV[2]), 'withscores')}",
+            List.class);
+
+    private final String key;
+    private final RedisUtil redisUtil;
+    private final LuaScriptRegistry luaScripts;
+    private final RedisSerializer<Object> valueSerializer;
+    private final long maxSize;
+    private final int snapshotSize;
+    private final long snapshotTtlNanos;
+    private final int maxPending;
+    private final ConcurrentHashMap<Object, Double> pending = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final Object snapshotLock = new Object();
+
+    private volatile Snapshot snapshot;
+
+    public Leaderboard(String key, RedisUtil redisUtil, LuaScriptRegistry luaScripts,
+                       RedisSerializer<Object> valueSerializer, long maxSize, int snapshotSize, long snapshotTtlMillis,
+                       int maxPending) {
+        if (key == null || maxSize <= 0 || snapshotSize <= 0 || snapshotTtlMillis < 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("Leaderboard 参数不合法");
+        }
+        this.key = key;
+        this.redisUtil = redisUtil;
+        this.luaScripts = luaScripts;
+        this.valueSerializer = valueSerializer;
+        this.maxSize = maxSize;
+        this.snapshotSize = snapshotSize;
+        this.snapshotTtlNanos = TimeUnit.MILLISECONDS.toNanos(snapshotTtlMillis);
+        this.maxPending = maxPending;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 给成员加分(可以为负)，先在本地合并，下次刷新时写入redis
+     * 本地待刷出的成员数达到上限时由调用方同步刷出，形成背压
+     *
+     * @Param: [member, delta]
+     * @return: void
+     */
+    public void incrementScore(Object member, double delta) {
+        if (member == null) {
+            throw new IllegalArgumentException("incrementScore member不能为null");
+        }
+        pending.merge(member, delta, Double::sum);
+        if (pending.size() >= maxPending) {
+            flush();
+        }
+    }
+
+    /**
+     * 把本地合并的加分用一次管道写入redis，并裁剪掉maxSize名之后的成员
+     * 失败时加分放回本地下次重试；管道中途断开时已执行的部分可能被重复计入
+     *
+     * @return: int 刷出的成员数
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            Map<Object, Double> drained = new LinkedHashMap<>();
+            for (Object member : pending.keySet()) {
+                //remove与merge在同一个key上互斥，不会丢失并发的加分
+                Double delta = pending.remove(member);
+                if (delta != null) {
+                    drained.put(member, delta);
+                }
+            }
+            RedisBatch batch = redisUtil.batch(Integer.MAX_VALUE, Long.MAX_VALUE);
+            drained.forEach((member, delta) -> batch.zIncrby(key, delta, member));
+            batch.zRemRangeByRank(key, 0, -(maxSize + 1));
+            try {
+                batch.execute();
+            } catch (RuntimeException e) {
+                drained.forEach((member, delta) -> pending.merge(member, delta, Double::sum));
+                throw e;
+            }
+            return drained.size();
+        }
+    }
+
+    /**
+     * 本地还没刷出的成员数
+     *
+     * @return: int
+     */
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * 前n名，n不超过快照大小时从快照读取，快照最多陈旧snapshotTtlMillis
+     *
+     * @Param: [n]
+     * @return: java.util.List<com.guorenjie.helloredis.util.Leaderboard.Entry>
+     */
+    public List<Entry> top(int n) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        if (n > snapshotSize) {
+            return range(0, n);
+        }
+        List<Entry> entries = snapshot();
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /**
+     * 分页读取，page从1开始
+     *
+     * @Param: [page, pageSize]
+     * @return: java.util.List<com.guorenjie.helloredis.util.Leaderboard.Entry>
+     */
+    public List<Entry> page(int page, int pageSize) {
+        if (page <= 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("page page和pageSize必须大于0");
+        }
+        return range((long) (page - 1) * pageSize, pageSize);
+    }
+
+    /**
+     * 成员及其前后各radius名，一次往返完成，成员不在榜上时返回空列表
+     *
+     * @Param: [member, radius]
+     * @return: java.util.List<com.guorenjie.helloredis.util.Leaderboard.Entry>
+     */
+    @SuppressWarnings("unchecked")
+    public List<Entry> around(Object member, int radius) {
+        if (member == null || radius < 0) {
+            throw new IllegalArgumentException("around member不能为null，radius不能小于0");
+        }
+        List<Object> result = luaScripts.execute(AROUND_SCRIPT, Collections.singletonList(key),
+                valueSerializer.serialize(member),
+                Integer.toString(radius).getBytes(StandardCharsets.US_ASCII));
+        if (result == null || result.size() < 2) {
+            return Collections.emptyList();
+        }
+        long start = (Long) result.get(0);
+        List<Object> flat = (List<Object>) result.get(1);
+        List<Entry> entries = new ArrayList<>(flat.size() / 2);
+        for (int i = 0; i + 1 < flat.size(); i += 2) {
+            entries.add(new Entry(start + i / 2 + 1, valueSerializer.deserialize((byte[]) flat.get(i)),
+                    parseScore(new String((byte[]) flat.get(i + 1), StandardCharsets.US_ASCII))));
+        }
+        return entries;
+    }
+
+    /**
+     * 成员的名次，从1开始，不在榜上返回null
+     *
+     * @Param: [member]
+     * @return: java.lang.Long
+     */
+    public Long rank(Object member) {
+        Long rank = redisUtil.zReverseRank(key, member);
+        return rank == null ? null : rank + 1;
+    }
+
+    public Double score(Object member) {
+        return redisUtil.zScore(key, member);
+    }
+
+    /**
+     * 榜上的成员数，不超过maxSize(刷新之间可能短暂超过)
+     *
+     * @return: java.lang.Long
+     */
+    public Long size() {
+        return redisUtil.zCard(key);
+    }
+
+    /**
+     * 解析redis返回的分数，正负无穷是inf/-inf，Double.parseDouble不认识
+     */
+    static double parseScore(String score) {
+        switch (score) {
+            case "inf":
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(score);
+        }
+    }
+
+    private List<Entry> range(long start, long count) {
+        return toEntries(redisUtil.zReverseRangeWithScores(key, start, start + count - 1), start + 1);
+    }
+
+    private List<Entry> snapshot() {
+        Snapshot current = snapshot;
+        if (current != null && System.nanoTime() - current.loadedAt < snapshotTtlNanos) {
+            return current.entries;
+        }
+        //同一时刻只有一个线程刷新快照，其他线程等它完成后直接使用
+        synchronized (snapshotLock) {
+            current = snapshot;
+            if (current != null && System.nanoTime() - current.loadedAt < snapshotTtlNanos) {
+                return current.entries;
+            }
+            try {
+                List<Entry> entries = Collections.unmodifiableList(range(0, snapshotSize));
+                snapshot = new Snapshot(entries, System.nanoTime());
+                return entries;
+            } catch (RuntimeException e) {
+                if (current == null) {
+                    throw e;
+                }
+                //redis不可用时继续使用旧快照
+                log.warn("刷新排行榜{}快照失败，继续使用旧快照: {}", key, e.getMessage());
+                return current.entries;
+            }
+        }
+    }
+
+    private static List<Entry> toEntries(Collection<ZSetOperations.TypedTuple<Object>> tuples, long firstRank) {
+        if (tuples == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>(tuples.size());
+        long rank = firstRank;
+        for (ZSetOperations.TypedTuple<Object> tuple : tuples) {
+            entries.add(new Entry(rank++, tuple.getValue(), tuple.getScore()));
+        }
+        return entries;
+    }
+
+    private static final class Snapshot {
+        private final List<Entry> entries;
+        private final long loadedAt;
+
+        private Snapshot(List<Entry> entries, long loadedAt) {
+            this.entries = entries;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * 榜单中的一名
+     */
+    public static final class Entry {
+        private final long rank;
+        private final Object member;
+        private final Double score;
+
+        public Entry(long rank, Object member, Double score) {
+            this.rank = rank;
+            this.member = member;
+            this.score = score;
+        }
+
+        public long getRank() {
+            return rank;
+        }
+
+        public Object getMember() {
+            return member;
+        }
+
+        public Double getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 排行榜入口：按名称创建并缓存Leaderboard，用一个后台线程按helloredis.leaderboard.flush-interval-millis
+ * 定期刷出所有排行榜的本地加分，关闭时刷完剩余加分
+ * 例：leaderboards.get("score").incrementScore(userId, 10); leaderboards.get("score").top(10);
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+@Component
+public class Leaderboards {
+
+    @Resource
+    RedisUtil redisUtil;
+
+    @Resource
+    LuaScriptRegistry luaScripts;
+
+    @Resource
+    RedisTemplate<String, Object> redisTemplate;
+
+    @Resource
+    HelloRedisProperties properties;
+
+    private final Map<String, Leaderboard> leaderboards = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    void start() {
+        luaScripts.register("leaderboard.around", Leaderboard.AROUND_SCRIPT);
+        long interval = properties.getLeaderboard().getFlushIntervalMillis();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leaderboard-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按名称取排行榜，redis key为key-prefix加名称
+     *
+     * @Param: [name]
+     * @return: com.guorenjie.helloredis.util.Leaderboard
+     */
+    public Leaderboard get(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("get 排行榜名称不能为空");
+        }
+        return leaderboards.computeIfAbsent(name, this::create);
+    }
+
+    /**
+     * 立即刷出所有排行榜的本地加分
+     *
+     * @return: int 刷出的成员数
+     */
+    public int flushAll() {
+        int total = 0;
+        for (Leaderboard leaderboard : leaderboards.values()) {
+            total += leaderboard.flush();
+        }
+        return total;
+    }
+
+    @PreDestroy
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Leaderboard create(String name) {
+        HelloRedisProperties.Leaderboard config = properties.getLeaderboard();
+        return new Leaderboard(config.getKeyPrefix() + name, redisUtil, luaScripts,
+                (RedisSerializer<Object>) redisTemplate.getValueSerializer(), config.getMaxSize(),
+                config.getSnapshotSize(), config.getSnapshotTtlMillis(), config.getMaxPending());
+    }
+
+    private void flushQuietly() {
+        for (Leaderboard leaderboard : leaderboards.values()) {
+            try {
+                leaderboard.flush();
+            } catch (RuntimeException e) {
+                //加分已放回本地，下次刷新重试
+                log.warn("刷出排行榜{}失败: {}", leaderboard.getKey(), e.getMessage());
+            }
+        }
+    }
+}
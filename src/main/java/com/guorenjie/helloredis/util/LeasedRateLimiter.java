@@ -0,0 +1,110 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * @Description 本地预取令牌的限流器：每个key一次从底层限流器租用leaseSize个许可，在本地扣减，用完或过期后再租
+ * 大多数请求不访问redis；租来的许可在本地的有效期为leaseTtl，过期没用完的作废(在redis中已经计为使用)，
+ * 所以全局不会超过上限，代价是多个实例之间分配不均时可能提前拒绝，leaseSize应远小于上限
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class LeasedRateLimiter implements RateLimiter {
+
+    private final RateLimiter delegate;
+    private final long leaseSize;
+    private final long leaseTtlNanos;
+    private final int maxKeys;
+    private final LongSupplier ticker;
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    public LeasedRateLimiter(RateLimiter delegate, long leaseSize, long leaseTtlMillis, int maxKeys) {
+        this(delegate, leaseSize, leaseTtlMillis, maxKeys, TimeUnit.MILLISECONDS, System::nanoTime);
+    }
+
+    LeasedRateLimiter(RateLimiter delegate, long leaseSize, long leaseTtl, int maxKeys, TimeUnit unit,
+                      LongSupplier ticker) {
+        if (delegate == null || leaseSize <= 0 || leaseTtl <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("LeasedRateLimiter 参数不合法");
+        }
+        this.delegate = delegate;
+        this.leaseSize = leaseSize;
+        this.leaseTtlNanos = unit.toNanos(leaseTtl);
+        this.maxKeys = maxKeys;
+        this.ticker = ticker;
+    }
+
+    @Override
+    public boolean tryAcquire(String key, long permits) {
+        if (key == null || permits <= 0) {
+            throw new IllegalArgumentException("tryAcquire key不能为null，permits必须大于0");
+        }
+        Lease lease = lease(key);
+        if (lease.take(permits, ticker.getAsLong())) {
+            return true;
+        }
+        //同一个key同时只有一个线程去租，其他线程等它租完后再从本地扣减
+        synchronized (lease) {
+            long now = ticker.getAsLong();
+            if (lease.take(permits, now)) {
+                return true;
+            }
+            if (lease.denied && !lease.expired(now)) {
+                //本租期内已经被拒绝过，超限的流量在本地直接拒绝，不再访问redis
+                return false;
+            }
+            long granted = delegate.acquireUpTo(key, Math.max(leaseSize, permits));
+            lease.expiresAt = now + leaseTtlNanos;
+            lease.remaining = granted;
+            lease.denied = granted < permits;
+            return lease.take(permits, now);
+        }
+    }
+
+    @Override
+    public long acquireUpTo(String key, long permits) {
+        //部分获取只用于租约本身，这里直接交给底层限流器
+        return delegate.acquireUpTo(key, permits);
+    }
+
+    /**
+     * 本地保留租约的key数量
+     *
+     * @return: int
+     */
+    public int leaseCount() {
+        return leases.size();
+    }
+
+    private Lease lease(String key) {
+        Lease lease = leases.get(key);
+        if (lease != null) {
+            return lease;
+        }
+        if (leases.size() >= maxKeys) {
+            long now = ticker.getAsLong();
+            leases.values().removeIf(existing -> existing.expired(now));
+        }
+        return leases.computeIfAbsent(key, k -> new Lease());
+    }
+
+    private static final class Lease {
+        private long remaining;
+        private long expiresAt;
+        private boolean denied;
+
+        private synchronized boolean take(long permits, long now) {
+            if (expired(now) || remaining < permits) {
+                return false;
+            }
+            remaining -= permits;
+            return true;
+        }
+
+        private synchronized boolean expired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description lua脚本注册表
+ * 启动完成后把注册的脚本SCRIPT LOAD到redis，之后只用EVALSHA发送40字节的sha1，不再每次发送脚本正文；
+ * redis重启、故障转移或SCRIPT FLUSH后脚本缓存丢失，EVALSHA返回NOSCRIPT时用EVAL执行一次，
+ * EVAL执行的同时会把脚本重新缓存在执行它的节点上(集群模式下就是key所在的节点)
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+@Component
+public class LuaScriptRegistry {
+
+    @Resource
+    RedisTemplate<String, Object> redisTemplate;
+
+    private final Map<String, RedisScript<?>> scripts = new ConcurrentHashMap<>();
+    private final LongAdder reloads = new LongAdder();
+
+    /**
+     * 注册脚本，启动完成后统一预加载；启动之后注册的脚本在第一次执行时加载
+     *
+     * @Param: [name, script]
+     * @return: org.springframework.data.redis.core.script.RedisScript<T>
+     */
+    public <T> RedisScript<T> register(String name, RedisScript<T> script) {
+        if (name == null || script == null) {
+            throw new IllegalArgumentException("register 参数不能为null");
+        }
+        RedisScript<?> existing = scripts.putIfAbsent(name, script);
+        if (existing != null && !existing.getSha1().equals(script.getSha1())) {
+            throw new IllegalArgumentException("脚本名称 " + name + " 已被其他脚本占用");
+        }
+        return script;
+    }
+
+    /**
+     * 把所有注册的脚本加载到redis
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadAll() {
+        try {
+            redisTemplate.execute((RedisCallback<Object>) connection -> {
+                scripts.forEach((name, script) -> connection.scriptingCommands()
+                        .scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+                return null;
+            });
+            log.info("已预加载{}个lua脚本", scripts.size());
+        } catch (RuntimeException e) {
+            //预加载只是优化，失败时第一次执行会通过EVAL加载
+            log.warn("预加载lua脚本失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 以EVALSHA执行脚本，NOSCRIPT时退回EVAL；keys按redisTemplate的key序列化，args由调用方序列化好
+     * 返回值按脚本的resultType：Long、Boolean、byte[](VALUE)、List(MULTI)，不做反序列化
+     *
+     * @Param: [script, keys, args]
+     * @return: T
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(RedisScript<T> script, List<String> keys, byte[]... args) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keySerializer.serialize(keys.get(i));
+        }
+        System.arraycopy(args, 0, keysAndArgs, keys.size(), args.length);
+        ReturnType returnType = ReturnType.fromJavaType(script.getResultType());
+        return redisTemplate.execute((RedisCallback<T>) connection ->
+                evalSha(connection, script, returnType, keys.size(), keysAndArgs));
+    }
+
+    /**
+     * 因NOSCRIPT重新加载的次数，持续增长说明脚本缓存经常被清空
+     *
+     * @return: long
+     */
+    public long reloadCount() {
+        return reloads.sum();
+    }
+
+    private <T> T evalSha(RedisConnection connection, RedisScript<T> script, ReturnType returnType, int numKeys,
+                          byte[][] keysAndArgs) {
+        try {
+            return connection.scriptingCommands().evalSha(script.getSha1(), returnType, numKeys, keysAndArgs);
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            reloads.increment();
+            return connection.scriptingCommands().eval(script.getScriptAsString().getBytes(StandardCharsets.UTF_8),
+                    returnType, numKeys, keysAndArgs);
+        }
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
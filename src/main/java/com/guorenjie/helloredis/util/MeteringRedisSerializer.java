@@ -0,0 +1,72 @@
+package com.guorenjie.helloredis.util;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * @Description 包装value序列化，把序列化/反序列化的字节数记到当前线程正在执行的redis命令上
+ * 当前线程没有绑定命令时不做任何记录
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class MeteringRedisSerializer implements RedisSerializer<Object> {
+
+    private static final ThreadLocal<PayloadRecorder> CURRENT = new ThreadLocal<>();
+
+    private final RedisSerializer<Object> delegate;
+
+    public MeteringRedisSerializer(RedisSerializer<Object> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 把recorder绑定到当前线程，返回之前绑定的recorder，用完后交给restore恢复
+     *
+     * @Param: [recorder]
+     * @return: com.guorenjie.helloredis.util.MeteringRedisSerializer.PayloadRecorder
+     */
+    public static PayloadRecorder bind(PayloadRecorder recorder) {
+        PayloadRecorder previous = CURRENT.get();
+        CURRENT.set(recorder);
+        return previous;
+    }
+
+    public static void restore(PayloadRecorder previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        byte[] bytes = delegate.serialize(value);
+        PayloadRecorder recorder = CURRENT.get();
+        if (recorder != null && bytes != null) {
+            recorder.recordPayload(true, bytes.length);
+        }
+        return bytes;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        PayloadRecorder recorder = CURRENT.get();
+        if (recorder != null && bytes != null) {
+            recorder.recordPayload(false, bytes.length);
+        }
+        return delegate.deserialize(bytes);
+    }
+
+    public RedisSerializer<Object> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * 接收payload字节数
+     */
+    public interface PayloadRecorder {
+
+        void recordPayload(boolean write, int bytes);
+    }
+}
@@ -0,0 +1,192 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * @Description 进程内近端缓存(L1)，放在RedisUtil.get前面，按LRU限制容量，按TTL限制陈旧时间
+ * 写操作通过pub/sub广播失效，本地副本只在读取期间该key没有被失效时才会写入；
+ * 每次失效取一个递增序号记在该key的墓碑上，回填时与读取开始时的序号比较，其他key的失效不影响回填
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class NearCache {
+
+    private final int maximumSize;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * 失效序号，每次失效自增；get未命中时先记下当前序号，回填时只与该key的墓碑比较
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * key -> 最近一次失效的序号，按失效顺序排列，最多保留maxTombstones个，只在持有entries锁时访问
+     */
+    private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<>();
+    private final int maxTombstones;
+
+    /**
+     * 被丢弃的墓碑和invalidateAll的最大序号，读取开始早于它的回填一律放弃
+     */
+    private long tombstoneFloor;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public NearCache(int maximumSize, long ttl, TimeUnit unit) {
+        this(maximumSize, ttl, unit, System::nanoTime);
+    }
+
+    NearCache(int maximumSize, long ttl, TimeUnit unit, LongSupplier ticker) {
+        if (maximumSize <= 0 || ttl <= 0 || unit == null) {
+            throw new IllegalArgumentException("NearCache maximumSize和ttl必须大于0");
+        }
+        this.maximumSize = maximumSize;
+        this.maxTombstones = Math.max(maximumSize, 1024);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.ticker = ticker;
+        //匿名子类中Entry会解析为继承来的Map.Entry，必须写全NearCache.Entry
+        this.entries = new LinkedHashMap<String, NearCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NearCache.Entry> eldest) {
+                if (size() > NearCache.this.maximumSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 获取本地副本，未命中或已过期返回null
+     *
+     * @Param: [key]
+     * @return: java.lang.Object
+     */
+    public Object get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expireAt - ticker.getAsLong() > 0) {
+                    hits.increment();
+                    return entry.value;
+                }
+                entries.remove(key);
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * 当前失效序号，在回源读取redis之前调用，回填时传回put
+     *
+     * @return: long
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * 回填本地副本，如果从读取generation到现在该key被失效过则放弃，避免把旧值写回
+     *
+     * @Param: [key, value, generation]
+     * @return: void
+     */
+    public void put(String key, Object value, long expectedGeneration) {
+        if (key == null || value == null) {
+            return;
+        }
+        synchronized (entries) {
+            if (expectedGeneration < tombstoneFloor) {
+                return;
+            }
+            Long invalidatedAt = tombstones.get(key);
+            if (invalidatedAt != null && invalidatedAt > expectedGeneration) {
+                return;
+            }
+            entries.put(key, new Entry(value, ticker.getAsLong() + ttlNanos));
+        }
+    }
+
+    /**
+     * 失效指定key，本节点写操作和收到其他节点的广播都会调用
+     *
+     * @Param: [key]
+     * @return: void
+     */
+    public void invalidate(String key) {
+        synchronized (entries) {
+            long sequence = generation.incrementAndGet();
+            tombstones.remove(key);
+            tombstones.put(key, sequence);
+            if (tombstones.size() > maxTombstones) {
+                //最早的墓碑序号最小，丢弃后由tombstoneFloor保守地拦住更早开始的回填
+                Iterator<Map.Entry<String, Long>> eldest = tombstones.entrySet().iterator();
+                tombstoneFloor = Math.max(tombstoneFloor, eldest.next().getValue());
+                eldest.remove();
+            }
+            if (entries.remove(key) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * 清空所有本地副本
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            tombstoneFloor = generation.incrementAndGet();
+            tombstones.clear();
+            invalidations.add(entries.size());
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * 命中、未命中、淘汰等计数，用于评估容量和TTL设置
+     *
+     * @return: java.util.Map<java.lang.String, java.lang.Long>
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("size", (long) size());
+        stats.put("maximumSize", (long) maximumSize);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long expireAt;
+
+        private Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.guorenjie.helloredis.util;
+
+/**
+ * @Description 限流器，key区分被限流的对象(接口、用户、IP等)
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public interface RateLimiter {
+
+    /**
+     * 获取permits个许可，全部获得才返回true，获取失败时不消耗许可
+     *
+     * @Param: [key, permits]
+     * @return: boolean
+     */
+    boolean tryAcquire(String key, long permits);
+
+    /**
+     * 最多获取permits个许可，返回实际获得的数量(可能为0)
+     *
+     * @Param: [key, permits]
+     * @return: long
+     */
+    long acquireUpTo(String key, long permits);
+
+    default boolean tryAcquire(String key) {
+        return tryAcquire(key, 1);
+    }
+}
@@ -0,0 +1,693 @@
+package com.guorenjie.helloredis.util;
+
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 响应式redis工具类，与RedisUtil的操作一一对应，返回Mono/Flux不阻塞调用线程
+ * 序列化方式与RedisUtil相同，两边读写的数据可以互通；
+ * 开启大value分块时String的读写经过ChunkedValueStore，需要多次往返，放到boundedElastic线程上执行；
+ * 不经过ReplicaReadRouter：开启读路由时读命令按连接工厂的读策略发往从节点，没有延迟回退，也不支持readFromPrimary，
+ * 需要读己之写时使用RedisUtil；此时从节点读到的值可能落后，不回填近端缓存
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+
+@Component
+public class ReactiveRedisUtil {
+
+    @Resource
+    ReactiveRedisTemplate<String, Object> reactiveRedisTemplate;
+
+    @Resource
+    HelloRedisProperties properties;
+
+    /**
+     * 本地近端缓存，未开启时为null
+     */
+    @Autowired(required = false)
+    NearCache nearCache;
+
+    /**
+     * key布隆过滤器，String写操作把key记录进去，未开启时为null
+     */
+    @Autowired(required = false)
+    RedisBloomFilter keyFilter;
+
+    /**
+     * 大value分块存储，未开启时为null
+     */
+    @Autowired(required = false)
+    ChunkedValueStore chunkedValueStore;
+
+    /**
+     * 热点key探测，写操作之后失效本节点的热点key副本，未开启时为null
+     */
+    @Autowired(required = false)
+    HotKeyDetector hotKeyDetector;
+
+    /**
+     * 读路由，开启时读命令可能发往从节点，未开启时为null
+     */
+    @Autowired(required = false)
+    ReplicaReadRouter replicaReadRouter;
+
+    /**-----------------------------key相关操作-------------------------------------*/
+    /**
+     * 是否存在key
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> hasKey(String key) {
+        if (key == null) {
+            return Mono.just(false);
+        }
+        return reactiveRedisTemplate.hasKey(key);
+    }
+
+    /**
+     * 删除key，返回删除的数量
+     *
+     * @Param: [keys]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> delete(String... keys) {
+        if (keys == null || keys.length == 0) {
+            return Mono.just(0L);
+        }
+        Mono<Long> deleted = chunkedValueStore == null ? reactiveRedisTemplate.delete(keys) : chunked(() -> {
+            long count = 0;
+            for (String key : keys) {
+                if (chunkedValueStore.delete(key)) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        return deleted
+                .flatMap(result -> invalidateNearCache(Arrays.asList(keys)).thenReturn(result));
+    }
+
+    /**
+     * 设置过期时间
+     *
+     * @Param: [key, timeout, unit]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> expire(String key, long timeout, TimeUnit unit) {
+        if (key == null || unit == null) {
+            return Mono.just(false);
+        }
+        Mono<Boolean> expired = chunkedValueStore == null
+                ? reactiveRedisTemplate.expire(key, Duration.ofMillis(unit.toMillis(timeout)))
+                : chunked(() -> chunkedValueStore.expire(key, unit.toMillis(timeout)));
+        return expired
+                .flatMap(result -> invalidateNearCache(key).thenReturn(result));
+    }
+
+    /**
+     * 查看key的过期时间，没有过期时间时为Duration.ZERO
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.time.Duration>
+     */
+    public Mono<Duration> getExpire(String key) {
+        if (key == null) {
+            return Mono.error(new IllegalArgumentException("getExpire 参数不能为null"));
+        }
+        return reactiveRedisTemplate.getExpire(key);
+    }
+
+    /**
+     * 基于SCAN惰性遍历匹配的key，COUNT使用helloredis.scan.count
+     *
+     * @Param: [pattern]
+     * @return: reactor.core.publisher.Flux<java.lang.String>
+     */
+    public Flux<String> scan(String pattern) {
+        if (pattern == null) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.scan(ScanOptions.scanOptions()
+                .match(pattern).count(properties.getScan().getCount()).build());
+    }
+    /**-----------------------------String相关操作-------------------------------------*/
+    /**
+     * 设置key-value
+     *
+     * @Param: [key, value]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> set(String key, Object value) {
+        if (key == null || value == null) {
+            return Mono.just(false);
+        }
+        Mono<Boolean> written = chunkedValueStore == null ? reactiveRedisTemplate.opsForValue().set(key, value)
+                : chunked(() -> {
+                    chunkedValueStore.write(key, value, -1);
+                    return true;
+                });
+        return written
+                .doOnSuccess(result -> rememberKey(key))
+                .flatMap(result -> invalidateNearCache(key).thenReturn(result));
+    }
+
+    /**
+     * 设置key value并设置过期时间
+     *
+     * @Param: [key, value, timeout, unit]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> set(String key, Object value, long timeout, TimeUnit unit) {
+        if (key == null || value == null || unit == null) {
+            return Mono.just(false);
+        }
+        Mono<Boolean> written = chunkedValueStore == null
+                ? reactiveRedisTemplate.opsForValue().set(key, value, Duration.ofMillis(unit.toMillis(timeout)))
+                : chunked(() -> {
+                    chunkedValueStore.write(key, value, unit.toMillis(timeout));
+                    return true;
+                });
+        return written
+                .doOnSuccess(result -> rememberKey(key))
+                .flatMap(result -> invalidateNearCache(key).thenReturn(result));
+    }
+
+    /**
+     * key不存在时设置value和过期时间
+     *
+     * @Param: [key, value, timeout, unit]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> setIfAbsent(String key, Object value, long timeout, TimeUnit unit) {
+        if (key == null || value == null || unit == null) {
+            return Mono.error(new IllegalArgumentException("setIfAbsent 参数不能为null"));
+        }
+        return reactiveRedisTemplate.opsForValue().setIfAbsent(key, value, Duration.ofMillis(unit.toMillis(timeout)))
+                .doOnNext(result -> {
+                    if (result) {
+                        rememberKey(key);
+                    }
+                })
+                .flatMap(result -> result ? invalidateNearCache(key).thenReturn(true) : Mono.just(false));
+    }
+
+    /**
+     * 获取指定key的值，key不存在时为空Mono
+     * 开启近端缓存时先读本地副本；开启读路由时未命中不回填
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.lang.Object>
+     */
+    public Mono<Object> get(String key) {
+        if (key == null) {
+            return Mono.empty();
+        }
+        if (nearCache == null) {
+            return load(key);
+        }
+        if (replicaReadRouter != null) {
+            Object value = nearCache.get(key);
+            return value != null ? Mono.just(value) : load(key);
+        }
+        Object value = nearCache.get(key);
+        if (value != null) {
+            return Mono.just(value);
+        }
+        long generation = nearCache.generation();
+        return load(key)
+                .doOnNext(loaded -> nearCache.put(key, loaded, generation));
+    }
+
+    /**
+     * 先获取，再设置
+     *
+     * @Param: [key, value]
+     * @return: reactor.core.publisher.Mono<java.lang.Object>
+     */
+    public Mono<Object> getSet(String key, Object value) {
+        if (key == null) {
+            return Mono.empty();
+        }
+        Mono<Object> previous = chunkedValueStore == null ? reactiveRedisTemplate.opsForValue().getAndSet(key, value)
+                : chunked(() -> chunkedValueStore.getAndWrite(key, value, -1));
+        return previous
+                .doOnSuccess(old -> rememberKey(key))
+                .flatMap(old -> invalidateNearCache(key).thenReturn(old))
+                .switchIfEmpty(invalidateNearCache(key).then(Mono.empty()));
+    }
+
+    /**
+     * 批量key获取批量value
+     *
+     * @Param: [keys]
+     * @return: reactor.core.publisher.Mono<java.util.List<java.lang.Object>>
+     */
+    public Mono<List<Object>> mget(Collection<String> keys) {
+        if (keys == null) {
+            return Mono.empty();
+        }
+        if (chunkedValueStore != null) {
+            return chunked(() -> chunkedValueStore.readAll(new ArrayList<>(keys)));
+        }
+        return reactiveRedisTemplate.opsForValue().multiGet(keys);
+    }
+
+    /**
+     * 将指定Key的Value原子性的增加increment
+     *
+     * @Param: [key, increment]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> incrby(String key, long increment) {
+        if (key == null) {
+            return Mono.error(new IllegalArgumentException("incrby 参数 key 不能为null"));
+        }
+        return reactiveRedisTemplate.opsForValue().increment(key, increment)
+                .doOnSuccess(result -> rememberKey(key))
+                .flatMap(result -> invalidateNearCache(key).thenReturn(result));
+    }
+
+    /**
+     * 将指定key的value原子性的减少decrement
+     *
+     * @Param: [key, decrement]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> decrby(String key, long decrement) {
+        if (key == null) {
+            return Mono.error(new IllegalArgumentException("decrby 参数 key 不能为null"));
+        }
+        return reactiveRedisTemplate.opsForValue().decrement(key, decrement)
+                .doOnSuccess(result -> rememberKey(key))
+                .flatMap(result -> invalidateNearCache(key).thenReturn(result));
+    }
+    /**-----------------------------hash相关操作-------------------------------------*/
+    /**
+     * 通过key和field获取指定的value
+     *
+     * @Param: [key, field]
+     * @return: reactor.core.publisher.Mono<java.lang.Object>
+     */
+    public Mono<Object> hGet(String key, Object field) {
+        if (key == null || field == null) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.opsForHash().get(key, field);
+    }
+
+    /**
+     * 设置key field value
+     *
+     * @Param: [key, field, value]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> hSet(String key, Object field, Object value) {
+        if (key == null || field == null) {
+            return Mono.just(false);
+        }
+        return reactiveRedisTemplate.opsForHash().put(key, field, value);
+    }
+
+    /**
+     * 删除指定key中的多个字段
+     *
+     * @Param: [key, fields]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> hDel(String key, Object... fields) {
+        if (key == null || fields == null || fields.length == 0) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForHash().remove(key, fields);
+    }
+
+    /**
+     * 通过指定的key获取所有的field和value
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Flux<java.util.Map.Entry<java.lang.Object, java.lang.Object>>
+     */
+    public Flux<Map.Entry<Object, Object>> hgetAll(String key) {
+        if (key == null) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.opsForHash().entries(key);
+    }
+
+    /**
+     * 批量设置hash的field/value
+     *
+     * @Param: [key, hash]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> hmSet(String key, Map<String, Object> hash) {
+        if (key == null || hash == null) {
+            return Mono.just(false);
+        }
+        return reactiveRedisTemplate.opsForHash().putAll(key, hash);
+    }
+
+    /**
+     * 获取指定key中的一组filed的一组value的值
+     *
+     * @Param: [key, fields]
+     * @return: reactor.core.publisher.Mono<java.util.List<java.lang.Object>>
+     */
+    public Mono<List<Object>> hmGet(String key, Collection<Object> fields) {
+        if (key == null || fields == null) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.opsForHash().multiGet(key, fields);
+    }
+
+    /**
+     * 对应key的字段自增相应的值
+     *
+     * @Param: [key, field, increment]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> hIncrby(String key, Object field, long increment) {
+        if (key == null || field == null) {
+            return Mono.error(new IllegalArgumentException("hIncrby key or field 不能为空"));
+        }
+        return reactiveRedisTemplate.opsForHash().increment(key, field, increment);
+    }
+    /**-----------------------------List相关操作-------------------------------------*/
+    /**
+     * 向列表左边添加元素，返回插入后链表中元素的数量
+     *
+     * @Param: [key, values]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> lPush(String key, Object... values) {
+        if (key == null) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForList().leftPushAll(key, values);
+    }
+
+    /**
+     * 向列表右边添加元素，返回插入后链表中元素的数量
+     *
+     * @Param: [key, values]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> rPush(String key, Object... values) {
+        if (key == null) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForList().rightPushAll(key, values);
+    }
+
+    /**
+     * 从左边弹出指定key的value
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.lang.Object>
+     */
+    public Mono<Object> lPop(String key) {
+        if (key == null) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.opsForList().leftPop(key);
+    }
+
+    /**
+     * 从右边弹出指定key的value
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.lang.Object>
+     */
+    public Mono<Object> rPop(String key) {
+        if (key == null) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.opsForList().rightPop(key);
+    }
+
+    /**
+     * 获取列表指定区间内的元素
+     *
+     * @Param: [key, start, end]
+     * @return: reactor.core.publisher.Flux<java.lang.Object>
+     */
+    public Flux<Object> lRange(String key, long start, long end) {
+        if (key == null) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.opsForList().range(key, start, end);
+    }
+
+    /**
+     * 返回指定key关联的队列中的元素数量
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> lLen(String key) {
+        if (null == key) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForList().size(key);
+    }
+    /** *************Set数据类型************* */
+    /**
+     * 向set中插入
+     *
+     * @Param: [key, members]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> sAdd(String key, Object... members) {
+        if (null == key) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForSet().add(key, members);
+    }
+
+    /**
+     * 返回set成员数量
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> sCard(String key) {
+        if (null == key) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForSet().size(key);
+    }
+
+    /**
+     * 判断是否是成员
+     *
+     * @Param: [key, member]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> sIsMember(String key, Object member) {
+        if (null == key) {
+            return Mono.just(false);
+        }
+        return reactiveRedisTemplate.opsForSet().isMember(key, member);
+    }
+
+    /**
+     * 获取所有member
+     *
+     * @Param: [key]
+     * @return: reactor.core.publisher.Flux<java.lang.Object>
+     */
+    public Flux<Object> sMembers(String key) {
+        if (null == key) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.opsForSet().members(key);
+    }
+
+    /**
+     * 从set中删除指定的成员
+     *
+     * @Param: [key, members]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> sRem(String key, Object... members) {
+        if (null == key) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForSet().remove(key, members);
+    }
+    //**********Sorted Set 数据类型********************
+
+    /**
+     * 添加成员及其分数到sorted set
+     *
+     * @Param: [key, score, member]
+     * @return: reactor.core.publisher.Mono<java.lang.Boolean>
+     */
+    public Mono<Boolean> zAdd(String key, double score, Object member) {
+        if (null == key) {
+            return Mono.just(false);
+        }
+        return reactiveRedisTemplate.opsForZSet().add(key, member, score);
+    }
+
+    /**
+     * 移除sorted set中指定的成员
+     *
+     * @Param: [key, members]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> zRem(String key, Object... members) {
+        if (null == key || null == members) {
+            return Mono.just(0L);
+        }
+        return reactiveRedisTemplate.opsForZSet().remove(key, members);
+    }
+
+    /**
+     * 为指定成员增加分数，返回新分数
+     *
+     * @Param: [key, score, member]
+     * @return: reactor.core.publisher.Mono<java.lang.Double>
+     */
+    public Mono<Double> zIncrby(String key, double score, Object member) {
+        if (null == key) {
+            return Mono.error(new IllegalArgumentException("zIncrby key 不能为空"));
+        }
+        return reactiveRedisTemplate.opsForZSet().incrementScore(key, member, score);
+    }
+
+    /**
+     * 返回成员按分数从低到高的排名
+     *
+     * @Param: [key, member]
+     * @return: reactor.core.publisher.Mono<java.lang.Long>
+     */
+    public Mono<Long> zRank(String key, Object member) {
+        if (null == key) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.opsForZSet().rank(key, member);
+    }
+
+    /**
+     * 返回成员的分数
+     *
+     * @Param: [key, member]
+     * @return: reactor.core.publisher.Mono<java.lang.Double>
+     */
+    public Mono<Double> zScore(String key, Object member) {
+        if (null == key) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.opsForZSet().score(key, member);
+    }
+
+    /**
+     * 返回排名在start和end之间的成员，从低到高
+     *
+     * @Param: [key, start, end]
+     * @return: reactor.core.publisher.Flux<java.lang.Object>
+     */
+    public Flux<Object> zRange(String key, long start, long end) {
+        if (null == key) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.opsForZSet().range(key, Range.closed(start, end));
+    }
+
+    /**
+     * 返回排名在start和end之间的成员，从高到低
+     *
+     * @Param: [key, start, end]
+     * @return: reactor.core.publisher.Flux<java.lang.Object>
+     */
+    public Flux<Object> zReverseRange(String key, long start, long end) {
+        if (null == key) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.opsForZSet().reverseRange(key, Range.closed(start, end));
+    }
+
+    /**
+     * 返回分数在min和max之间的成员，从低到高
+     *
+     * @Param: [key, min, max]
+     * @return: reactor.core.publisher.Flux<java.lang.Object>
+     */
+    public Flux<Object> zRangeByScore(String key, double min, double max) {
+        if (null == key) {
+            return Flux.empty();
+        }
+        return reactiveRedisTemplate.opsForZSet().rangeByScore(key, Range.closed(min, max));
+    }
+
+    /**
+     * 读取String，开启分块时经过ChunkedValueStore
+     */
+    private Mono<Object> load(String key) {
+        return chunkedValueStore == null ? reactiveRedisTemplate.opsForValue().get(key)
+                : chunked(() -> chunkedValueStore.read(key));
+    }
+
+    /**
+     * 分块读写是阻塞调用，放到boundedElastic线程上执行，不占用lettuce的事件循环线程；返回null时为空Mono
+     */
+    private <T> Mono<T> chunked(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 写操作之后失效本地副本，并广播给其他节点
+     * 热点key副本只在本节点失效，其他节点的副本依赖短TTL过期，与RedisUtil相同
+     */
+    private Mono<Void> invalidateNearCache(String key) {
+        return invalidateNearCache(Collections.singletonList(key));
+    }
+
+    private Mono<Void> invalidateNearCache(Collection<String> keys) {
+        Mono<Void> hotKeys = hotKeyDetector == null ? Mono.empty()
+                : Mono.fromRunnable(() -> keys.forEach(hotKeyDetector.getLocalCopies()::invalidate));
+        if (nearCache == null) {
+            return hotKeys;
+        }
+        ByteBuffer channel = ByteBuffer.wrap(
+                properties.getNearCache().getInvalidationChannel().getBytes(StandardCharsets.UTF_8));
+        return hotKeys.thenMany(Flux.fromIterable(keys))
+                .doOnNext(nearCache::invalidate)
+                .concatMap(key -> reactiveRedisTemplate.execute(connection -> connection.pubSubCommands()
+                        .publish(channel.duplicate(), ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)))))
+                .then();
+    }
+
+    /**
+     * 把新写入的String key记录到布隆过滤器
+     */
+    private void rememberKey(String key) {
+        if (keyFilter != null) {
+            keyFilter.put(key);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.guorenjie.helloredis.util;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * @Description 批量管道执行器，把多条不同类型的命令攒起来用一次executePipelined发出
+ * 按命令条数和字节数自动分块，大批量导入时不会在内存里攒一个巨大的缓冲区；
+ * 开启大value分块时String的set/get/delete/expire在管道中改用ChunkedValueStore的脚本，管道返回后再读写分块
+ * 非线程安全，一个批次只在一个线程中使用
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class RedisBatch {
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final RedisSerializer<Object> keySerializer;
+    private final RedisSerializer<Object> valueSerializer;
+    private final RedisSerializer<Object> hashKeySerializer;
+    private final RedisSerializer<Object> hashValueSerializer;
+    /**
+     * 大value分块存储，未开启时为null
+     */
+    private final ChunkedValueStore chunkedValueStore;
+    private final int maxOps;
+    private final long maxBytes;
+    /**
+     * 写命令执行后回调受影响的key，用于失效本地近端缓存，可以为null
+     */
+    private final Consumer<String> onWrite;
+
+    private final List<Op> pending = new ArrayList<>();
+    private final List<Response<?>> responses = new ArrayList<>();
+    private long pendingBytes;
+
+    @SuppressWarnings("unchecked")
+    RedisBatch(RedisTemplate<String, Object> redisTemplate, ChunkedValueStore chunkedValueStore, int maxOps,
+               long maxBytes, Consumer<String> onWrite) {
+        if (maxOps <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("RedisBatch maxOps和maxBytes必须大于0");
+        }
+        this.redisTemplate = redisTemplate;
+        this.keySerializer = (RedisSerializer<Object>) redisTemplate.getKeySerializer();
+        this.valueSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        this.hashKeySerializer = (RedisSerializer<Object>) redisTemplate.getHashKeySerializer();
+        this.hashValueSerializer = (RedisSerializer<Object>) redisTemplate.getHashValueSerializer();
+        this.chunkedValueStore = chunkedValueStore;
+        this.maxOps = maxOps;
+        this.maxBytes = maxBytes;
+        this.onWrite = onWrite;
+    }
+
+    /**-----------------------------String相关操作-------------------------------------*/
+    public Response<Boolean> set(String key, Object value) {
+        byte[] rawKey = rawKey(key);
+        byte[] rawValue = valueSerializer.serialize(value);
+        if (chunkedValueStore != null) {
+            return chunkedSet(key, rawKey, rawValue, -1);
+        }
+        return queue(connection -> connection.stringCommands().set(rawKey, rawValue), key, false, rawKey, rawValue);
+    }
+
+    public Response<Boolean> set(String key, Object value, long timeout, TimeUnit unit) {
+        byte[] rawKey = rawKey(key);
+        byte[] rawValue = valueSerializer.serialize(value);
+        if (chunkedValueStore != null) {
+            return chunkedSet(key, rawKey, rawValue, unit.toMillis(timeout));
+        }
+        Expiration expiration = Expiration.from(timeout, unit);
+        return queue(connection -> connection.stringCommands().set(rawKey, rawValue, expiration,
+                RedisStringCommands.SetOption.upsert()), key, false, rawKey, rawValue);
+    }
+
+    public Response<Object> get(String key) {
+        byte[] rawKey = rawKey(key);
+        Op op = new Op(connection -> connection.stringCommands().get(rawKey), null, false, rawKey.length);
+        op.converter = chunkedValueStore != null ? raw -> chunkedValueStore.resolve(key, (byte[]) raw)
+                : raw -> valueSerializer.deserialize((byte[]) raw);
+        return queue(op);
+    }
+
+    public Response<Long> incrby(String key, long increment) {
+        byte[] rawKey = rawKey(key);
+        return queue(connection -> connection.stringCommands().incrBy(rawKey, increment), key, false, rawKey);
+    }
+
+    /**-----------------------------key相关操作-------------------------------------*/
+    public Response<Boolean> expire(String key, long timeout, TimeUnit unit) {
+        byte[] rawKey = rawKey(key);
+        long millis = unit.toMillis(timeout);
+        if (chunkedValueStore == null) {
+            return queue(connection -> connection.keyCommands().pExpire(rawKey, millis), key, false, rawKey);
+        }
+        Op op;
+        if (millis <= 0) {
+            //与redis相同，过期时间不大于0时直接删除，分块一并删除
+            op = new Op(connection -> chunkedValueStore.queueDelete(connection, rawKey), key, false, rawKey.length);
+            op.converter = previous -> chunkedValueStore.afterDelete(key, previous) == 1L;
+        } else {
+            op = new Op(connection -> chunkedValueStore.queueExpire(connection, rawKey, millis), key, false,
+                    rawKey.length);
+            op.converter = result -> chunkedValueStore.afterExpire(key, result, millis);
+        }
+        return queue(op);
+    }
+
+    public Response<Long> delete(String key) {
+        byte[] rawKey = rawKey(key);
+        if (chunkedValueStore == null) {
+            return queue(connection -> connection.keyCommands().del(rawKey), key, false, rawKey);
+        }
+        Op op = new Op(connection -> chunkedValueStore.queueDelete(connection, rawKey), key, false, rawKey.length);
+        op.converter = previous -> chunkedValueStore.afterDelete(key, previous);
+        return queue(op);
+    }
+
+    /**-----------------------------hash相关操作-------------------------------------*/
+    public Response<Boolean> hSet(String key, Object field, Object value) {
+        byte[] rawKey = rawKey(key);
+        byte[] rawField = hashKeySerializer.serialize(field);
+        byte[] rawValue = hashValueSerializer.serialize(value);
+        return queue(connection -> connection.hashCommands().hSet(rawKey, rawField, rawValue),
+                null, false, rawKey, rawField, rawValue);
+    }
+
+    /**
+     * HMSET在管道中是状态回复，不占用结果位置，返回的Response结果恒为null
+     */
+    public Response<Void> hmSet(String key, Map<String, Object> hash) {
+        byte[] rawKey = rawKey(key);
+        Map<byte[], byte[]> rawHash = new LinkedHashMap<>(hash.size());
+        long bytes = rawKey.length;
+        for (Map.Entry<String, Object> entry : hash.entrySet()) {
+            byte[] rawField = hashKeySerializer.serialize(entry.getKey());
+            byte[] rawValue = hashValueSerializer.serialize(entry.getValue());
+            rawHash.put(rawField, rawValue);
+            bytes += rawField.length + rawValue.length;
+        }
+        return queue(new Op(connection -> connection.hashCommands().hMSet(rawKey, rawHash), null, true, bytes));
+    }
+
+    public Response<Long> hDel(String key, Object... fields) {
+        byte[] rawKey = rawKey(key);
+        byte[][] rawFields = new byte[fields.length][];
+        long bytes = rawKey.length;
+        for (int i = 0; i < fields.length; i++) {
+            rawFields[i] = hashKeySerializer.serialize(fields[i]);
+            bytes += rawFields[i].length;
+        }
+        return queue(new Op(connection -> connection.hashCommands().hDel(rawKey, rawFields), null, false, bytes));
+    }
+
+    public Response<Long> hIncrby(String key, Object field, long increment) {
+        byte[] rawKey = rawKey(key);
+        byte[] rawField = hashKeySerializer.serialize(field);
+        return queue(connection -> connection.hashCommands().hIncrBy(rawKey, rawField, increment),
+                null, false, rawKey, rawField);
+    }
+
+    /**-----------------------------List相关操作-------------------------------------*/
+    public Response<Long> lPush(String key, Object... values) {
+        byte[] rawKey = rawKey(key);
+        byte[][] rawValues = rawValues(values);
+        return queue(new Op(connection -> connection.listCommands().lPush(rawKey, rawValues),
+                null, false, rawKey.length + length(rawValues)));
+    }
+
+    public Response<Long> rPush(String key, Object... values) {
+        byte[] rawKey = rawKey(key);
+        byte[][] rawValues = rawValues(values);
+        return queue(new Op(connection -> connection.listCommands().rPush(rawKey, rawValues),
+                null, false, rawKey.length + length(rawValues)));
+    }
+
+    /**-----------------------------Set相关操作-------------------------------------*/
+    public Response<Long> sAdd(String key, Object... members) {
+        byte[] rawKey = rawKey(key);
+        byte[][] rawMembers = rawValues(members);
+        return queue(new Op(connection -> connection.setCommands().sAdd(rawKey, rawMembers),
+                null, false, rawKey.length + length(rawMembers)));
+    }
+
+    /**-----------------------------Sorted Set相关操作-------------------------------------*/
+    public Response<Boolean> zAdd(String key, double score, Object member) {
+        byte[] rawKey = rawKey(key);
+        byte[] rawMember = valueSerializer.serialize(member);
+        return queue(connection -> connection.zSetCommands().zAdd(rawKey, score, rawMember),
+                null, false, rawKey, rawMember);
+    }
+
+    public Response<Double> zIncrby(String key, double increment, Object member) {
+        byte[] rawKey = rawKey(key);
+        byte[] rawMember = valueSerializer.serialize(member);
+        return queue(connection -> connection.zSetCommands().zIncrBy(rawKey, increment, rawMember),
+                null, false, rawKey, rawMember);
+    }
+
+    public Response<Long> zRemRangeByRank(String key, long start, long end) {
+        byte[] rawKey = rawKey(key);
+        return queue(connection -> connection.zSetCommands().zRemRange(rawKey, start, end), null, false, rawKey);
+    }
+
+    /**
+     * 已加入批次的命令数(包括已经自动分块发出的)
+     *
+     * @return: int
+     */
+    public int size() {
+        return responses.size();
+    }
+
+    /**
+     * 发出剩余命令，按加入顺序返回本批次所有命令的结果
+     *
+     * @return: java.util.List<java.lang.Object>
+     */
+    public List<Object> execute() {
+        flush();
+        List<Object> results = new ArrayList<>(responses.size());
+        for (Response<?> response : responses) {
+            results.add(response.get());
+        }
+        return results;
+    }
+
+    /**
+     * 把当前攒下的命令用一次管道发出
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Op> ops = new ArrayList<>(pending);
+        pending.clear();
+        pendingBytes = 0;
+        for (Op op : ops) {
+            if (op.before != null) {
+                op.before.run();
+            }
+        }
+        //结果保持原始字节，由各命令自己反序列化(分块存储的清单需要先还原)
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Op op : ops) {
+                op.command.accept(connection);
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        int index = 0;
+        for (Op op : ops) {
+            Object result = op.status ? null : results.get(index++);
+            op.response.set(op.converter == null || result instanceof Exception ? result : op.converter.apply(result));
+            if (onWrite != null && op.writtenKey != null) {
+                onWrite.accept(op.writtenKey);
+            }
+        }
+    }
+
+    /**
+     * 大value在发出管道之前写入分块，管道中用脚本写入清单并取回旧清单，返回后清理旧分块
+     */
+    private Response<Boolean> chunkedSet(String key, byte[] rawKey, byte[] rawValue, long ttlMillis) {
+        byte[][] stored = new byte[1][];
+        Op op = new Op(connection -> chunkedValueStore.queueSet(connection, rawKey, stored[0], ttlMillis), key, false,
+                rawKey.length + rawValue.length);
+        op.before = () -> stored[0] = chunkedValueStore.store(key, rawValue, ttlMillis);
+        op.converter = previous -> {
+            chunkedValueStore.afterSet(key, previous);
+            return Boolean.TRUE;
+        };
+        return queue(op);
+    }
+
+    private <T> Response<T> queue(Consumer<RedisConnection> command, String writtenKey, boolean status,
+                                  byte[]... raw) {
+        return queue(new Op(command, writtenKey, status, length(raw)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Response<T> queue(Op op) {
+        pending.add(op);
+        responses.add(op.response);
+        pendingBytes += op.bytes;
+        if (pending.size() >= maxOps || pendingBytes >= maxBytes) {
+            flush();
+        }
+        return (Response<T>) op.response;
+    }
+
+    private byte[] rawKey(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("RedisBatch key 不能为null");
+        }
+        return keySerializer.serialize(key);
+    }
+
+    private byte[][] rawValues(Object... values) {
+        byte[][] raw = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            raw[i] = valueSerializer.serialize(values[i]);
+        }
+        return raw;
+    }
+
+    private static long length(byte[]... raw) {
+        long length = 0;
+        for (byte[] bytes : raw) {
+            length += bytes == null ? 0 : bytes.length;
+        }
+        return length;
+    }
+
+    private static final class Op {
+        private final Consumer<RedisConnection> command;
+        private final String writtenKey;
+        private final boolean status;
+        private final long bytes;
+        private final Response<Object> response = new Response<>();
+        /**
+         * 发出管道之前执行，可以为null
+         */
+        private Runnable before;
+        /**
+         * 把管道返回的原始结果转换为命令结果，为null时原样返回
+         */
+        private Function<Object, Object> converter;
+
+        private Op(Consumer<RedisConnection> command, String writtenKey, boolean status, long bytes) {
+            this.command = command;
+            this.writtenKey = writtenKey;
+            this.status = status;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * 单条命令的结果，所在分块发出之后才能获取
+     */
+    public static final class Response<T> {
+        private T value;
+        private boolean done;
+
+        @SuppressWarnings("unchecked")
+        private void set(Object value) {
+            this.value = (T) value;
+            this.done = true;
+        }
+
+        public T get() {
+            if (!done) {
+                throw new IllegalStateException("批次尚未执行，请先调用execute或flush");
+            }
+            return value;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
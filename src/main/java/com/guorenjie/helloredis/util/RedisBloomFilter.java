@@ -0,0 +1,308 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 存储在redis bitmap中的key布隆过滤器，用来在读redis之前拦截一定不存在的key(缓存穿透)
+ * 判断只查进程内镜像，不访问redis；写入时镜像立即更新，置位的SETBIT攒起来定期用一次管道写入redis；
+ * 镜像定期用GETRANGE分段拉取redis中的bitmap合并进来，所以其他节点新写入的key最多滞后一个同步间隔。
+ * bitmap不存在或大小与配置不符时，由拿到分布式锁的节点SCAN全部key在临时key中重建，完成后RENAME替换，
+ * 替换前把重建期间其他节点刷入正式bitmap的置位BITOP OR合并到临时key，与RENAME在同一个脚本中原子执行；
+ * 重建完成之前过滤器不拦截任何key。
+ * 过滤器只覆盖通过本应用写入的key(以及重建时SCAN到的key)，其他客户端直接写入redis的key在下次重建之前会被误判为不存在
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class RedisBloomFilter implements AutoCloseable {
+
+    /**
+     * 每次GETRANGE拉取的字节数
+     */
+    private static final int SYNC_CHUNK_BYTES = 1024 * 1024;
+
+    /**
+     * KEYS[1]为正式bitmap，KEYS[2]为临时key，ARGV[1]为bitmap最后一位的偏移，ARGV[2]为bitmap字节数；
+     * 正式bitmap不超过配置大小时合并进临时key(旧配置留下的更短bitmap合并进来只会增加误判，不会漏判)，
+     * 然后撑到完整长度并RENAME替换
+     */
+    private static final byte[] REPLACE_SCRIPT = ("if redis.call('strlen', KEYS[1]) <= tonumber(ARGV[2]) then " +
+                    "redis.call('bitop', 'or', KEYS[2], KEYS[2], KEYS[1]) " +
+            "end " +
+            "redis.call('setbit', KEYS[2], ARGV[1], 0) " +
+            "return redis.call('rename', KEYS[2], KEYS[1])").getBytes(StandardCharsets.UTF_8);
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    /**
+     * 重建时用来SCAN，RedisUtil本身依赖过滤器，延迟获取
+     */
+    private final ObjectProvider<RedisUtil> redisUtil;
+    private final DistributedLock lock;
+    private final String name;
+    private final String bitmapKey;
+    private final String rebuildKey;
+    private final long expectedInsertions;
+    private final double falsePositiveRate;
+    private final String scanPattern;
+    private final int scanCount;
+    private final ScheduledExecutorService scheduler;
+    private final Set<Long> unflushed = ConcurrentHashMap.newKeySet();
+
+    private volatile BloomFilter mirror;
+    private volatile BloomFilter rebuildingMirror;
+    private volatile boolean rebuilding;
+    private volatile boolean ready;
+
+    public RedisBloomFilter(RedisTemplate<String, Object> redisTemplate, ObjectProvider<RedisUtil> redisUtil,
+                            DistributedLock lock, String name,
+                            long expectedInsertions, double falsePositiveRate, String scanPattern, int scanCount,
+                            long flushIntervalMillis, long syncIntervalMillis) {
+        if (flushIntervalMillis <= 0 || syncIntervalMillis <= 0 || scanCount <= 0) {
+            throw new IllegalArgumentException("RedisBloomFilter 间隔和scanCount必须大于0");
+        }
+        this.redisTemplate = redisTemplate;
+        this.redisUtil = redisUtil;
+        this.lock = lock;
+        this.name = name;
+        //bitmap和重建用的临时key在同一个slot，集群模式下才能RENAME
+        this.bitmapKey = ClusterKeys.hashTag(name);
+        this.rebuildKey = ClusterKeys.colocated(name, "rebuild");
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.scanPattern = scanPattern;
+        this.scanCount = scanCount;
+        this.mirror = BloomFilter.create(expectedInsertions, falsePositiveRate);
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "redis-bloom-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::syncQuietly, 0, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("key布隆过滤器{}：{}位，{}个哈希函数，约{}KB", name, mirror.bitSize(), mirror.hashCount(),
+                mirror.byteSize() / 1024);
+    }
+
+    /**
+     * false表示key一定不存在；过滤器还没有就绪时总是返回true
+     *
+     * @Param: [key]
+     * @return: boolean
+     */
+    public boolean mightContain(String key) {
+        return key == null || !ready || mirror.mightContain(key);
+    }
+
+    /**
+     * 记录写入的key：镜像立即置位，redis中的bitmap在下次刷新时置位
+     *
+     * @Param: [key]
+     * @return: void
+     */
+    public void put(String key) {
+        if (key == null) {
+            return;
+        }
+        BloomFilter current = mirror;
+        long[] offsets = current.offsets(key);
+        current.set(offsets);
+        BloomFilter next = rebuildingMirror;
+        if (next != null) {
+            next.set(offsets);
+        }
+        if (mirror != current) {
+            //重建恰好在此期间完成，新镜像也要置位
+            mirror.set(offsets);
+        }
+        for (long offset : offsets) {
+            unflushed.add(offset);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 镜像中置1的位数占比
+     *
+     * @return: double
+     */
+    public double fillRatio() {
+        return mirror.fillRatio();
+    }
+
+    /**
+     * 把攒下的置位写入redis，重建期间同时写入临时key
+     */
+    public void flush() {
+        if (unflushed.isEmpty()) {
+            return;
+        }
+        List<Long> offsets = new ArrayList<>(unflushed);
+        unflushed.removeAll(offsets);
+        boolean alsoRebuild = rebuilding;
+        byte[] rawKey = rawKey(bitmapKey);
+        byte[] rawRebuildKey = rawKey(rebuildKey);
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long offset : offsets) {
+                    connection.stringCommands().setBit(rawKey, offset, true);
+                    if (alsoRebuild) {
+                        connection.stringCommands().setBit(rawRebuildKey, offset, true);
+                    }
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            unflushed.addAll(offsets);
+            throw e;
+        }
+    }
+
+    /**
+     * 拉取redis中的bitmap合并到镜像；bitmap不存在或大小不符时触发重建
+     */
+    public void sync() {
+        BloomFilter current = mirror;
+        Long length = redisTemplate.execute(
+                (RedisCallback<Long>) connection -> connection.stringCommands().strLen(rawKey(bitmapKey)));
+        if (length == null || length != current.byteSize()) {
+            ready = false;
+            rebuild();
+            return;
+        }
+        load(bitmapKey, current);
+        ready = true;
+    }
+
+    /**
+     * 拿到分布式锁时SCAN全部匹配的key重建bitmap，其他节点的重建正在进行时直接返回
+     *
+     * @return: long 重建时遍历的key数，没有拿到锁返回-1
+     */
+    public long rebuild() {
+        DistributedLock.LockHandle handle = lock.tryLock(name + ":rebuild");
+        if (handle == null) {
+            log.info("其他节点正在重建key布隆过滤器{}，等待下次同步", name);
+            return -1;
+        }
+        try (DistributedLock.LockHandle ignored = handle) {
+            BloomFilter next = BloomFilter.create(expectedInsertions, falsePositiveRate);
+            redisTemplate.delete(rebuildKey);
+            rebuildingMirror = next;
+            rebuilding = true;
+            long count = scanInto(next);
+            //其他节点不知道正在重建，它们的置位只写入正式bitmap，替换时合并过来；写最后一位把bitmap撑到完整长度
+            redisTemplate.execute((RedisCallback<Object>) connection -> connection.scriptingCommands().eval(
+                    REPLACE_SCRIPT, ReturnType.STATUS, 2, rawKey(bitmapKey), rawKey(rebuildKey),
+                    decimal(next.bitSize() - 1), decimal(next.byteSize())));
+            rebuilding = false;
+            load(bitmapKey, next);
+            mirror = next;
+            rebuildingMirror = null;
+            ready = true;
+            log.info("key布隆过滤器{}重建完成，共{}个key，填充率{}", name, count, next.fillRatio());
+            return count;
+        } finally {
+            rebuilding = false;
+            rebuildingMirror = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        flushQuietly();
+    }
+
+    /**
+     * 用RedisUtil.scan分批遍历(集群模式下依次遍历每个主节点)，每批key的置位用一次管道写入临时key
+     */
+    private long scanInto(BloomFilter next) {
+        byte[] rawRebuildKey = rawKey(rebuildKey);
+        long[] count = new long[1];
+        redisUtil.getObject().scan(scanPattern, scanCount, scanCount, keys -> {
+            List<long[]> batch = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                if (key == null || key.startsWith(bitmapKey) || key.startsWith(rebuildKey)) {
+                    continue;
+                }
+                long[] offsets = next.offsets(key);
+                next.set(offsets);
+                batch.add(offsets);
+                count[0]++;
+            }
+            setBits(rawRebuildKey, batch);
+        });
+        return count[0];
+    }
+
+    private void setBits(byte[] rawKey, List<long[]> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long[] offsets : batch) {
+                for (long offset : offsets) {
+                    connection.stringCommands().setBit(rawKey, offset, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    private void load(String key, BloomFilter target) {
+        byte[] rawKey = rawKey(key);
+        long size = target.byteSize();
+        for (long start = 0; start < size; start += SYNC_CHUNK_BYTES) {
+            long end = Math.min(size, start + SYNC_CHUNK_BYTES) - 1;
+            long from = start;
+            byte[] chunk = redisTemplate.execute(
+                    (RedisCallback<byte[]>) connection -> connection.stringCommands().getRange(rawKey, from, end));
+            if (chunk != null) {
+                target.merge(chunk, start);
+            }
+        }
+    }
+
+    private static byte[] decimal(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] rawKey(String key) {
+        return ((RedisSerializer<String>) redisTemplate.getKeySerializer()).serialize(key);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("写入key布隆过滤器{}失败，下次重试: {}", name, e.getMessage());
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            log.warn("同步key布隆过滤器{}失败: {}", name, e.getMessage());
+        }
+    }
+}
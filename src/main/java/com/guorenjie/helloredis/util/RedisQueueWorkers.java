@@ -0,0 +1,352 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 基于redis list的阻塞队列消费者：生产者用RedisUtil.lPush入队，每个worker线程独占一个连接，
+ * 用BRPOPLPUSH阻塞等待，队列为空时不轮询；取到一条后再用一个lua脚本最多搬出batchSize-1条，积压时一次往返处理一批。
+ * 取出的元素先进入worker自己的处理中列表，整批处理完才删除，处理失败的元素转入失败列表；
+ * worker的心跳由单独的定时任务刷新，处理耗时较长的一批时也不会过期；心跳过期的worker(进程崩溃)的处理中列表
+ * 由其他worker搬回队列重新消费，保证至少处理一次。
+ * 处理中列表、失败列表、心跳都用队列名作hash tag，集群模式下与队列在同一个slot
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class RedisQueueWorkers implements AutoCloseable {
+
+    /**
+     * 从队列右端最多再搬出ARGV[1]条到处理中列表，返回搬出的元素
+     */
+    @SuppressWarnings("rawtypes")
+    static final RedisScript<List> DRAIN_SCRIPT = new DefaultRedisScript<>(
+            "local items = {} " +
+            "for i = 1, tonumber(ARGV[1]) do " +
+            "  local item = redis.call('rpoplpush', KEYS[1], KEYS[2]) " +
+            "  if not item then break end " +
+            "  items[i] = item " +
+            "end " +
+            "return items", List.class);
+
+    /**
+     * 确认一批：失败的元素转入失败列表，清空处理中列表
+     * KEYS：处理中列表、失败列表；ARGV：失败的元素
+     */
+    static final RedisScript<Long> ACK_SCRIPT = new DefaultRedisScript<>(
+            "if #ARGV > 0 then redis.call('lpush', KEYS[2], unpack(ARGV)) end " +
+            "return redis.call('del', KEYS[1])", Long.class);
+
+    /**
+     * 心跳已过期的worker：处理中列表按原顺序放回队列右端(下一个被消费)，并从worker集合中移除；心跳还在时返回-1
+     * KEYS：队列、处理中列表、心跳、worker集合；ARGV：workerId
+     */
+    static final RedisScript<Long> RECOVER_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[3]) == 1 then return -1 end " +
+            "local moved = 0 " +
+            "while true do " +
+            "  local item = redis.call('lpop', KEYS[2]) " +
+            "  if not item then break end " +
+            "  redis.call('rpush', KEYS[1], item) " +
+            "  moved = moved + 1 " +
+            "end " +
+            "redis.call('srem', KEYS[4], ARGV[1]) " +
+            "return moved", Long.class);
+
+    private final LettuceConnectionFactory connectionFactory;
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final LuaScriptRegistry luaScripts;
+    private final RedisSerializer<String> keySerializer;
+    private final RedisSerializer<Object> valueSerializer;
+    private final int blockSeconds;
+    private final int batchSize;
+    private final long heartbeatSeconds;
+    private final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+    private final Set<String> queues = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param connectionFactory 不共享连接、不使用连接池的连接工厂，每个worker从中取得独占连接，由本对象负责关闭
+     * @param redisTemplate 心跳和恢复使用的共享模板，只有阻塞的BRPOPLPUSH需要独占连接
+     */
+    public RedisQueueWorkers(LettuceConnectionFactory connectionFactory, RedisTemplate<String, Object> redisTemplate,
+                             LuaScriptRegistry luaScripts,
+                             RedisSerializer<String> keySerializer, RedisSerializer<Object> valueSerializer,
+                             int blockSeconds, int batchSize, long heartbeatSeconds, long recoveryIntervalMillis) {
+        if (blockSeconds <= 0 || batchSize <= 0 || heartbeatSeconds <= blockSeconds || recoveryIntervalMillis <= 0) {
+            throw new IllegalArgumentException("RedisQueueWorkers 参数不合法，心跳时长必须大于阻塞时长");
+        }
+        this.connectionFactory = connectionFactory;
+        this.redisTemplate = redisTemplate;
+        this.luaScripts = luaScripts;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.blockSeconds = blockSeconds;
+        this.batchSize = batchSize;
+        this.heartbeatSeconds = heartbeatSeconds;
+        luaScripts.register("queueWorkers.drain", DRAIN_SCRIPT);
+        luaScripts.register("queueWorkers.ack", ACK_SCRIPT);
+        luaScripts.register("queueWorkers.recover", RECOVER_SCRIPT);
+        //心跳和恢复各用一个线程，恢复较慢时不会耽误心跳
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "redis-queue-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long heartbeatMillis = TimeUnit.SECONDS.toMillis(heartbeatSeconds) / 3;
+        scheduler.scheduleWithFixedDelay(this::heartbeatQuietly, heartbeatMillis, heartbeatMillis,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::recoverQuietly, recoveryIntervalMillis, recoveryIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 启动concurrency个worker消费queue，元素按入队顺序(lPush)取出
+     *
+     * @Param: [queue, concurrency, handler]
+     * @return: void
+     */
+    public void start(String queue, int concurrency, Handler handler) {
+        if (queue == null || handler == null || concurrency <= 0) {
+            throw new IllegalArgumentException("start queue和handler不能为null，concurrency必须大于0");
+        }
+        if (!running) {
+            throw new IllegalStateException("RedisQueueWorkers 已关闭");
+        }
+        queues.add(queue);
+        recover(queue);
+        List<Worker> started = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            started.add(new Worker(queue, instanceId + "-" + (workers.size() + i), handler));
+        }
+        //先有心跳再取元素，恢复任务不会把刚启动的worker当成失效
+        heartbeat(started);
+        for (Worker worker : started) {
+            workers.add(worker);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * 把心跳已过期的worker的处理中列表放回队列
+     *
+     * @Param: [queue]
+     * @return: long 放回的元素数
+     */
+    public long recover(String queue) {
+        byte[] rawWorkers = keySerializer.serialize(workersKey(queue));
+        Set<byte[]> ids = redisTemplate.execute(
+                (RedisCallback<Set<byte[]>>) connection -> connection.setCommands().sMembers(rawWorkers));
+        long total = 0;
+        if (ids == null) {
+            return total;
+        }
+        for (byte[] rawId : ids) {
+            String id = new String(rawId, StandardCharsets.UTF_8);
+            Long moved = luaScripts.execute(RECOVER_SCRIPT, Arrays.asList(queue, processingKey(queue, id),
+                    heartbeatKey(queue, id), workersKey(queue)), rawId);
+            if (moved != null && moved > 0) {
+                log.warn("worker {}已失效，{}条处理中的元素放回队列{}", id, moved, queue);
+                total += moved;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 失败列表的key，处理失败的元素在这里等待人工处理或重新入队
+     *
+     * @Param: [queue]
+     * @return: java.lang.String
+     */
+    public static String failedKey(String queue) {
+        return ClusterKeys.colocated(queue, "failed");
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        scheduler.shutdownNow();
+        for (Worker worker : workers) {
+            try {
+                //阻塞的BRPOPLPUSH最多blockSeconds秒后返回
+                worker.thread.join(TimeUnit.SECONDS.toMillis(blockSeconds + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        connectionFactory.destroy();
+    }
+
+    private static String processingKey(String queue, String workerId) {
+        return ClusterKeys.colocated(queue, "processing", workerId);
+    }
+
+    private static String heartbeatKey(String queue, String workerId) {
+        return ClusterKeys.colocated(queue, "heartbeat", workerId);
+    }
+
+    private static String workersKey(String queue) {
+        return ClusterKeys.colocated(queue, "workers");
+    }
+
+    /**
+     * 用一次管道刷新workers的心跳；先写心跳再登记，恢复任务不会把刚登记的worker当成失效
+     */
+    private void heartbeat(List<Worker> targets) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Worker worker : targets) {
+                connection.stringCommands().setEx(worker.rawHeartbeat, heartbeatSeconds, new byte[]{'1'});
+                connection.setCommands().sAdd(worker.rawWorkers, worker.id.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    private void heartbeatQuietly() {
+        if (workers.isEmpty()) {
+            return;
+        }
+        try {
+            heartbeat(workers);
+        } catch (RuntimeException e) {
+            log.warn("刷新队列worker心跳失败: {}", e.getMessage());
+        }
+    }
+
+    private void recoverQuietly() {
+        for (String queue : queues) {
+            try {
+                recover(queue);
+            } catch (RuntimeException e) {
+                log.warn("恢复队列{}的处理中元素失败: {}", queue, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 处理队列中的一个元素，抛出异常时元素转入失败列表
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void handle(Object item) throws Exception;
+    }
+
+    private final class Worker implements Runnable {
+        private final String queue;
+        private final String id;
+        private final Handler handler;
+        private final Thread thread;
+        private final byte[] rawQueue;
+        private final byte[] rawProcessing;
+        private final byte[] rawHeartbeat;
+        private final byte[] rawWorkers;
+
+        private Worker(String queue, String id, Handler handler) {
+            this.queue = queue;
+            this.id = id;
+            this.handler = handler;
+            this.rawQueue = keySerializer.serialize(queue);
+            this.rawProcessing = keySerializer.serialize(processingKey(queue, id));
+            this.rawHeartbeat = keySerializer.serialize(heartbeatKey(queue, id));
+            this.rawWorkers = keySerializer.serialize(workersKey(queue));
+            this.thread = new Thread(this, "redis-queue-" + queue + "-" + id);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (RedisConnection connection = connectionFactory.getConnection()) {
+                    while (running) {
+                        List<byte[]> batch = take(connection);
+                        if (!batch.isEmpty()) {
+                            process(batch);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    //连接断开等错误，稍后用新连接重试；处理中列表里的元素由重启后的循环继续持有
+                    log.warn("队列{}的worker {}出错，1秒后重试: {}", queue, id, e.getMessage());
+                    sleepQuietly();
+                }
+            }
+        }
+
+        /**
+         * 先处理上次没处理完的元素，否则阻塞等待一个，取到后再批量搬出最多batchSize-1个
+         */
+        @SuppressWarnings("unchecked")
+        private List<byte[]> take(RedisConnection connection) {
+            List<byte[]> unfinished = connection.listCommands().lRange(rawProcessing, 0, -1);
+            if (unfinished != null && !unfinished.isEmpty()) {
+                List<byte[]> batch = new ArrayList<>(unfinished);
+                //处理中列表左进，最早取出的在右端
+                Collections.reverse(batch);
+                return batch;
+            }
+            byte[] first = connection.listCommands().bRPopLPush(blockSeconds, rawQueue, rawProcessing);
+            List<byte[]> batch = new ArrayList<>();
+            if (first == null) {
+                return batch;
+            }
+            batch.add(first);
+            if (batchSize > 1) {
+                List<Object> more = luaScripts.execute(DRAIN_SCRIPT,
+                        Arrays.asList(queue, processingKey(queue, id)),
+                        Integer.toString(batchSize - 1).getBytes(StandardCharsets.US_ASCII));
+                if (more != null) {
+                    for (Object item : more) {
+                        batch.add((byte[]) item);
+                    }
+                }
+            }
+            return batch;
+        }
+
+        private void process(List<byte[]> batch) {
+            List<byte[]> failed = new ArrayList<>();
+            for (byte[] raw : batch) {
+                try {
+                    handler.handle(valueSerializer.deserialize(raw));
+                } catch (Exception e) {
+                    log.warn("队列{}的元素处理失败，转入{}: {}", queue, failedKey(queue), e.getMessage());
+                    failed.add(raw);
+                }
+            }
+            //整批处理完再确认，转入失败列表和清空处理中列表原子完成
+            luaScripts.execute(ACK_SCRIPT, Arrays.asList(processingKey(queue, id), failedKey(queue)),
+                    failed.toArray(new byte[0][]));
+        }
+
+        private void sleepQuietly() {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
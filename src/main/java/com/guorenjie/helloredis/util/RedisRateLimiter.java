@@ -0,0 +1,113 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * @Description 基于lua脚本的分布式限流器，判断和扣减在一次往返内原子完成
+ * 时间取redis服务端的TIME，不受各实例时钟偏差影响；每个key只占一个hash，空闲两个窗口后过期
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+public class RedisRateLimiter implements RateLimiter {
+
+    /**
+     * 滑动窗口计数，hash字段：id当前窗口编号，cur当前窗口计数，prev上一个窗口计数
+     * ARGV：窗口毫秒数、窗口内上限、请求数、是否允许部分获得(1/0)；返回获得的许可数
+     */
+    private static final RedisScript<Long> SLIDING_WINDOW_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local window = tonumber(ARGV[1]) " +
+            "local permits = tonumber(ARGV[3]) " +
+            "local id = math.floor(now / window) " +
+            "local state = redis.call('hmget', KEYS[1], 'id', 'cur', 'prev') " +
+            "local last = tonumber(state[1]) " +
+            "local cur = tonumber(state[2]) or 0 " +
+            "local prev = tonumber(state[3]) or 0 " +
+            "if last ~= id then " +
+            "  if last == id - 1 then prev = cur else prev = 0 end " +
+            "  cur = 0 " +
+            "end " +
+            "local available = math.floor(tonumber(ARGV[2]) - cur - prev * (1 - (now % window) / window)) " +
+            "local granted = 0 " +
+            "if available >= permits then granted = permits " +
+            "elseif ARGV[4] == '1' and available > 0 then granted = available end " +
+            "redis.call('hmset', KEYS[1], 'id', id, 'cur', cur + granted, 'prev', prev) " +
+            "redis.call('pexpire', KEYS[1], window * 2) " +
+            "return granted", Long.class);
+
+    /**
+     * 令牌桶，hash字段：tokens剩余令牌(可以是小数)，ts上次补充的时间
+     * ARGV同SLIDING_WINDOW_SCRIPT，桶容量为上限，每窗口补满一桶
+     */
+    private static final RedisScript<Long> TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local window = tonumber(ARGV[1]) " +
+            "local limit = tonumber(ARGV[2]) " +
+            "local permits = tonumber(ARGV[3]) " +
+            "local state = redis.call('hmget', KEYS[1], 'tokens', 'ts') " +
+            "local tokens = tonumber(state[1]) or limit " +
+            "local ts = tonumber(state[2]) or now " +
+            "if now > ts then " +
+            "  tokens = math.min(limit, tokens + (now - ts) * limit / window) " +
+            "  ts = now " +
+            "end " +
+            "local available = math.floor(tokens) " +
+            "local granted = 0 " +
+            "if available >= permits then granted = permits " +
+            "elseif ARGV[4] == '1' and available > 0 then granted = available end " +
+            "redis.call('hmset', KEYS[1], 'tokens', tokens - granted, 'ts', ts) " +
+            "redis.call('pexpire', KEYS[1], window * 2) " +
+            "return granted", Long.class);
+
+    private final LuaScriptRegistry luaScripts;
+    private final RedisScript<Long> script;
+    private final String keyPrefix;
+    private final byte[] limit;
+    private final byte[] windowMillis;
+
+    public RedisRateLimiter(LuaScriptRegistry luaScripts, HelloRedisProperties.RateLimitAlgorithm algorithm,
+                            String keyPrefix, long limit, long windowMillis) {
+        if (algorithm == null || limit <= 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("RedisRateLimiter 上限和窗口必须大于0");
+        }
+        this.luaScripts = luaScripts;
+        this.script = algorithm == HelloRedisProperties.RateLimitAlgorithm.TOKEN_BUCKET
+                ? luaScripts.register("rateLimiter.tokenBucket", TOKEN_BUCKET_SCRIPT)
+                : luaScripts.register("rateLimiter.slidingWindow", SLIDING_WINDOW_SCRIPT);
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+        this.limit = decimal(limit);
+        this.windowMillis = decimal(windowMillis);
+    }
+
+    @Override
+    public boolean tryAcquire(String key, long permits) {
+        return acquire(key, permits, false) == permits;
+    }
+
+    @Override
+    public long acquireUpTo(String key, long permits) {
+        return acquire(key, permits, true);
+    }
+
+    private long acquire(String key, long permits, boolean partial) {
+        if (key == null || permits <= 0) {
+            throw new IllegalArgumentException("acquire key不能为null，permits必须大于0");
+        }
+        Long granted = luaScripts.execute(script, Collections.singletonList(keyPrefix + key), windowMillis, limit,
+                decimal(permits), decimal(partial ? 1 : 0));
+        return granted == null ? 0 : granted;
+    }
+
+    private static byte[] decimal(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,422 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Description 基于redis stream的事件管道：add用XADD写入并按MAXLEN ~近似裁剪，消费者组可以回放和横向扩展。
+ * 每个订阅有一个读线程，独占一个连接用XREADGROUP COUNT/BLOCK批量拉取，交给固定大小的处理线程池；
+ * 未确认的消息数有上限，处理线程忙不过来时读线程不再拉取，消费速度由处理速度决定。
+ * 处理成功的消息攒起来由读线程在下次拉取前一次XACK；处理失败或消费者崩溃的消息留在pending列表，
+ * 空闲超过claimIdleMillis后被组内其他消费者认领重新处理，投递次数达到maxDeliveries后转入死信stream
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class RedisStreams implements AutoCloseable {
+
+    /**
+     * XADD并近似裁剪到ARGV[1]条，ARGV[2..]是字段和值，返回消息id
+     */
+    static final RedisScript<byte[]> ADD_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('xadd', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', unpack(ARGV, 2))", byte[].class);
+
+    /**
+     * 创建消费者组(stream不存在时一并创建)，组已存在时忽略
+     */
+    static final RedisScript<Long> CREATE_GROUP_SCRIPT = new DefaultRedisScript<>(
+            "local result = redis.pcall('xgroup', 'create', KEYS[1], ARGV[1], '0', 'MKSTREAM') " +
+            "if type(result) == 'table' and result.err and not string.find(result.err, 'BUSYGROUP') then " +
+            "  return redis.error_reply(result.err) " +
+            "end " +
+            "return 1", Long.class);
+
+    /**
+     * 认领空闲超过ARGV[3]毫秒的pending消息，投递次数达到ARGV[5]的转入死信stream并确认
+     * KEYS：stream、死信stream；ARGV：组、消费者、最小空闲毫秒、最多检查条数、最大投递次数
+     */
+    @SuppressWarnings("rawtypes")
+    static final RedisScript<List> RECLAIM_SCRIPT = new DefaultRedisScript<>(
+            "local pending = redis.call('xpending', KEYS[1], ARGV[1], '-', '+', ARGV[4]) " +
+            "local ids = {} " +
+            "for _, entry in ipairs(pending) do " +
+            "  if entry[3] >= tonumber(ARGV[3]) then " +
+            "    if entry[4] >= tonumber(ARGV[5]) then " +
+            "      local message = redis.call('xrange', KEYS[1], entry[1], entry[1]) " +
+            "      if message[1] then redis.call('xadd', KEYS[2], '*', unpack(message[1][2])) end " +
+            "      redis.call('xack', KEYS[1], ARGV[1], entry[1]) " +
+            "    else " +
+            "      ids[#ids + 1] = entry[1] " +
+            "    end " +
+            "  end " +
+            "end " +
+            "if #ids == 0 then return {} end " +
+            "return redis.call('xclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[3], unpack(ids))", List.class);
+
+    private final LettuceConnectionFactory connectionFactory;
+    private final LuaScriptRegistry luaScripts;
+    private final RedisSerializer<String> keySerializer;
+    private final RedisSerializer<Object> valueSerializer;
+    private final long maxLen;
+    private final int batchSize;
+    private final long blockMillis;
+    private final long claimIdleMillis;
+    private final int maxDeliveries;
+    private final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+    private final AtomicInteger consumerSequence = new AtomicInteger();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param connectionFactory 不共享连接、不使用连接池的连接工厂，每个读线程从中取得独占连接，由本对象负责关闭
+     */
+    public RedisStreams(LettuceConnectionFactory connectionFactory, LuaScriptRegistry luaScripts,
+                        RedisSerializer<String> keySerializer, RedisSerializer<Object> valueSerializer, long maxLen,
+                        int batchSize, long blockMillis, long claimIdleMillis, int maxDeliveries) {
+        if (maxLen <= 0 || batchSize <= 0 || blockMillis <= 0 || claimIdleMillis <= 0 || maxDeliveries <= 0) {
+            throw new IllegalArgumentException("RedisStreams 参数必须大于0");
+        }
+        this.connectionFactory = connectionFactory;
+        this.luaScripts = luaScripts;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.maxLen = maxLen;
+        this.batchSize = batchSize;
+        this.blockMillis = blockMillis;
+        this.claimIdleMillis = claimIdleMillis;
+        this.maxDeliveries = maxDeliveries;
+        luaScripts.register("streams.add", ADD_SCRIPT);
+        luaScripts.register("streams.createGroup", CREATE_GROUP_SCRIPT);
+        luaScripts.register("streams.reclaim", RECLAIM_SCRIPT);
+    }
+
+    /**
+     * 写入一条消息，stream超过maxLen时近似裁剪最早的消息
+     *
+     * @Param: [stream, fields]
+     * @return: java.lang.String 消息id
+     */
+    public String add(String stream, Map<String, Object> fields) {
+        if (stream == null || fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException("add stream不能为null，fields不能为空");
+        }
+        byte[][] args = new byte[fields.size() * 2 + 1][];
+        args[0] = Long.toString(maxLen).getBytes(StandardCharsets.US_ASCII);
+        int i = 1;
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            args[i++] = keySerializer.serialize(field.getKey());
+            args[i++] = valueSerializer.serialize(field.getValue());
+        }
+        byte[] id = luaScripts.execute(ADD_SCRIPT, Collections.singletonList(stream), args);
+        return id == null ? null : new String(id, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 以消费者组group订阅stream，组不存在时从stream的第一条消息开始消费；
+     * concurrency个线程并行处理，同一个组的多个订阅(包括其他实例)分摊消息
+     *
+     * @Param: [stream, group, concurrency, handler]
+     * @return: com.guorenjie.helloredis.util.RedisStreams.Subscription
+     */
+    public Subscription subscribe(String stream, String group, int concurrency, Handler handler) {
+        if (stream == null || group == null || handler == null || concurrency <= 0) {
+            throw new IllegalArgumentException("subscribe stream、group和handler不能为null，concurrency必须大于0");
+        }
+        if (!running) {
+            throw new IllegalStateException("RedisStreams 已关闭");
+        }
+        luaScripts.execute(CREATE_GROUP_SCRIPT, Collections.singletonList(stream),
+                group.getBytes(StandardCharsets.UTF_8));
+        Subscription subscription = new Subscription(stream, group,
+                instanceId + "-" + consumerSequence.getAndIncrement(), concurrency, handler);
+        subscriptions.add(subscription);
+        subscription.reader.start();
+        return subscription;
+    }
+
+    /**
+     * 死信stream的key，投递次数达到上限的消息在这里等待人工处理
+     *
+     * @Param: [stream]
+     * @return: java.lang.String
+     */
+    public static String deadLetterKey(String stream) {
+        return ClusterKeys.colocated(stream, "dead");
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+        }
+        connectionFactory.destroy();
+    }
+
+    /**
+     * 处理一条消息，抛出异常时消息不确认，空闲claimIdleMillis后重新投递
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void handle(String id, Map<String, Object> fields) throws Exception;
+    }
+
+    public final class Subscription implements AutoCloseable {
+        private final String stream;
+        private final String group;
+        private final String consumer;
+        private final Handler handler;
+        private final byte[] rawStream;
+        private final ThreadPoolExecutor executor;
+        private final Thread reader;
+        /**
+         * 已拉取但还没处理完的消息数上限：处理线程各一条，再加一批缓冲
+         */
+        private final Semaphore inFlight;
+        private final Set<String> processing = ConcurrentHashMap.newKeySet();
+        private final Queue<RecordId> acks = new ConcurrentLinkedQueue<>();
+        private volatile boolean active = true;
+        private long reclaimedAt;
+
+        private Subscription(String stream, String group, String consumer, int concurrency, Handler handler) {
+            this.stream = stream;
+            this.group = group;
+            this.consumer = consumer;
+            this.handler = handler;
+            this.rawStream = keySerializer.serialize(stream);
+            this.inFlight = new Semaphore(concurrency + batchSize);
+            //排队的任务数受inFlight限制，队列本身不需要有界
+            this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "redis-stream-" + stream + "-" + group);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.reader = new Thread(this::read, "redis-stream-reader-" + stream + "-" + group);
+            reader.setDaemon(true);
+        }
+
+        public String getConsumer() {
+            return consumer;
+        }
+
+        /**
+         * 停止拉取，等待已拉取的消息处理完并确认
+         */
+        @Override
+        public void close() {
+            active = false;
+            try {
+                //阻塞的XREADGROUP最多blockMillis后返回
+                reader.join(blockMillis + 1000);
+                executor.shutdown();
+                executor.awaitTermination(blockMillis + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try (RedisConnection connection = connectionFactory.getConnection()) {
+                flushAcks(connection);
+            } catch (RuntimeException e) {
+                log.warn("stream {}关闭时确认消息失败，未确认的消息会被重新投递: {}", stream, e.getMessage());
+            }
+            subscriptions.remove(this);
+        }
+
+        private void read() {
+            while (active && running) {
+                try (RedisConnection connection = connectionFactory.getConnection()) {
+                    while (active && running) {
+                        flushAcks(connection);
+                        reclaimIfDue();
+                        int permits = reserve(blockMillis);
+                        if (permits == 0) {
+                            continue;
+                        }
+                        List<ByteRecord> records;
+                        try {
+                            records = readGroup(connection, permits);
+                        } catch (RuntimeException e) {
+                            inFlight.release(permits);
+                            throw e;
+                        }
+                        int received = records == null ? 0 : records.size();
+                        inFlight.release(permits - received);
+                        for (int i = 0; i < received; i++) {
+                            ByteRecord record = records.get(i);
+                            dispatch(record.getId().getValue(), record.getValue());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("stream {}的消费者{}出错，1秒后重试: {}", stream, consumer, e.getMessage());
+                    sleepQuietly();
+                }
+            }
+        }
+
+        /**
+         * 等待最多waitMillis拿到至少一个处理名额，再尽量多拿，最多batchSize个
+         */
+        private int reserve(long waitMillis) {
+            try {
+                if (!inFlight.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                    return 0;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                active = false;
+                return 0;
+            }
+            int permits = 1;
+            while (permits < batchSize && inFlight.tryAcquire()) {
+                permits++;
+            }
+            return permits;
+        }
+
+        /**
+         * 阻塞最多blockMillis读取最多permits条新消息；xReadGroup的参数是泛型可变参数，只读一个stream时的未检查警告是安全的
+         */
+        @SuppressWarnings("unchecked")
+        private List<ByteRecord> readGroup(RedisConnection connection, int permits) {
+            return connection.streamCommands().xReadGroup(Consumer.from(group, consumer),
+                    StreamReadOptions.empty().count(permits).block(Duration.ofMillis(blockMillis)),
+                    StreamOffset.create(rawStream, ReadOffset.lastConsumed()));
+        }
+
+        /**
+         * 每隔claimIdleMillis/2认领一次失效消费者的消息，认领的条数同样受处理名额限制
+         */
+        @SuppressWarnings("unchecked")
+        private void reclaimIfDue() {
+            long now = System.currentTimeMillis();
+            if (now - reclaimedAt < claimIdleMillis / 2) {
+                return;
+            }
+            reclaimedAt = now;
+            int permits = reserve(0);
+            if (permits == 0) {
+                return;
+            }
+            List<Object> claimed;
+            try {
+                claimed = luaScripts.execute(RECLAIM_SCRIPT, Arrays.asList(stream, deadLetterKey(stream)),
+                        group.getBytes(StandardCharsets.UTF_8), consumer.getBytes(StandardCharsets.UTF_8),
+                        Long.toString(claimIdleMillis).getBytes(StandardCharsets.US_ASCII),
+                        Integer.toString(permits).getBytes(StandardCharsets.US_ASCII),
+                        Integer.toString(maxDeliveries).getBytes(StandardCharsets.US_ASCII));
+            } catch (RuntimeException e) {
+                inFlight.release(permits);
+                throw e;
+            }
+            int dispatched = 0;
+            for (Object item : claimed == null ? Collections.emptyList() : claimed) {
+                if (!(item instanceof List) || ((List<Object>) item).size() < 2) {
+                    continue;
+                }
+                List<Object> message = (List<Object>) item;
+                String id = new String((byte[]) message.get(0), StandardCharsets.US_ASCII);
+                if (processing.contains(id)) {
+                    //本消费者还在处理这条(处理时间超过了claimIdleMillis)，不重复投递
+                    continue;
+                }
+                if (!(message.get(1) instanceof List)) {
+                    //消息体已被裁剪，只能确认掉
+                    acks.add(RecordId.of(id));
+                    continue;
+                }
+                List<Object> fields = (List<Object>) message.get(1);
+                Map<byte[], byte[]> raw = new LinkedHashMap<>();
+                for (int i = 0; i + 1 < fields.size(); i += 2) {
+                    raw.put((byte[]) fields.get(i), (byte[]) fields.get(i + 1));
+                }
+                dispatch(id, raw);
+                dispatched++;
+            }
+            inFlight.release(permits - dispatched);
+            if (dispatched > 0) {
+                log.warn("stream {}的消费者{}认领了{}条失效消息", stream, consumer, dispatched);
+            }
+        }
+
+        /**
+         * 交给处理线程池，调用前已占用一个处理名额，处理结束后归还
+         */
+        private void dispatch(String id, Map<byte[], byte[]> raw) {
+            processing.add(id);
+            executor.execute(() -> {
+                try {
+                    Map<String, Object> fields = new LinkedHashMap<>();
+                    raw.forEach((field, value) -> fields.put(keySerializer.deserialize(field),
+                            valueSerializer.deserialize(value)));
+                    handler.handle(id, fields);
+                    acks.add(RecordId.of(id));
+                } catch (Exception e) {
+                    log.warn("stream {}的消息{}处理失败，等待重新投递: {}", stream, id, e.getMessage());
+                } finally {
+                    processing.remove(id);
+                    inFlight.release();
+                }
+            });
+        }
+
+        /**
+         * 把已处理完的消息用一次XACK确认
+         */
+        private void flushAcks(RedisConnection connection) {
+            List<RecordId> ids = new ArrayList<>();
+            RecordId id;
+            while ((id = acks.poll()) != null) {
+                ids.add(id);
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            try {
+                connection.streamCommands().xAck(rawStream, group, ids.toArray(new RecordId[0]));
+            } catch (RuntimeException e) {
+                acks.addAll(ids);
+                throw e;
+            }
+        }
+
+        private void sleepQuietly() {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                active = false;
+            }
+        }
+    }
+}
@@ -1,13 +1,46 @@
 package com.guorenjie.helloredis.util;
 
 
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ConvertingCursor;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @Description redis工具类
@@ -15,12 +48,172 @@ import java.util.concurrent.TimeUnit;
  * @Date 2020/5/20 0:48
  **/
 
+@Slf4j
 @Component
 public class RedisUtil {
 
     @Resource
     RedisTemplate<String, Object> redisTemplate;
 
+    @Resource
+    HelloRedisProperties properties;
+
+    @Resource
+    LuaScriptRegistry luaScripts;
+
+    /**
+     * 本地近端缓存，未开启时为null
+     */
+    @Autowired(required = false)
+    NearCache nearCache;
+
+    /**
+     * 大value分块存储，未开启时为null
+     */
+    @Autowired(required = false)
+    ChunkedValueStore chunkedValueStore;
+
+    /**
+     * 热点key探测，未开启时为null
+     */
+    @Autowired(required = false)
+    HotKeyDetector hotKeyDetector;
+
+    /**
+     * 读请求路由，未开启时所有读写都走redisTemplate
+     */
+    @Autowired(required = false)
+    ReplicaReadRouter replicaReadRouter;
+
+    /**
+     * key布隆过滤器，String写操作把key记录进去，未开启时为null
+     */
+    @Autowired(required = false)
+    RedisBloomFilter keyFilter;
+
+    /**
+     * getOrRefresh的后台提前刷新
+     */
+    @Resource
+    EarlyRefresher earlyRefresher;
+
+    /**
+     * 只有租约持有者才能释放租约，避免租约过期后误删其他节点的租约
+     */
+    private static final RedisScript<Long> RELEASE_LEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    /**
+     * 不存在时设置并返回null，已存在时返回当前值
+     */
+    private static final RedisScript<byte[]> SET_IF_ABSENT_ELSE_GET_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return false end " +
+            "return redis.call('get', KEYS[1])", byte[].class);
+
+    /**
+     * 写入成员后只保留分数最高的ARGV[3]个，返回成员是否仍在集合中
+     */
+    private static final RedisScript<Long> ZADD_AND_TRIM_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('zadd', KEYS[1], ARGV[1], ARGV[2]) " +
+            "local size = redis.call('zcard', KEYS[1]) " +
+            "local max = tonumber(ARGV[3]) " +
+            "if size > max then redis.call('zremrangebyrank', KEYS[1], 0, size - max - 1) end " +
+            "if redis.call('zscore', KEYS[1], ARGV[2]) then return 1 end " +
+            "return 0", Long.class);
+
+    /**
+     * 设置新值并刷新过期时间，返回旧值
+     */
+    private static final RedisScript<byte[]> GET_SET_AND_EXPIRE_SCRIPT = new DefaultRedisScript<>(
+            "local old = redis.call('getset', KEYS[1], ARGV[1]) " +
+            "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "return old", byte[].class);
+
+    /**
+     * 自增后不超过上限才执行，超过时返回false(不修改)；ARGV[3]大于0时给没有过期时间的key设置过期时间
+     */
+    private static final RedisScript<Long> INCRBY_WITH_CAP_SCRIPT = new DefaultRedisScript<>(
+            "local current = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "local increment = tonumber(ARGV[1]) " +
+            "if current + increment > tonumber(ARGV[2]) then return false end " +
+            "local result = redis.call('incrby', KEYS[1], increment) " +
+            "if tonumber(ARGV[3]) > 0 and redis.call('pttl', KEYS[1]) == -1 then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[3]) " +
+            "end " +
+            "return result", Long.class);
+
+    /**
+     * key存在时才写入ARGV[2..]中的field/value对并把过期时间刷新为ARGV[1]毫秒，不存在返回0，不会创建残缺的hash
+     */
+    private static final RedisScript<Long> HMSET_IF_EXISTS_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 then return 0 end " +
+            "for i = 2, #ARGV, 2 do redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "redis.call('pexpire', KEYS[1], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * key存在时才自增field并把过期时间刷新为ARGV[3]毫秒，返回自增后的值；不存在返回false(null)
+     */
+    private static final RedisScript<Long> HINCRBY_IF_EXISTS_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 then return false end " +
+            "local result = redis.call('hincrby', KEYS[1], ARGV[1], ARGV[2]) " +
+            "redis.call('pexpire', KEYS[1], ARGV[3]) " +
+            "return result", Long.class);
+
+    /**
+     * 本进程内正在回源的key，并发的getOrLoad共享同一次回源
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 本进程内正在回源的getOrRefresh key，与inFlightLoads分开：两者写入的格式不同，同一个key不能共享回源结果
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlightRefreshLoads =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 已经告警过的大集合，避免每次写入都打印
+     */
+    private final Set<String> warnedCollections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 是否集群模式，第一次使用时根据连接工厂判断
+     */
+    private volatile Boolean clusterMode;
+
+
+    /**
+     * 提前刷新模式的缓存存放在hash中：v为序列化后的值，d为上次回源耗时(毫秒)
+     */
+    private static final RedisScript<Long> REFRESHABLE_SET_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('hmset', KEYS[1], 'v', ARGV[1], 'd', ARGV[2]) " +
+            "return redis.call('pexpire', KEYS[1], ARGV[3])", Long.class);
+
+    /**
+     * 一次往返取回值、回源耗时和剩余毫秒数，key不存在时为{nil, nil, -2}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> REFRESHABLE_GET_SCRIPT = new DefaultRedisScript<>(
+            "local entry = redis.call('hmget', KEYS[1], 'v', 'd') " +
+            "entry[3] = redis.call('pttl', KEYS[1]) " +
+            "return entry", List.class);
+
+    /**
+     * 注册本类用到的脚本，启动完成后由LuaScriptRegistry统一预加载
+     */
+    @PostConstruct
+    void registerScripts() {
+        luaScripts.register("redisUtil.releaseLease", RELEASE_LEASE_SCRIPT);
+        luaScripts.register("redisUtil.setIfAbsentElseGet", SET_IF_ABSENT_ELSE_GET_SCRIPT);
+        luaScripts.register("redisUtil.zAddAndTrim", ZADD_AND_TRIM_SCRIPT);
+        luaScripts.register("redisUtil.getSetAndExpire", GET_SET_AND_EXPIRE_SCRIPT);
+        luaScripts.register("redisUtil.incrbyWithCap", INCRBY_WITH_CAP_SCRIPT);
+        luaScripts.register("redisUtil.refreshableSet", REFRESHABLE_SET_SCRIPT);
+        luaScripts.register("redisUtil.refreshableGet", REFRESHABLE_GET_SCRIPT);
+        luaScripts.register("redisUtil.hmSetIfExists", HMSET_IF_EXISTS_SCRIPT);
+        luaScripts.register("redisUtil.hIncrbyIfExists", HINCRBY_IF_EXISTS_SCRIPT);
+    }
 
     /**-----------------------------key相关操作-------------------------------------*/
     /**
@@ -30,7 +223,7 @@ public class RedisUtil {
      * @return: boolean
      */
     public boolean hasKey(String key) {
-        return key == null ? false : redisTemplate.hasKey(key);
+        return key == null ? false : reads().hasKey(key);
     }
 
     /**
@@ -40,7 +233,18 @@ public class RedisUtil {
      * @return: boolean
      */
     public boolean delete(String key) {
-        return key == null ? false : redisTemplate.delete(key);
+        if (key == null) {
+            return false;
+        }
+        boolean result;
+        if (chunkedValueStore != null) {
+            //需要顺带清理分块，用脚本删除
+            result = chunkedValueStore.delete(key);
+        } else {
+            result = redisTemplate.delete(key);
+        }
+        invalidateNearCache(key);
+        return result;
     }
 
     /**
@@ -50,11 +254,29 @@ public class RedisUtil {
      * @return: java.lang.Long
      */
     public Long delete(Collection<String> keys) {
-        return redisTemplate.delete(keys);
+        if (chunkedValueStore != null && keys != null) {
+            long deleted = 0;
+            for (String key : keys) {
+                if (delete(key)) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+        Long result;
+        if (keys != null && keys.size() > 1 && isCluster()) {
+            result = clusterDelete(new ArrayList<>(keys));
+        } else {
+            result = redisTemplate.delete(keys);
+        }
+        if (keys != null) {
+            keys.forEach(this::invalidateNearCache);
+        }
+        return result;
     }
 
     /**
-     * 设置过期时间
+     * 设置过期时间，分块存储的value连同分块一起设置
      *
      * @Param: [key, timeout, unit]
      * @return: java.lang.Boolean
@@ -63,11 +285,15 @@ public class RedisUtil {
         if (key == null || unit == null) {
             return false;
         }
-        return redisTemplate.expire(key, timeout, unit);
+        Boolean result = chunkedValueStore != null ? chunkedValueStore.expire(key, unit.toMillis(timeout))
+                : redisTemplate.expire(key, timeout, unit);
+        invalidateNearCache(key);
+        return result;
     }
 
     /**
      * 查找匹配的key
+     * KEYS会阻塞整个redis直到遍历完所有key，大keyspace下请使用scan
      *
      * @Param: [pattern]
      * @return: java.util.Set<java.lang.String>
@@ -76,11 +302,60 @@ public class RedisUtil {
         if (pattern == null) {
             return null;
         }
-        return redisTemplate.keys(pattern);
+        return reads().keys(pattern);
+    }
+
+    /**
+     * 基于SCAN游标惰性遍历匹配的key，COUNT使用helloredis.scan.count
+     * 返回的Stream占用一个连接，必须关闭(try-with-resources)
+     *
+     * @Param: [pattern]
+     * @return: java.util.stream.Stream<java.lang.String>
+     */
+    public Stream<String> scan(String pattern) {
+        return scan(pattern, properties.getScan().getCount());
+    }
+
+    /**
+     * 基于SCAN游标惰性遍历匹配的key，每次往返最多取count个，不会一次性加载全部结果
+     * 返回的Stream占用一个连接，必须关闭(try-with-resources)；集群模式下依次遍历每个主节点
+     *
+     * @Param: [pattern, count]
+     * @return: java.util.stream.Stream<java.lang.String>
+     */
+    @SuppressWarnings("unchecked")
+    public Stream<String> scan(String pattern, long count) {
+        if (pattern == null) {
+            return Stream.empty();
+        }
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        if (isCluster()) {
+            return clusterScan(pattern, count, keySerializer);
+        }
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(count).build();
+        Cursor<String> cursor = reads().executeWithStickyConnection(
+                (RedisCallback<Cursor<String>>) connection ->
+                        new ConvertingCursor<>(connection.scan(options), keySerializer::deserialize));
+        return cursorStream(cursor);
+    }
+
+    /**
+     * 基于SCAN分批遍历匹配的key，每攒够batchSize个回调一次，遍历结束后自动释放连接
+     *
+     * @Param: [pattern, count, batchSize, consumer]
+     * @return: long 遍历到的key总数
+     */
+    public long scan(String pattern, long count, int batchSize, Consumer<List<String>> consumer) {
+        if (pattern == null || consumer == null || batchSize <= 0) {
+            return 0L;
+        }
+        try (Stream<String> keys = scan(pattern, count)) {
+            return forEachBatch(keys.iterator(), batchSize, consumer);
+        }
     }
 
     /**
-     * 移除key的过期时间，key将持久保持
+     * 移除key的过期时间，key将持久保持；分块存储的value连同分块一起移除
      *
      * @Param: [key]
      * @return: java.lang.Boolean
@@ -89,7 +364,9 @@ public class RedisUtil {
         if (key == null) {
             return false;
         }
-        return redisTemplate.persist(key);
+        Boolean result = chunkedValueStore != null ? chunkedValueStore.persist(key) : redisTemplate.persist(key);
+        invalidateNearCache(key);
+        return result;
     }
 
     /**
@@ -102,7 +379,7 @@ public class RedisUtil {
         if (key == null || unit == null) {
             throw new IllegalArgumentException("getExpire 参数不能为null");
         }
-        return redisTemplate.getExpire(key, unit);
+        return reads().getExpire(key, unit);
     }
     /**-----------------------------String相关操作-------------------------------------*/
     /**
@@ -115,11 +392,18 @@ public class RedisUtil {
         if (key == null || value == null) {
             return;
         }
-        redisTemplate.opsForValue().set(key, value);
+        if (chunkedValueStore != null) {
+            chunkedValueStore.write(key, value, -1);
+        } else {
+            redisTemplate.opsForValue().set(key, value);
+        }
+        rememberKey(key);
+        invalidateNearCache(key);
     }
 
     /**
      * 设置key value并设置过期时间
+     * 过期时间按helloredis.expiry.ttl-jitter-ratio随机延长，避免批量写入的key在同一时刻过期
      *
      * @Param: [key, value, timeout, unit]
      * @return: void
@@ -128,7 +412,14 @@ public class RedisUtil {
         if (key == null || value == null || unit == null) {
             return;
         }
-        redisTemplate.opsForValue().set(key, value, timeout, unit);
+        long millis = jitteredMillis(timeout, unit);
+        if (chunkedValueStore != null) {
+            chunkedValueStore.write(key, value, millis);
+        } else {
+            redisTemplate.opsForValue().set(key, value, millis, TimeUnit.MILLISECONDS);
+        }
+        rememberKey(key);
+        invalidateNearCache(key);
     }
 
     /**
@@ -141,11 +432,18 @@ public class RedisUtil {
         if (key == null || value == null || unit == null) {
             throw new IllegalArgumentException("setIfAbsent 参数不能为null");
         }
-        return redisTemplate.opsForValue().setIfAbsent(key, value, timeout, unit);
+        Boolean result = redisTemplate.opsForValue().setIfAbsent(key, value, timeout, unit);
+        if (Boolean.TRUE.equals(result)) {
+            rememberKey(key);
+            invalidateNearCache(key);
+        }
+        return result;
     }
 
     /**
      * 获取指定key的值
+     * 开启近端缓存时先读本地副本；否则开启热点探测时，热点key从短TTL的本地副本读取。
+     * 本地副本未命中时从主节点读取再回填：从节点可能还没复制到刚才的写入，用它回填会在失效之后又缓存旧值
      *
      * @Param: [key]
      * @return: java.lang.Object
@@ -154,7 +452,21 @@ public class RedisUtil {
         if (key == null) {
             return null;
         }
-        return redisTemplate.opsForValue().get(key);
+        NearCache local = nearCache;
+        if (hotKeyDetector != null && hotKeyDetector.record(key) && local == null) {
+            local = hotKeyDetector.getLocalCopies();
+        }
+        if (local == null) {
+            return readValue(key);
+        }
+        Object value = local.get(key);
+        if (value != null) {
+            return value;
+        }
+        long generation = local.generation();
+        value = readFromPrimary(() -> readValue(key));
+        local.put(key, value, generation);
+        return value;
     }
 
     /**
@@ -167,11 +479,63 @@ public class RedisUtil {
         if (key == null) {
             return null;
         }
-        return redisTemplate.opsForValue().getAndSet(key, value);
+        Object old = chunkedValueStore != null ? chunkedValueStore.getAndWrite(key, value, -1)
+                : redisTemplate.opsForValue().getAndSet(key, value);
+        rememberKey(key);
+        invalidateNearCache(key);
+        return old;
+    }
+
+    /**
+     * 先获取，再设置，并刷新过期时间，一次往返原子完成(GETSET+PEXPIRE)
+     *
+     * @Param: [key, value, timeout, unit]
+     * @return: java.lang.Object 旧值，不存在返回null
+     */
+    public Object getSetAndExpire(String key, Object value, long timeout, TimeUnit unit) {
+        if (key == null || value == null || unit == null) {
+            throw new IllegalArgumentException("getSetAndExpire 参数不能为null");
+        }
+        Object old;
+        if (chunkedValueStore != null) {
+            old = chunkedValueStore.getAndWrite(key, value, unit.toMillis(timeout));
+        } else {
+            old = valueSerializer().deserialize(luaScripts.execute(GET_SET_AND_EXPIRE_SCRIPT,
+                    Collections.singletonList(key), valueSerializer().serialize(value), decimal(unit.toMillis(timeout))));
+        }
+        rememberKey(key);
+        invalidateNearCache(key);
+        return old;
+    }
+
+    /**
+     * key不存在时设置value和过期时间并返回null；已存在时不修改，返回当前值，一次往返原子完成
+     * 只需要知道是否设置成功时用setIfAbsent，它本身就是原子的SET NX PX
+     *
+     * @Param: [key, value, timeout, unit]
+     * @return: java.lang.Object
+     */
+    public Object setIfAbsentElseGet(String key, Object value, long timeout, TimeUnit unit) {
+        if (key == null || value == null || unit == null) {
+            throw new IllegalArgumentException("setIfAbsentElseGet 参数不能为null");
+        }
+        Object current;
+        if (chunkedValueStore != null) {
+            current = chunkedValueStore.writeIfAbsent(key, value, unit.toMillis(timeout));
+        } else {
+            current = valueSerializer().deserialize(luaScripts.execute(SET_IF_ABSENT_ELSE_GET_SCRIPT,
+                    Collections.singletonList(key), valueSerializer().serialize(value), decimal(unit.toMillis(timeout))));
+        }
+        if (current == null) {
+            rememberKey(key);
+            invalidateNearCache(key);
+        }
+        return current;
     }
 
     /**
      * 批量key获取批量value
+     * 集群模式下按slot分组，各组MGET并行发往所在节点，结果按keys的顺序合并
      *
      * @Param: [keys]
      * @return: java.util.List<java.lang.Object>
@@ -180,7 +544,14 @@ public class RedisUtil {
         if (keys == null) {
             return Collections.emptyList();
         }
-        return redisTemplate.opsForValue().multiGet(keys);
+        if (chunkedValueStore != null) {
+            //清单需要还原成value
+            return chunkedValueStore.readAll(new ArrayList<>(keys));
+        }
+        if (keys.size() > 1 && isCluster()) {
+            return clusterMget(new ArrayList<>(keys));
+        }
+        return reads().opsForValue().multiGet(keys);
     }
 
     /**
@@ -195,7 +566,41 @@ public class RedisUtil {
         if (key == null) {
             throw new IllegalArgumentException("incrby 参数 key 不能为null");
         }
-        return redisTemplate.opsForValue().increment(key, increment);
+        Long result = redisTemplate.opsForValue().increment(key, increment);
+        rememberKey(key);
+        invalidateNearCache(key);
+        return result;
+    }
+
+    /**
+     * 自增increment，但结果不能超过cap：超过时不修改并返回null，一次往返原子完成
+     * 用于配额、限次等场景
+     *
+     * @Param: [key, increment, cap]
+     * @return: java.lang.Long 自增后的值，超过上限返回null
+     */
+    public Long incrbyWithCap(String key, long increment, long cap) {
+        return incrbyWithCap(key, increment, cap, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 自增increment，但结果不能超过cap：超过时不修改并返回null；
+     * timeout大于0时给还没有过期时间的key(一般是第一次自增创建的)设置过期时间，一次往返原子完成
+     *
+     * @Param: [key, increment, cap, timeout, unit]
+     * @return: java.lang.Long 自增后的值，超过上限返回null
+     */
+    public Long incrbyWithCap(String key, long increment, long cap, long timeout, TimeUnit unit) {
+        if (key == null || unit == null) {
+            throw new IllegalArgumentException("incrbyWithCap 参数 key/unit 不能为null");
+        }
+        Long result = luaScripts.execute(INCRBY_WITH_CAP_SCRIPT, Collections.singletonList(key),
+                decimal(increment), decimal(cap), decimal(unit.toMillis(timeout)));
+        if (result != null) {
+            rememberKey(key);
+            invalidateNearCache(key);
+        }
+        return result;
     }
 
     /**
@@ -209,7 +614,10 @@ public class RedisUtil {
         if (key == null) {
             throw new IllegalArgumentException("decrby 参数 key 不能为null");
         }
-        return redisTemplate.opsForValue().decrement(key, decrement);
+        Long result = redisTemplate.opsForValue().decrement(key, decrement);
+        rememberKey(key);
+        invalidateNearCache(key);
+        return result;
     }
 
     /**
@@ -223,7 +631,309 @@ public class RedisUtil {
         if (key == null) {
             throw new IllegalArgumentException("append 参数 key 不能为null");
         }
-        return redisTemplate.opsForValue().append(key, value);
+        Integer result = redisTemplate.opsForValue().append(key, value);
+        rememberKey(key);
+        invalidateNearCache(key);
+        return result;
+    }
+
+    /**
+     * 读取key，未命中时调用loader回源并写回redis，同一个key同一时刻只有一次回源
+     * 本进程内的并发调用共享同一次回源；跨节点通过setIfAbsent租约保证只有一个节点回源，
+     * 其他节点轮询等待结果，租约到期(持有者宕机)后由下一个节点接手。loader返回null时不写入redis
+     *
+     * @Param: [key, loader, timeout, unit]
+     * @return: java.lang.Object
+     */
+    public Object getOrLoad(String key, Supplier<?> loader, long timeout, TimeUnit unit) {
+        if (key == null || loader == null || unit == null) {
+            throw new IllegalArgumentException("getOrLoad 参数不能为null");
+        }
+        Object value = get(key);
+        if (value != null) {
+            return value;
+        }
+        CompletableFuture<Object> load = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, load);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            value = loadWithLease(key, loader, timeout, unit);
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, load);
+        }
+    }
+
+    private Object loadWithLease(String key, Supplier<?> loader, long timeout, TimeUnit unit) {
+        HelloRedisProperties.Load config = properties.getLoad();
+        String leaseKey = key + config.getLeaseSuffix();
+        String token = UUID.randomUUID().toString();
+        while (true) {
+            Boolean leased = redisTemplate.opsForValue()
+                    .setIfAbsent(leaseKey, token, config.getLeaseMillis(), TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(leased)) {
+                try {
+                    //拿到租约后再查一次，上一个持有者可能刚写入
+                    Object value = readFromPrimary(() -> readValue(key));
+                    if (value == null) {
+                        value = loader.get();
+                        if (value != null) {
+                            set(key, value, timeout, unit);
+                        }
+                    }
+                    return value;
+                } finally {
+                    luaScripts.execute(RELEASE_LEASE_SCRIPT, Collections.singletonList(leaseKey),
+                            valueSerializer().serialize(token));
+                }
+            }
+            try {
+                Thread.sleep(config.getPollMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("getOrLoad 等待回源结果时被中断, key=" + key, e);
+            }
+            Object value = readFromPrimary(() -> readValue(key));
+            if (value != null) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * 提前刷新模式(XFetch)的读取：未命中时同步回源并写入；命中时按上次回源耗时和剩余过期时间，
+     * 以越接近过期越大的概率在后台提前回源并写回，调用方直接拿到当前值，不会因为大量key同时过期而阻塞。
+     * 值和回源耗时一起存放在hash中，用这个方法缓存的key只能用这个方法读取；loader返回null时不写入
+     *
+     * @Param: [key, loader, timeout, unit]
+     * @return: java.lang.Object
+     */
+    @SuppressWarnings("unchecked")
+    public Object getOrRefresh(String key, Supplier<?> loader, long timeout, TimeUnit unit) {
+        if (key == null || loader == null || unit == null) {
+            throw new IllegalArgumentException("getOrRefresh 参数不能为null");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("getOrRefresh timeout必须大于0");
+        }
+        List<Object> entry = luaScripts.execute(REFRESHABLE_GET_SCRIPT, Collections.singletonList(key));
+        byte[] raw = entry == null || entry.isEmpty() ? null : (byte[]) entry.get(0);
+        if (raw == null) {
+            return loadRefreshable(key, loader, timeout, unit);
+        }
+        byte[] rawDelta = (byte[]) entry.get(1);
+        long delta = rawDelta == null ? 0 : Long.parseLong(new String(rawDelta, StandardCharsets.US_ASCII));
+        long ttl = entry.size() > 2 && entry.get(2) != null ? (Long) entry.get(2) : -1;
+        //ttl为-1表示没有过期时间，不需要提前刷新
+        if (ttl >= 0 && earlyRefresher.shouldRefresh(delta, ttl)) {
+            earlyRefresher.submit(key, () -> refreshWithLease(key, loader, timeout, unit));
+        }
+        return valueSerializer().deserialize(raw);
+    }
+
+    /**
+     * 未命中时回源，本进程内的并发调用共享同一次回源
+     */
+    private Object loadRefreshable(String key, Supplier<?> loader, long timeout, TimeUnit unit) {
+        CompletableFuture<Object> load = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightRefreshLoads.putIfAbsent(key, load);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            Object value = computeRefreshable(key, loader, timeout, unit);
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightRefreshLoads.remove(key, load);
+        }
+    }
+
+    /**
+     * 后台提前刷新，跨节点用租约保证同一时刻只有一个节点回源，没拿到租约的节点放弃本次刷新
+     */
+    private void refreshWithLease(String key, Supplier<?> loader, long timeout, TimeUnit unit) {
+        HelloRedisProperties.Load config = properties.getLoad();
+        String leaseKey = key + config.getLeaseSuffix();
+        String token = UUID.randomUUID().toString();
+        Boolean leased = redisTemplate.opsForValue()
+                .setIfAbsent(leaseKey, token, config.getLeaseMillis(), TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(leased)) {
+            return;
+        }
+        try {
+            computeRefreshable(key, loader, timeout, unit);
+        } finally {
+            luaScripts.execute(RELEASE_LEASE_SCRIPT, Collections.singletonList(leaseKey),
+                    valueSerializer().serialize(token));
+        }
+    }
+
+    private Object computeRefreshable(String key, Supplier<?> loader, long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        Object value = loader.get();
+        long delta = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (value != null) {
+            luaScripts.execute(REFRESHABLE_SET_SCRIPT, Collections.singletonList(key),
+                    valueSerializer().serialize(value), decimal(delta), decimal(jitteredMillis(timeout, unit)));
+        }
+        return value;
+    }
+
+    private long jitteredMillis(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("过期时间必须大于0, timeout=" + timeout);
+        }
+        //不足1毫秒的过期时间按1毫秒
+        return EarlyRefresher.jitter(Math.max(1, unit.toMillis(timeout)), properties.getExpiry().getTtlJitterRatio());
+    }
+
+    /**
+     * 以流的形式读取value序列化后的字节，分块存储的大value按需逐块取回，key不存在返回null
+     * 未开启helloredis.big-key时一次性读取
+     *
+     * @Param: [key]
+     * @return: java.io.InputStream
+     */
+    public InputStream getStream(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (chunkedValueStore != null) {
+            return chunkedValueStore.openStream(key);
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] raw = reads().execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        return raw == null ? null : new ByteArrayInputStream(raw);
+    }
+
+    /**
+     * 开启分块时识别分块清单，否则直接读取
+     */
+    private Object readValue(String key) {
+        return chunkedValueStore != null ? chunkedValueStore.read(key) : reads().opsForValue().get(key);
+    }
+
+    /**
+     * 在reads执行期间当前线程的读请求都发往主节点，用于读己之写：
+     * redisUtil.set(key, value); redisUtil.readFromPrimary(() -> redisUtil.get(key));
+     * 未开启helloredis.read-routing时所有请求本来就发往主节点，直接执行
+     *
+     * @Param: [reads]
+     * @return: T
+     */
+    public <T> T readFromPrimary(Supplier<T> reads) {
+        return replicaReadRouter == null ? reads.get() : replicaReadRouter.readFromPrimary(reads);
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Object> valueSerializer() {
+        return (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+    }
+
+    private static byte[] decimal(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 读命令使用的模板：开启读路由时由路由决定读从节点还是主节点
+     */
+    private RedisTemplate<String, Object> reads() {
+        return replicaReadRouter == null ? redisTemplate : replicaReadRouter.template();
+    }
+
+    /**
+     * 创建一个批量管道执行器，命令按helloredis.batch配置自动分块发出
+     * 例：RedisBatch batch = redisUtil.batch(); batch.hSet(...); batch.zAdd(...); batch.execute();
+     *
+     * @return: com.guorenjie.helloredis.util.RedisBatch
+     */
+    public RedisBatch batch() {
+        HelloRedisProperties.Batch config = properties.getBatch();
+        return batch(config.getMaxOps(), config.getMaxBytes());
+    }
+
+    /**
+     * 创建一个批量管道执行器，每攒够maxOps条命令或maxBytes字节发出一次管道
+     *
+     * @Param: [maxOps, maxBytes]
+     * @return: com.guorenjie.helloredis.util.RedisBatch
+     */
+    public RedisBatch batch(int maxOps, long maxBytes) {
+        if (nearCache == null && hotKeyDetector == null && keyFilter == null) {
+            return new RedisBatch(redisTemplate, chunkedValueStore, maxOps, maxBytes, null);
+        }
+        return new RedisBatch(redisTemplate, chunkedValueStore, maxOps, maxBytes, key -> {
+            rememberKey(key);
+            invalidateNearCache(key);
+        });
+    }
+
+    /**
+     * 本地近端缓存的命中、未命中、淘汰计数，未开启时返回空map
+     *
+     * @return: java.util.Map<java.lang.String, java.lang.Long>
+     */
+    public Map<String, Long> nearCacheStats() {
+        return nearCache == null ? Collections.emptyMap() : nearCache.stats();
+    }
+
+    /**
+     * 当前热点key及其估计的窗口内访问次数，未开启热点探测时返回空map
+     *
+     * @return: java.util.Map<java.lang.String, java.lang.Long>
+     */
+    public Map<String, Long> hotKeys() {
+        return hotKeyDetector == null ? Collections.emptyMap() : hotKeyDetector.hotKeys();
+    }
+
+    /**
+     * 把新写入的String key记录到布隆过滤器
+     *
+     * @Param: [key]
+     * @return: void
+     */
+    private void rememberKey(String key) {
+        if (keyFilter != null) {
+            keyFilter.put(key);
+        }
+    }
+
+    /**
+     * 写操作之后失效本地副本，并广播给其他节点
+     * 热点key副本只在本节点失效，其他节点的副本依赖短TTL过期
+     *
+     * @Param: [key]
+     * @return: void
+     */
+    private void invalidateNearCache(String key) {
+        if (hotKeyDetector != null) {
+            hotKeyDetector.getLocalCopies().invalidate(key);
+        }
+        if (nearCache == null) {
+            return;
+        }
+        nearCache.invalidate(key);
+        byte[] channel = properties.getNearCache().getInvalidationChannel().getBytes(StandardCharsets.UTF_8);
+        byte[] message = key.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.execute((RedisCallback<Long>) connection -> connection.publish(channel, message));
     }
     /**-----------------------------hash相关操作-------------------------------------*/
     /**
@@ -236,7 +946,7 @@ public class RedisUtil {
         if (key == null || field == null) {
             return null;
         }
-        return redisTemplate.opsForHash().get(key, field);
+        return reads().opsForHash().get(key, field);
     }
 
     /**
@@ -262,7 +972,7 @@ public class RedisUtil {
         if (key == null || field == null) {
             return false;
         }
-        return redisTemplate.opsForHash().hasKey(key, field);
+        return reads().opsForHash().hasKey(key, field);
     }
 
     /**
@@ -288,7 +998,21 @@ public class RedisUtil {
         if (key == null) {
             return null;
         }
-        return redisTemplate.opsForHash().entries(key);
+        return reads().opsForHash().entries(key);
+    }
+
+    /**
+     * 基于HSCAN惰性遍历hash中的field/value，大hash下替代hgetAll
+     * 返回的Stream占用一个连接，必须关闭(try-with-resources)
+     *
+     * @Param: [key, pattern, count]
+     * @return: java.util.stream.Stream<java.util.Map.Entry<java.lang.Object, java.lang.Object>>
+     */
+    public Stream<Map.Entry<Object, Object>> hScan(String key, String pattern, long count) {
+        if (key == null) {
+            return Stream.empty();
+        }
+        return cursorStream(reads().opsForHash().scan(key, scanOptions(pattern, count)));
     }
 
     /**
@@ -314,7 +1038,7 @@ public class RedisUtil {
         if (key == null || fields == null) {
             return null;
         }
-        return redisTemplate.opsForHash().multiGet(key, fields);
+        return reads().opsForHash().multiGet(key, fields);
     }
 
     /**
@@ -329,6 +1053,53 @@ public class RedisUtil {
         }
         return redisTemplate.opsForHash().increment(key, field, increment);
     }
+
+    /**
+     * key存在时才批量设置hash的field/value，并把过期时间刷新为timeout，一次往返原子完成
+     * 用于整体保存过的对象做局部更新，key已过期或被删除时不会留下只有部分字段、永不过期的hash
+     *
+     * @Param: [key, hash, timeout, unit]
+     * @return: boolean key不存在返回false
+     */
+    @SuppressWarnings("unchecked")
+    public boolean hmSetIfExists(String key, Map<String, Object> hash, long timeout, TimeUnit unit) {
+        if (key == null || hash == null || unit == null) {
+            throw new IllegalArgumentException("hmSetIfExists 参数不能为null");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("hmSetIfExists timeout必须大于0");
+        }
+        RedisSerializer<String> fieldSerializer = (RedisSerializer<String>) redisTemplate.getHashKeySerializer();
+        RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) redisTemplate.getHashValueSerializer();
+        byte[][] args = new byte[1 + 2 * hash.size()][];
+        args[0] = decimal(unit.toMillis(timeout));
+        int i = 1;
+        for (Map.Entry<String, Object> entry : hash.entrySet()) {
+            args[i++] = fieldSerializer.serialize(entry.getKey());
+            args[i++] = hashValueSerializer.serialize(entry.getValue());
+        }
+        Long result = luaScripts.execute(HMSET_IF_EXISTS_SCRIPT, Collections.singletonList(key), args);
+        return result != null && result == 1L;
+    }
+
+    /**
+     * key存在时才自增field，并把过期时间刷新为timeout，一次往返原子完成
+     *
+     * @Param: [key, field, increment, timeout, unit]
+     * @return: java.lang.Long 自增后的值，key不存在返回null
+     */
+    @SuppressWarnings("unchecked")
+    public Long hIncrbyIfExists(String key, String field, long increment, long timeout, TimeUnit unit) {
+        if (key == null || field == null || unit == null) {
+            throw new IllegalArgumentException("hIncrbyIfExists 参数不能为null");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("hIncrbyIfExists timeout必须大于0");
+        }
+        RedisSerializer<String> fieldSerializer = (RedisSerializer<String>) redisTemplate.getHashKeySerializer();
+        return luaScripts.execute(HINCRBY_IF_EXISTS_SCRIPT, Collections.singletonList(key),
+                fieldSerializer.serialize(field), decimal(increment), decimal(unit.toMillis(timeout)));
+    }
     /**-----------------------------List相关操作-------------------------------------*/
     /**
      * 向列表左边添加元素。如果该Key不存在，该命令将在插入之前创建一个与该Key关联的空链表，
@@ -342,7 +1113,9 @@ public class RedisUtil {
         if (key == null) {
             return 0L;
         }
-        return redisTemplate.opsForList().leftPushAll(key, strs);
+        Long size = redisTemplate.opsForList().leftPushAll(key, strs);
+        warnIfOversized(key, size);
+        return size;
     }
 
     /**
@@ -357,7 +1130,9 @@ public class RedisUtil {
         if (key == null) {
             return 0L;
         }
-        return redisTemplate.opsForList().rightPushAll(key, strs);
+        Long size = redisTemplate.opsForList().rightPushAll(key, strs);
+        warnIfOversized(key, size);
+        return size;
     }
 
     /**
@@ -387,7 +1162,7 @@ public class RedisUtil {
     }
 
     /**
-     * @Description:取返回
+     * @Description:取返回，开启helloredis.big-key时大范围按page-size分页读取，每次往返只取一页
      * @Param: [key, start, end]
      * @return: java.util.List<java.lang.Object>
      */
@@ -395,7 +1170,8 @@ public class RedisUtil {
         if (key == null) {
             return null;
         }
-        return redisTemplate.opsForList().range(key, start, end);
+        return pagedRange(key, start, end, () -> lLen(key), new ArrayList<>(),
+                (from, to) -> reads().opsForList().range(key, from, to));
     }
 
     /**
@@ -424,7 +1200,7 @@ public class RedisUtil {
         if (key == null) {
             return null;
         }
-        return redisTemplate.opsForList().index(key, index);
+        return reads().opsForList().index(key, index);
     }
 
     /**
@@ -437,7 +1213,7 @@ public class RedisUtil {
         if (null == key) {
             return 0L;
         }
-        return redisTemplate.opsForList().size(key);
+        return reads().opsForList().size(key);
     }
     /** *************Set数据类型************* */
     /**
@@ -450,7 +1226,11 @@ public class RedisUtil {
         if (null == key) {
             return 0L;
         }
-        return redisTemplate.opsForSet().add(key, members);
+        Long added = redisTemplate.opsForSet().add(key, members);
+        if (sampled()) {
+            warnIfOversized(key, sCard(key));
+        }
+        return added;
     }
 
     /**
@@ -463,7 +1243,7 @@ public class RedisUtil {
         if (null == key) {
             return 0L;
         }
-        return redisTemplate.opsForSet().size(key);
+        return reads().opsForSet().size(key);
     }
 
     /**
@@ -476,7 +1256,7 @@ public class RedisUtil {
         if (null == key) {
             return false;
         }
-        return redisTemplate.opsForSet().isMember(key, member);
+        return reads().opsForSet().isMember(key, member);
     }
 
     /**
@@ -489,7 +1269,7 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForSet().randomMember(key);
+        return reads().opsForSet().randomMember(key);
     }
 
     /**
@@ -502,7 +1282,7 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForSet().randomMembers(key, count);
+        return reads().opsForSet().randomMembers(key, count);
     }
 
     /**
@@ -528,7 +1308,21 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForSet().members(key);
+        return reads().opsForSet().members(key);
+    }
+
+    /**
+     * 基于SSCAN惰性遍历set成员，大set下替代sMembers
+     * 返回的Stream占用一个连接，必须关闭(try-with-resources)
+     *
+     * @Param: [key, pattern, count]
+     * @return: java.util.stream.Stream<java.lang.Object>
+     */
+    public Stream<Object> sScan(String key, String pattern, long count) {
+        if (null == key) {
+            return Stream.empty();
+        }
+        return cursorStream(reads().opsForSet().scan(key, scanOptions(pattern, count)));
     }
 
     /**
@@ -547,6 +1341,8 @@ public class RedisUtil {
 
     /**
      * 将一个集合中的元素移动到另外一个集合中去
+     * 集群模式下两个key不在同一个slot时退化为SREM+SADD，不是原子的，期间成员短暂地不在任何一个集合中；
+     * 需要原子性时用ClusterKeys.colocated让两个key同slot
      *
      * @Param:
      * @return:
@@ -555,20 +1351,44 @@ public class RedisUtil {
         if (null == srckey || null == dstkey) {
             return false;
         }
+        if (isCluster() && ClusterKeys.slot(srckey) != ClusterKeys.slot(dstkey)) {
+            Long removed = redisTemplate.opsForSet().remove(srckey, member);
+            if (removed == null || removed == 0) {
+                return false;
+            }
+            redisTemplate.opsForSet().add(dstkey, member);
+            return true;
+        }
         return redisTemplate.opsForSet().move(srckey, member, dstkey);
     }
 
     /**
      * 获取两个集合的并集
+     * 集群模式下两个key不在同一个slot时并行读取两个集合，在本地合并
      *
      * @Param:
      * @return:
      */
+    @SuppressWarnings("unchecked")
     public Set<Object> sUnion(String key, String otherKeys) {
         if (null == key || otherKeys == null) {
             return null;
         }
-        return redisTemplate.opsForSet().union(key, otherKeys);
+        if (isCluster() && ClusterKeys.slot(key) != ClusterKeys.slot(otherKeys)) {
+            RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+            List<Set<byte[]>> members = withClusterCommands(commands -> joinAll(Arrays.asList(
+                    commands.smembers(keySerializer.serialize(key)).toCompletableFuture(),
+                    commands.smembers(keySerializer.serialize(otherKeys)).toCompletableFuture())));
+            RedisSerializer<Object> valueSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+            Set<Object> union = new LinkedHashSet<>();
+            for (Set<byte[]> set : members) {
+                for (byte[] member : set) {
+                    union.add(valueSerializer.deserialize(member));
+                }
+            }
+            return union;
+        }
+        return reads().opsForSet().union(key, otherKeys);
     }
 //**********Sorted Set 数据类型********************
 
@@ -584,7 +1404,27 @@ public class RedisUtil {
         if (null == key) {
             return false;
         }
-        return redisTemplate.opsForZSet().add(key, member, score);
+        Boolean added = redisTemplate.opsForZSet().add(key, member, score);
+        if (sampled()) {
+            warnIfOversized(key, zCard(key));
+        }
+        return added;
+    }
+
+    /**
+     * 添加成员后只保留分数最高的maxSize个成员，一次往返原子完成(ZADD+ZREMRANGEBYRANK)
+     *
+     * @Param: [key, score, member, maxSize]
+     * @return: java.lang.Boolean 成员在裁剪后是否仍在集合中
+     */
+    public Boolean zAddAndTrim(String key, double score, Object member, long maxSize) {
+        if (null == key || maxSize <= 0) {
+            throw new IllegalArgumentException("zAddAndTrim key不能为空，maxSize必须大于0");
+        }
+        Long kept = luaScripts.execute(ZADD_AND_TRIM_SCRIPT, Collections.singletonList(key),
+                Double.toString(score).getBytes(StandardCharsets.US_ASCII), valueSerializer().serialize(member),
+                decimal(maxSize));
+        return kept != null && kept == 1L;
     }
 
     /**
@@ -611,7 +1451,7 @@ public class RedisUtil {
         if (null == key) {
             return 0L;
         }
-        return redisTemplate.opsForZSet().size(key);
+        return reads().opsForZSet().size(key);
     }
 
     /**
@@ -642,7 +1482,7 @@ public class RedisUtil {
         if (null == key) {
             return 0L;
         }
-        return redisTemplate.opsForZSet().count(key, min, max);
+        return reads().opsForZSet().count(key, min, max);
     }
 
     /**
@@ -656,7 +1496,20 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForZSet().rank(key, member);
+        return reads().opsForZSet().rank(key, member);
+    }
+
+    /**
+     * 按分数从高到低返回成员的位置，0表示分数最高的成员，成员不存在时返回null
+     *
+     * @Param: [key, member]
+     * @return: java.lang.Long
+     */
+    public Long zReverseRank(String key, Object member) {
+        if (null == key) {
+            return null;
+        }
+        return reads().opsForZSet().reverseRank(key, member);
     }
 
     /**
@@ -669,7 +1522,7 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForZSet().score(key, member);
+        return reads().opsForZSet().score(key, member);
     }
 
     /**
@@ -678,6 +1531,7 @@ public class RedisUtil {
      * Set中的最大索引值，或start > stop，此时一个空集合将被返回。如果stop大于最大索引值，
      * 该命令将返回从start到集合的最后一个成员。如果命令中带有可选参数WITHSCORES选项，
      * 该命令在返回的结果中将包含每个成员的分数值，如value1,score1,value2,score2...。
+     * 开启helloredis.big-key时大范围按page-size分页读取
      *
      * @Param: [key, min, max]
      * @return: java.util.Set<java.lang.Object>
@@ -686,12 +1540,28 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForZSet().range(key, min, max);
+        return pagedRange(key, min, max, () -> zCard(key), new LinkedHashSet<>(),
+                (from, to) -> reads().opsForZSet().range(key, from, to));
+    }
+
+    /**
+     * 基于ZSCAN惰性遍历sorted set的成员和分数，大zset下替代zRange(key, 0, -1)
+     * 注意ZSCAN不保证按分数排序。返回的Stream占用一个连接，必须关闭(try-with-resources)
+     *
+     * @Param: [key, pattern, count]
+     * @return: java.util.stream.Stream<org.springframework.data.redis.core.ZSetOperations.TypedTuple<java.lang.Object>>
+     */
+    public Stream<ZSetOperations.TypedTuple<Object>> zScan(String key, String pattern, long count) {
+        if (null == key) {
+            return Stream.empty();
+        }
+        return cursorStream(reads().opsForZSet().scan(key, scanOptions(pattern, count)));
     }
 
     /**
      * 该命令的功能和ZRANGE基本相同，唯一的差别在于该命令是通过反向排序获取指定位置的成员，
      * 即从高到低的顺序。如果成员具有相同的分数，则按降序字典顺序排序。
+     * 开启helloredis.big-key时大范围按page-size分页读取
      *
      * @Param: [key, start, end]
      * @return: java.util.Set<java.lang.Object>
@@ -700,7 +1570,21 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForZSet().reverseRange(key, start, end);
+        return pagedRange(key, start, end, () -> zCard(key), new LinkedHashSet<>(),
+                (from, to) -> reads().opsForZSet().reverseRange(key, from, to));
+    }
+
+    /**
+     * 与zReverseRange相同，同时返回每个成员的分数；一次读取整个区间，适合排行榜前N名这类小范围
+     *
+     * @Param: [key, start, end]
+     * @return: java.util.Set<org.springframework.data.redis.core.ZSetOperations.TypedTuple<java.lang.Object>>
+     */
+    public Set<ZSetOperations.TypedTuple<Object>> zReverseRangeWithScores(String key, long start, long end) {
+        if (null == key) {
+            return null;
+        }
+        return reads().opsForZSet().reverseRangeWithScores(key, start, end);
     }
 
     /**
@@ -718,7 +1602,7 @@ public class RedisUtil {
             return null;
         }
 
-        return redisTemplate.opsForZSet().rangeByScore(key, min, max);
+        return reads().opsForZSet().rangeByScore(key, min, max);
     }
 
     /**
@@ -732,7 +1616,224 @@ public class RedisUtil {
         if (null == key) {
             return null;
         }
-        return redisTemplate.opsForZSet().reverseRangeByScore(key, min, max);
+        return reads().opsForZSet().reverseRangeByScore(key, min, max);
     }
-}
 
+    /**
+     * 按page-size分页读取[start, end]区间，下标含义与LRANGE/ZRANGE相同
+     * 分页之间不是原子的，读取期间集合被修改时结果可能有重复或遗漏；集合变短时提前结束
+     */
+    private <C extends Collection<Object>> C pagedRange(String key, long start, long end, LongSupplier size, C result,
+                                                        BiFunction<Long, Long, Collection<Object>> fetch) {
+        HelloRedisProperties.BigKey config = properties.getBigKey();
+        long pageSize = config.getPageSize();
+        if (!config.isEnabled() || (start >= 0 && end >= 0 && end - start < pageSize)) {
+            Collection<Object> page = fetch.apply(start, end);
+            if (page != null) {
+                result.addAll(page);
+            }
+            return result;
+        }
+        long length = size.getAsLong();
+        long from = start < 0 ? Math.max(0, length + start) : start;
+        long to = end < 0 ? length + end : Math.min(end, length - 1);
+        while (from <= to) {
+            long pageEnd = Math.min(to, from + pageSize - 1);
+            Collection<Object> page = fetch.apply(from, pageEnd);
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            result.addAll(page);
+            if (page.size() < pageEnd - from + 1) {
+                break;
+            }
+            from = pageEnd + 1;
+        }
+        warnIfOversized(key, length);
+        return result;
+    }
+
+    private boolean sampled() {
+        HelloRedisProperties.BigKey config = properties.getBigKey();
+        return config.isEnabled() && ThreadLocalRandom.current().nextInt(Math.max(1, config.getSampleRate())) == 0;
+    }
+
+    /**
+     * 集合元素数超过helloredis.big-key.collection-warn-size时告警，每个key只告警一次
+     */
+    private void warnIfOversized(String key, Long size) {
+        HelloRedisProperties.BigKey config = properties.getBigKey();
+        if (key == null || size == null || !config.isEnabled() || size <= config.getCollectionWarnSize()) {
+            return;
+        }
+        if (warnedCollections.size() > 10000) {
+            warnedCollections.clear();
+        }
+        if (warnedCollections.add(key)) {
+            log.warn("大key告警: {} 元素数 {} 超过 {}，请考虑拆分或使用scan系列方法", key, size,
+                    config.getCollectionWarnSize());
+        }
+    }
+
+    boolean isCluster() {
+        Boolean cluster = clusterMode;
+        if (cluster == null) {
+            RedisConnectionFactory factory = redisTemplate.getConnectionFactory();
+            cluster = factory instanceof LettuceConnectionFactory && ((LettuceConnectionFactory) factory).isClusterAware();
+            clusterMode = cluster;
+        }
+        return cluster;
+    }
+
+    /**
+     * 使用lettuce集群异步接口，命令发出后立即返回，发往不同节点的命令并行执行
+     */
+    @SuppressWarnings("unchecked")
+    <T> T withClusterCommands(Function<RedisAdvancedClusterAsyncCommands<byte[], byte[]>, T> action) {
+        return redisTemplate.execute((RedisCallback<T>) connection ->
+                action.apply((RedisAdvancedClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> clusterMget(List<String> keys) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        Collection<List<Integer>> groups = ClusterKeys.groupBySlot(keys).values();
+        List<List<KeyValue<byte[], byte[]>>> results = withClusterCommands(commands -> {
+            List<CompletableFuture<List<KeyValue<byte[], byte[]>>>> futures = new ArrayList<>(groups.size());
+            for (List<Integer> indexes : groups) {
+                futures.add(commands.mget(rawKeys(keySerializer, keys, indexes)).toCompletableFuture());
+            }
+            return joinAll(futures);
+        });
+        //在调用线程里反序列化，不占用lettuce的io线程
+        RedisSerializer<Object> valueSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        Object[] values = new Object[keys.size()];
+        Iterator<List<KeyValue<byte[], byte[]>>> result = results.iterator();
+        for (List<Integer> indexes : groups) {
+            List<KeyValue<byte[], byte[]>> group = result.next();
+            for (int i = 0; i < indexes.size(); i++) {
+                values[indexes.get(i)] = valueSerializer.deserialize(group.get(i).getValueOrElse(null));
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Long clusterDelete(List<String> keys) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        Collection<List<Integer>> groups = ClusterKeys.groupBySlot(keys).values();
+        List<Long> deleted = withClusterCommands(commands -> {
+            List<CompletableFuture<Long>> futures = new ArrayList<>(groups.size());
+            for (List<Integer> indexes : groups) {
+                futures.add(commands.del(rawKeys(keySerializer, keys, indexes)).toCompletableFuture());
+            }
+            return joinAll(futures);
+        });
+        return deleted.stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * 集群连接不支持跨节点的connection.scan，改用lettuce的集群SCAN：游标里记录当前节点，
+     * 一个主节点遍历完后自动切换到下一个主节点；每一页单独取连接，Stream不占用连接
+     */
+    private Stream<String> clusterScan(String pattern, long count, RedisSerializer<String> keySerializer) {
+        ScanArgs args = ScanArgs.Builder.matches(pattern).limit(count);
+        Iterator<String> keys = new Iterator<String>() {
+            private KeyScanCursor<byte[]> cursor;
+            private Iterator<byte[]> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext()) {
+                    if (cursor != null && cursor.isFinished()) {
+                        return false;
+                    }
+                    KeyScanCursor<byte[]> previous = cursor;
+                    cursor = withClusterCommands(commands -> joinAll(Collections.singletonList(
+                            (previous == null ? commands.scan(args) : commands.scan(previous, args))
+                                    .toCompletableFuture())).get(0));
+                    page = cursor.getKeys().iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keySerializer.deserialize(page.next());
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(keys, Spliterator.ORDERED), false);
+    }
+
+    private static byte[][] rawKeys(RedisSerializer<String> keySerializer, List<String> keys, List<Integer> indexes) {
+        byte[][] rawKeys = new byte[indexes.size()][];
+        for (int i = 0; i < indexes.size(); i++) {
+            rawKeys[i] = keySerializer.serialize(keys.get(indexes.get(i)));
+        }
+        return rawKeys;
+    }
+
+    /**
+     * 等待所有命令完成，按顺序返回结果，命令失败时抛出原始异常
+     */
+    static <T> List<T> joinAll(List<CompletableFuture<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return results;
+    }
+
+    /**
+     * pattern为null时不过滤
+     */
+    private static ScanOptions scanOptions(String pattern, long count) {
+        ScanOptions.ScanOptionsBuilder builder = ScanOptions.scanOptions().count(count);
+        if (pattern != null) {
+            builder.match(pattern);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 把游标包装成惰性Stream，Stream关闭时关闭游标释放连接
+     */
+    private static <T> Stream<T> cursorStream(Cursor<T> cursor) {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 按batchSize分批回调
+     */
+    private static <T> long forEachBatch(Iterator<T> iterator, int batchSize, Consumer<List<T>> consumer) {
+        long total = 0;
+        List<T> batch = new ArrayList<>(batchSize);
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            if (batch.size() >= batchSize) {
+                consumer.accept(batch);
+                total += batch.size();
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+            total += batch.size();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,208 @@
+package com.guorenjie.helloredis.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * @Description 读请求路由：默认走按读策略(从节点优先/最近节点)连接的redisTemplate，
+ * 以下情况改走只连主节点的模板：调用方通过readFromPrimary要求读己之写；定期检查的从节点复制延迟超过上限
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+public class ReplicaReadRouter implements AutoCloseable {
+
+    private static final ThreadLocal<Boolean> PRIMARY_ONLY = new ThreadLocal<>();
+
+    private final RedisTemplate<String, Object> replicaTemplate;
+    private final RedisTemplate<String, Object> primaryTemplate;
+    private final LettuceConnectionFactory primaryFactory;
+    private final long maxLagBytes;
+    private final long maxLagSeconds;
+    private final ScheduledExecutorService lagChecker;
+
+    private volatile boolean replicasLagging;
+    private volatile long lagBytes;
+    private volatile long lagSeconds;
+
+    /**
+     * @param replicaTemplate 按读策略路由的模板
+     * @param primaryFactory  只连主节点的连接工厂，由本对象负责关闭
+     */
+    public ReplicaReadRouter(RedisTemplate<String, Object> replicaTemplate, LettuceConnectionFactory primaryFactory,
+                             long maxLagBytes, long maxLagSeconds, long checkIntervalMillis) {
+        if (maxLagBytes <= 0 || maxLagSeconds <= 0 || checkIntervalMillis <= 0) {
+            throw new IllegalArgumentException("ReplicaReadRouter 延迟上限和检查间隔必须大于0");
+        }
+        this.replicaTemplate = replicaTemplate;
+        this.primaryFactory = primaryFactory;
+        this.maxLagBytes = maxLagBytes;
+        this.maxLagSeconds = maxLagSeconds;
+        this.primaryTemplate = new RedisTemplate<>();
+        primaryTemplate.setConnectionFactory(primaryFactory);
+        primaryTemplate.setKeySerializer(replicaTemplate.getKeySerializer());
+        primaryTemplate.setValueSerializer(replicaTemplate.getValueSerializer());
+        primaryTemplate.setHashKeySerializer(replicaTemplate.getHashKeySerializer());
+        primaryTemplate.setHashValueSerializer(replicaTemplate.getHashValueSerializer());
+        primaryTemplate.afterPropertiesSet();
+        this.lagChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-replica-lag");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lagChecker.scheduleWithFixedDelay(this::checkLag, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 本次读取应使用的模板
+     *
+     * @return: org.springframework.data.redis.core.RedisTemplate<java.lang.String, java.lang.Object>
+     */
+    public RedisTemplate<String, Object> template() {
+        return replicasLagging || Boolean.TRUE.equals(PRIMARY_ONLY.get()) ? primaryTemplate : replicaTemplate;
+    }
+
+    /**
+     * 在reads执行期间，当前线程的所有读请求都发往主节点，用于刚写完就要读到的场景
+     *
+     * @Param: [reads]
+     * @return: T
+     */
+    public <T> T readFromPrimary(Supplier<T> reads) {
+        Boolean previous = PRIMARY_ONLY.get();
+        PRIMARY_ONLY.set(Boolean.TRUE);
+        try {
+            return reads.get();
+        } finally {
+            if (previous == null) {
+                PRIMARY_ONLY.remove();
+            } else {
+                PRIMARY_ONLY.set(previous);
+            }
+        }
+    }
+
+    /**
+     * 从节点延迟超过上限，读请求已经退回主节点
+     *
+     * @return: boolean
+     */
+    public boolean isReplicasLagging() {
+        return replicasLagging;
+    }
+
+    /**
+     * 最近一次检查时落后最多的从节点与主节点的复制偏移量之差(字节)
+     *
+     * @return: long
+     */
+    public long getLagBytes() {
+        return lagBytes;
+    }
+
+    /**
+     * 最近一次检查时从节点最长的未确认时间(秒)
+     *
+     * @return: long
+     */
+    public long getLagSeconds() {
+        return lagSeconds;
+    }
+
+    @Override
+    public void close() {
+        lagChecker.shutdownNow();
+        primaryFactory.destroy();
+    }
+
+    private void checkLag() {
+        try {
+            Properties info = primaryTemplate.execute(
+                    (RedisCallback<Properties>) connection -> connection.serverCommands().info("replication"));
+            long[] lag = parseLag(info);
+            lagBytes = lag[0];
+            lagSeconds = lag[1];
+            boolean lagging = lag[0] > maxLagBytes || lag[1] > maxLagSeconds;
+            if (lagging != replicasLagging) {
+                log.warn(lagging ? "从节点复制延迟{}字节/{}秒超过上限，读请求退回主节点"
+                        : "从节点复制延迟恢复到{}字节/{}秒，读请求重新路由到从节点", lag[0], lag[1]);
+            }
+            replicasLagging = lagging;
+        } catch (RuntimeException e) {
+            //看不到复制状态时保守地读主节点
+            replicasLagging = true;
+            log.warn("检查从节点复制延迟失败，读请求退回主节点: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 从INFO replication中取出落后最多的字节数和秒数
+     * 集群模式下各节点的字段带"host:port."前缀，按前缀匹配同一个主节点的master_repl_offset
+     * slaveN的格式：ip=10.0.0.2,port=6379,state=online,offset=1234,lag=0
+     */
+    static long[] parseLag(Properties info) {
+        long maxBytes = 0;
+        long maxSeconds = 0;
+        if (info == null) {
+            return new long[]{maxBytes, maxSeconds};
+        }
+        for (String name : info.stringPropertyNames()) {
+            int index = name.lastIndexOf("slave");
+            if (index < 0 || index + 5 >= name.length() || !isDigits(name.substring(index + 5))) {
+                continue;
+            }
+            String prefix = name.substring(0, index);
+            String masterOffset = info.getProperty(prefix + "master_repl_offset");
+            long offset = -1;
+            long seconds = 0;
+            boolean online = false;
+            for (String field : info.getProperty(name).split(",")) {
+                int equals = field.indexOf('=');
+                if (equals < 0) {
+                    continue;
+                }
+                String value = field.substring(equals + 1).trim();
+                switch (field.substring(0, equals).trim()) {
+                    case "offset":
+                        offset = Long.parseLong(value);
+                        break;
+                    case "lag":
+                        seconds = Long.parseLong(value);
+                        break;
+                    case "state":
+                        online = "online".equals(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (!online) {
+                //还在全量同步的从节点不可读
+                maxSeconds = Long.MAX_VALUE;
+                continue;
+            }
+            if (masterOffset != null && offset >= 0) {
+                maxBytes = Math.max(maxBytes, Long.parseLong(masterOffset.trim()) - offset);
+            }
+            maxSeconds = Math.max(maxSeconds, seconds);
+        }
+        return new long[]{maxBytes, maxSeconds};
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
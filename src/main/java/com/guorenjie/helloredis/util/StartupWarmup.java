@@ -0,0 +1,185 @@
+package com.guorenjie.helloredis.util;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.entity.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Description 启动预热：上下文刷新之后、就绪(readiness)之前执行，第一个请求不再承担建连和类加载、序列化器初始化的开销
+ * 1.打开连接池到min-idle个连接；2.用示例对象走一遍value序列化器；3.用固定的key调用RedisUtil常用读操作和管道批量读取，
+ * 预热不写入，不会记录到key布隆过滤器，也不会广播本地缓存失效
+ * 启动耗时(JVM启动到预热完成)、预热耗时、第一个请求的耗时注册为指标app.startup.time、app.startup.warmup.time、
+ * app.first.request.time。helloredis.startup.training-run=true时只创建全部bean后退出，用于构建镜像时生成AppCDS归档
+ * @Author guorenjie
+ * @Date 2020/5/20 0:48
+ **/
+@Slf4j
+@Component
+public class StartupWarmup implements ApplicationRunner {
+
+    @Resource
+    ConfigurableApplicationContext context;
+
+    @Resource
+    RedisConnectionFactory connectionFactory;
+
+    @Resource
+    RedisTemplate<String, Object> redisTemplate;
+
+    @Resource
+    RedisUtil redisUtil;
+
+    @Resource
+    RedisProperties redisProperties;
+
+    @Resource
+    HelloRedisProperties properties;
+
+    @Resource
+    MeterRegistry registry;
+
+    /**
+     * 预热读取的key，不需要存在
+     */
+    private static final String WARMUP_KEY = "helloredis:warmup";
+
+    private final AtomicBoolean firstRequestRecorded = new AtomicBoolean();
+    private volatile long startupMillis;
+    private volatile long warmupMillis;
+    /**
+     * 还没有请求时为NaN
+     */
+    private volatile double firstRequestMillis = Double.NaN;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        HelloRedisProperties.Startup config = properties.getStartup();
+        if (config.isTrainingRun()) {
+            //懒加载的bean也创建出来，让它们的类进入AppCDS类列表；不连接redis
+            context.getBeanFactory().preInstantiateSingletons();
+            log.info("训练运行完成，退出");
+            System.exit(SpringApplication.exit(context, () -> 0));
+            return;
+        }
+        long started = System.nanoTime();
+        if (config.isWarmupEnabled()) {
+            try {
+                int connections = openPool(config.getWarmupConnections() > 0 ? config.getWarmupConnections()
+                        : poolMinIdle());
+                int serialized = warmSerializer();
+                warmRedisUtil();
+                log.info("预热完成：打开{}个连接，序列化{}个示例对象", connections, serialized);
+            } catch (RuntimeException e) {
+                //预热只是优化，redis暂时不可用时照常启动
+                log.warn("预热失败: {}", e.getMessage());
+            }
+        }
+        warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        TimeGauge.builder("app.startup.time", this, TimeUnit.MILLISECONDS, warmup -> warmup.startupMillis)
+                .description("JVM启动到预热完成的耗时").register(registry);
+        TimeGauge.builder("app.startup.warmup.time", this, TimeUnit.MILLISECONDS, warmup -> warmup.warmupMillis)
+                .register(registry);
+        TimeGauge.builder("app.first.request.time", this, TimeUnit.MILLISECONDS,
+                warmup -> warmup.firstRequestMillis).register(registry);
+        log.info("启动耗时{}ms，其中预热{}ms", startupMillis, warmupMillis);
+    }
+
+    /**
+     * 记录第一个请求的耗时，只有第一次调用生效
+     *
+     * @Param: [millis]
+     * @return: void
+     */
+    public void recordFirstRequest(long millis) {
+        if (firstRequestRecorded.compareAndSet(false, true)) {
+            firstRequestMillis = millis;
+            log.info("第一个请求耗时{}ms", millis);
+        }
+    }
+
+    /**
+     * 同时持有connections个连接并各自执行一次命令，归还后留在连接池中空闲
+     */
+    private int openPool(int connections) {
+        List<RedisConnection> opened = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                RedisConnection connection = connectionFactory.getConnection();
+                opened.add(connection);
+                //管道使用独占连接，从连接池借出；共享连接在第一个命令时建立
+                connection.openPipeline();
+                connection.ping();
+                connection.closePipeline();
+            }
+            if (connections == 0) {
+                try (RedisConnection connection = connectionFactory.getConnection()) {
+                    connection.ping();
+                }
+            }
+        } finally {
+            for (RedisConnection connection : opened) {
+                connection.close();
+            }
+        }
+        return connections;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int warmSerializer() {
+        RedisSerializer<Object> serializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        Map<String, Object> map = new HashMap<>();
+        map.put("name", "warmup");
+        map.put("count", 1L);
+        List<Object> samples = Arrays.asList(sampleUser(), map, "warmup", 1L, Arrays.asList("a", "b"));
+        for (Object sample : samples) {
+            serializer.deserialize(serializer.serialize(sample));
+        }
+        return samples.size();
+    }
+
+    private void warmRedisUtil() {
+        redisUtil.get(WARMUP_KEY);
+        redisUtil.hasKey(WARMUP_KEY);
+        redisUtil.mget(Arrays.asList(WARMUP_KEY, WARMUP_KEY + ":missing"));
+        RedisBatch batch = redisUtil.batch();
+        batch.get(WARMUP_KEY);
+        batch.execute();
+    }
+
+    private int poolMinIdle() {
+        RedisProperties.Pool pool = redisProperties.getLettuce().getPool();
+        return pool == null ? 0 : pool.getMinIdle();
+    }
+
+    private static User sampleUser() {
+        User user = new User();
+        user.setId("warmup");
+        user.setName("warmup");
+        user.setAge(1);
+        user.setEmail("warmup@example.com");
+        return user;
+    }
+}
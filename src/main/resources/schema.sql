@@ -0,0 +1,7 @@
+-- 用户表，MySQL需要手动执行；嵌入式数据库(测试用的H2)启动时自动执行
+CREATE TABLE IF NOT EXISTS t_user (
+    id    VARCHAR(64) NOT NULL PRIMARY KEY,
+    name  VARCHAR(64),
+    age   BIGINT      NOT NULL DEFAULT 0,
+    email VARCHAR(128)
+);
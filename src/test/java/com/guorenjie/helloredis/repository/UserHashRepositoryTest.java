@@ -0,0 +1,136 @@
+package com.guorenjie.helloredis.repository;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import com.guorenjie.helloredis.entity.User;
+import com.guorenjie.helloredis.util.RedisUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserHashRepositoryTest {
+
+	private final FakeRedisUtil redisUtil = new FakeRedisUtil();
+
+	private final UserHashRepository repository = new UserHashRepository(redisUtil, new HelloRedisProperties());
+
+	@Test
+	void testUpdateMissingUserWritesNothing() {
+		assertFalse(repository.updateField("5", UserHashRepository.FIELD_NAME, "n"));
+		assertFalse(repository.updateFields("5", Collections.singletonMap(UserHashRepository.FIELD_AGE, 3L)));
+		assertNull(repository.incrementAge("5", 1));
+		assertTrue(redisUtil.hashes.isEmpty());
+		assertNull(repository.findById("5"));
+	}
+
+	@Test
+	void testUpdateExistingUserRefreshesTtl() {
+		redisUtil.seed("user:hash:5", 30L);
+		assertTrue(repository.updateField("5", UserHashRepository.FIELD_NAME, "n"));
+		assertEquals(3600_000L, redisUtil.ttlMillis.get("user:hash:5"));
+		User user = repository.findById("5");
+		assertEquals("n", user.getName());
+		assertEquals(30L, user.getAge());
+
+		redisUtil.ttlMillis.put("user:hash:5", 1L);
+		assertEquals(32L, repository.incrementAge("5", 2));
+		assertEquals(3600_000L, redisUtil.ttlMillis.get("user:hash:5"));
+	}
+
+	@Test
+	void testUpdateIdRejected() {
+		redisUtil.seed("user:hash:5", 30L);
+		assertThrows(IllegalArgumentException.class,
+				() -> repository.updateField("5", UserHashRepository.FIELD_ID, "6"));
+		assertThrows(IllegalArgumentException.class,
+				() -> repository.updateFields("5", Collections.singletonMap(UserHashRepository.FIELD_ID, "6")));
+		assertEquals("5", repository.findById("5").getId());
+	}
+
+	@Test
+	void testToHashSkipsNullFields() {
+		User user = new User();
+		user.setId("5");
+		user.setAge(30);
+		Map<String, Object> hash = UserHashRepository.toHash(user);
+		assertEquals("5", hash.get(UserHashRepository.FIELD_ID));
+		assertEquals(30L, hash.get(UserHashRepository.FIELD_AGE));
+		assertFalse(hash.containsKey(UserHashRepository.FIELD_NAME));
+	}
+
+	@Test
+	void testSaveClearsNullFields() {
+		User user = new User();
+		user.setId("5");
+		user.setName("n");
+		assertEquals(Collections.singletonList(UserHashRepository.FIELD_EMAIL),
+				UserHashRepository.clearedFields(UserHashRepository.toHash(user)));
+		user.setEmail("e");
+		assertTrue(UserHashRepository.clearedFields(UserHashRepository.toHash(user)).isEmpty());
+	}
+
+	@Test
+	void testFromHashAcceptsAnyNumberForm() {
+		Map<Object, Object> hash = new HashMap<>();
+		hash.put(UserHashRepository.FIELD_ID, "5");
+		hash.put(UserHashRepository.FIELD_AGE, 30);
+		assertEquals(30L, UserHashRepository.fromHash(hash).getAge());
+		hash.put(UserHashRepository.FIELD_AGE, "31");
+		assertEquals(31L, UserHashRepository.fromHash(hash).getAge());
+		assertNull(UserHashRepository.fromHash(hash).getEmail());
+	}
+
+	/**
+	 * 按脚本语义在内存中模拟hmSetIfExists/hIncrbyIfExists
+	 */
+	private static final class FakeRedisUtil extends RedisUtil {
+		private final Map<String, Map<Object, Object>> hashes = new HashMap<>();
+		private final Map<String, Long> ttlMillis = new HashMap<>();
+
+		private void seed(String key, long age) {
+			Map<Object, Object> hash = new HashMap<>();
+			hash.put(UserHashRepository.FIELD_ID, "5");
+			hash.put(UserHashRepository.FIELD_AGE, age);
+			hashes.put(key, hash);
+		}
+
+		@Override
+		public boolean hmSetIfExists(String key, Map<String, Object> hash, long timeout, TimeUnit unit) {
+			Map<Object, Object> current = hashes.get(key);
+			if (current == null) {
+				return false;
+			}
+			current.putAll(hash);
+			ttlMillis.put(key, unit.toMillis(timeout));
+			return true;
+		}
+
+		@Override
+		public Long hIncrbyIfExists(String key, String field, long increment, long timeout, TimeUnit unit) {
+			Map<Object, Object> current = hashes.get(key);
+			if (current == null) {
+				return null;
+			}
+			long value = ((Number) current.get(field)).longValue() + increment;
+			current.put(field, value);
+			ttlMillis.put(key, unit.toMillis(timeout));
+			return value;
+		}
+
+		@Override
+		public Map<Object, Object> hgetAll(String key) {
+			Map<Object, Object> hash = hashes.get(key);
+			return hash == null ? Collections.emptyMap() : hash;
+		}
+	}
+
+}
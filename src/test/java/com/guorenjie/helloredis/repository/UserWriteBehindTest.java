@@ -0,0 +1,89 @@
+package com.guorenjie.helloredis.repository;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.guorenjie.helloredis.entity.User;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 使用嵌入式H2代替MySQL
+ */
+@JdbcTest
+@Import(UserDao.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class UserWriteBehindTest {
+
+	@Autowired
+	private UserDao userDao;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private UserWriteBehind writeBehind;
+
+	@BeforeEach
+	void setUp() {
+		jdbcTemplate.update("DELETE FROM t_user");
+		writeBehind = new UserWriteBehind(userDao, 60_000, 2, 100);
+	}
+
+	@AfterEach
+	void tearDown() {
+		writeBehind.close();
+	}
+
+	@Test
+	void testCoalesceUpdatesOfSameId() {
+		writeBehind.enqueue(user("1", 18));
+		writeBehind.enqueue(user("1", 19));
+		writeBehind.enqueue(user("1", 20));
+		assertEquals(1, writeBehind.pendingSize());
+		assertEquals(20, writeBehind.getPending("1").getAge());
+		assertNull(userDao.findById("1"));
+
+		assertEquals(1, writeBehind.flush());
+		assertEquals(20, userDao.findById("1").getAge());
+		assertEquals(0, writeBehind.pendingSize());
+	}
+
+	@Test
+	void testFlushInsertsAndUpdatesInBatches() {
+		userDao.batchUpsert(Collections.singletonList(user("1", 1)));
+		for (int i = 1; i <= 5; i++) {
+			writeBehind.enqueue(user(String.valueOf(i), i * 10));
+		}
+		writeBehind.flush();
+		assertEquals(5, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM t_user", Integer.class));
+		assertEquals(10, userDao.findById("1").getAge());
+		assertEquals(50, userDao.findById("5").getAge());
+	}
+
+	@Test
+	void testCloseFlushesPending() {
+		writeBehind.enqueue(user("9", 9));
+		writeBehind.close();
+		assertEquals(9, userDao.findById("9").getAge());
+	}
+
+	private static User user(String id, long age) {
+		User user = new User();
+		user.setId(id);
+		user.setName("user" + id);
+		user.setAge(age);
+		user.setEmail(id + "@example.com");
+		return user;
+	}
+
+}
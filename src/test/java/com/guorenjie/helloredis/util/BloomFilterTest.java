@@ -0,0 +1,57 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+	@Test
+	void testSizing() {
+		//一百万个key、1%误判率约需要958万位、7个哈希函数
+		long bits = BloomFilter.optimalBits(1000000, 0.01);
+		assertEquals(9585059, bits);
+		assertEquals(7, BloomFilter.optimalHashes(bits, 1000000));
+	}
+
+	@Test
+	void testNoFalseNegativesAndBoundedFalsePositives() {
+		BloomFilter filter = BloomFilter.create(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.put("user:" + i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("user:" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 10000; i < 110000; i++) {
+			if (filter.mightContain("user:" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 1500, "误判" + falsePositives + "次");
+	}
+
+	@Test
+	void testMergeUsesRedisBitOrder() {
+		BloomFilter source = new BloomFilter(1024, 3);
+		source.put("user:1");
+		byte[] bitmap = new byte[128];
+		for (long offset : source.offsets("user:1")) {
+			//redis SETBIT：第offset位是第offset/8个字节从高位数的第offset%8位
+			bitmap[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+		}
+		BloomFilter mirror = new BloomFilter(1024, 3);
+		assertFalse(mirror.mightContain("user:1"));
+		mirror.merge(Arrays.copyOfRange(bitmap, 64, 128), 64);
+		mirror.merge(Arrays.copyOfRange(bitmap, 0, 64), 0);
+		assertTrue(mirror.mightContain("user:1"));
+		assertArrayEquals(source.offsets("user:1"), mirror.offsets("user:1"));
+	}
+
+}
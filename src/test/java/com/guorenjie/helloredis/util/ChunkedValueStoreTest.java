@@ -0,0 +1,292 @@
+package com.guorenjie.helloredis.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.Invocation;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ChunkedValueStoreTest {
+
+	private static final String KEY = "big";
+
+	private final RedisSerializer<Object> serializer = RedisSerializer.java();
+
+	private final FakeRedis redis = new FakeRedis();
+
+	private final ChunkedValueStore store = new ChunkedValueStore(redis.template(serializer), 64, 32);
+
+	@Test
+	void testSmallValueStoredInline() {
+		store.write(KEY, "small", 0);
+		assertEquals(Collections.singleton(KEY), redis.data.keySet());
+		assertArrayEquals(serializer.serialize("small"), redis.data.get(KEY));
+		assertEquals("small", store.read(KEY));
+	}
+
+	@Test
+	void testLargeValueRoundTrip() {
+		String value = large('a');
+		store.write(KEY, value, 0);
+		assertNotNull(ChunkedValueStore.Manifest.decode(redis.data.get(KEY)));
+		int chunks = (serializer.serialize(value).length + 31) / 32;
+		assertEquals(chunks, redis.chunkKeys(KEY).size());
+		assertEquals(value, store.read(KEY));
+		store.write("small", "small", 0);
+		assertEquals(Arrays.asList(value, "small", null), store.readAll(Arrays.asList(KEY, "small", "missing")));
+	}
+
+	@Test
+	void testOverwriteRemovesOldChunks() {
+		store.write(KEY, large('a'), 0);
+		List<String> before = redis.chunkKeys(KEY);
+		store.write(KEY, large('b'), 0);
+		List<String> after = redis.chunkKeys(KEY);
+		assertEquals(before.size(), after.size());
+		assertTrue(Collections.disjoint(before, after));
+		assertEquals(large('b'), store.read(KEY));
+		store.write(KEY, "small", 0);
+		assertTrue(redis.chunkKeys(KEY).isEmpty());
+		assertEquals("small", store.read(KEY));
+	}
+
+	@Test
+	void testGetAndWriteReturnsChunkedValue() {
+		store.write(KEY, large('a'), 0);
+		assertEquals(large('a'), store.getAndWrite(KEY, "small", 0));
+		assertTrue(redis.chunkKeys(KEY).isEmpty());
+		assertEquals("small", store.getAndWrite(KEY, large('b'), 0));
+		assertEquals(large('b'), store.read(KEY));
+	}
+
+	@Test
+	void testDeleteRemovesChunks() {
+		store.write(KEY, large('a'), 0);
+		assertTrue(store.delete(KEY));
+		assertTrue(redis.data.isEmpty());
+		assertFalse(store.delete(KEY));
+		assertNull(store.read(KEY));
+	}
+
+	@Test
+	void testExpireAndPersistReachChunks() {
+		store.write(KEY, large('a'), 10_000);
+		assertEquals(redis.data.keySet(), redis.ttls.keySet());
+		redis.ttls.values().forEach(ttl -> assertEquals(10_000L, ttl));
+		assertTrue(store.expire(KEY, 5_000));
+		assertEquals(redis.data.keySet(), redis.ttls.keySet());
+		redis.ttls.values().forEach(ttl -> assertEquals(5_000L, ttl));
+		assertTrue(store.persist(KEY));
+		assertTrue(redis.ttls.isEmpty());
+		//ttl小于等于0与redis相同，直接删除
+		assertTrue(store.expire(KEY, 0));
+		assertTrue(redis.data.isEmpty());
+	}
+
+	@Test
+	void testMissingChunkReadAsMiss() {
+		store.write(KEY, large('a'), 0);
+		redis.data.remove(redis.chunkKeys(KEY).get(1));
+		assertNull(store.read(KEY));
+		assertEquals(Collections.singletonList(null), store.readAll(Collections.singletonList(KEY)));
+	}
+
+	@Test
+	void testOpenStream() throws IOException {
+		store.write(KEY, large('a'), 0);
+		store.write("small", "small", 0);
+		assertArrayEquals(serializer.serialize(large('a')), readFully(store.openStream(KEY)));
+		assertArrayEquals(serializer.serialize("small"), readFully(store.openStream("small")));
+		assertNull(store.openStream("missing"));
+	}
+
+	private static String large(char c) {
+		char[] chars = new char[200];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try (InputStream stream = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			//单字节和批量读取交替进行
+			out.write(stream.read());
+			byte[] buffer = new byte[10];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static String string(byte[] raw) {
+		return new String(raw, StandardCharsets.UTF_8);
+	}
+
+	private static long decimal(byte[] raw) {
+		return Long.parseLong(new String(raw, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * 内存中的string和过期时间，连接上的命令和ChunkedValueStore的脚本都在这里执行
+	 */
+	private static final class FakeRedis {
+		private final Map<String, byte[]> data = new TreeMap<>();
+		private final Map<String, Long> ttls = new TreeMap<>();
+
+		private RedisTemplate<String, Object> template(RedisSerializer<Object> valueSerializer) {
+			RedisConnection connection = mock(RedisConnection.class, this::answer);
+			RedisConnectionFactory factory = mock(RedisConnectionFactory.class);
+			when(factory.getConnection()).thenReturn(connection);
+			RedisTemplate<String, Object> template = new RedisTemplate<>();
+			template.setConnectionFactory(factory);
+			template.setKeySerializer(RedisSerializer.string());
+			template.setValueSerializer(valueSerializer);
+			template.afterPropertiesSet();
+			return template;
+		}
+
+		private List<String> chunkKeys(String key) {
+			List<String> keys = new ArrayList<>();
+			for (String candidate : data.keySet()) {
+				if (candidate.startsWith(key + ":chunk:")) {
+					keys.add(candidate);
+				}
+			}
+			//按分块序号排序
+			keys.sort((a, b) -> Integer.compare(index(a), index(b)));
+			return keys;
+		}
+
+		private static int index(String chunkKey) {
+			return Integer.parseInt(chunkKey.substring(chunkKey.lastIndexOf(':') + 1));
+		}
+
+		private void set(String key, byte[] value, long ttlMillis) {
+			data.put(key, value);
+			if (ttlMillis > 0) {
+				ttls.put(key, ttlMillis);
+			} else {
+				ttls.remove(key);
+			}
+		}
+
+		private byte[] manifestOrNull(byte[] previous) {
+			return ChunkedValueStore.Manifest.decode(previous) == null ? null : previous;
+		}
+
+		private Object answer(InvocationOnMock invocation) throws Throwable {
+			//保留可变参数的原始数组
+			Object[] args = ((Invocation) invocation).getRawArguments();
+			switch (invocation.getMethod().getName()) {
+				case "stringCommands":
+				case "keyCommands":
+				case "scriptingCommands":
+					return invocation.getMock();
+				case "get":
+					return data.get(string((byte[]) args[0]));
+				case "mGet":
+					List<byte[]> values = new ArrayList<>();
+					for (byte[] key : (byte[][]) args[0]) {
+						values.add(data.get(string(key)));
+					}
+					return values;
+				case "set":
+					set(string((byte[]) args[0]), (byte[]) args[1],
+							args.length > 2 ? ((Expiration) args[2]).getExpirationTimeInMilliseconds() : 0);
+					return true;
+				case "pExpire":
+					if (!data.containsKey(string((byte[]) args[0]))) {
+						return false;
+					}
+					ttls.put(string((byte[]) args[0]), (Long) args[1]);
+					return true;
+				case "persist":
+					return ttls.remove(string((byte[]) args[0])) != null;
+				case "unlink":
+					long unlinked = 0;
+					for (byte[] key : (byte[][]) args[0]) {
+						ttls.remove(string(key));
+						unlinked += data.remove(string(key)) == null ? 0 : 1;
+					}
+					return unlinked;
+				case "evalSha":
+					return evalSha((String) args[0], (byte[][]) args[3]);
+				default:
+					return Mockito.RETURNS_DEFAULTS.answer(invocation);
+			}
+		}
+
+		/**
+		 * 按ChunkedValueStore中脚本的语义执行
+		 */
+		private Object evalSha(String sha, byte[][] keysAndArgs) {
+			String key = string(keysAndArgs[0]);
+			byte[] previous = data.get(key);
+			if (sha.equals(ChunkedValueStore.SET_SCRIPT.getSha1())) {
+				set(key, keysAndArgs[1], decimal(keysAndArgs[2]));
+				return manifestOrNull(previous);
+			}
+			if (sha.equals(ChunkedValueStore.GET_AND_SET_SCRIPT.getSha1())) {
+				set(key, keysAndArgs[1], decimal(keysAndArgs[2]));
+				return previous;
+			}
+			if (sha.equals(ChunkedValueStore.SET_IF_ABSENT_SCRIPT.getSha1())) {
+				if (previous == null) {
+					set(key, keysAndArgs[1], decimal(keysAndArgs[2]));
+				}
+				return previous;
+			}
+			if (sha.equals(ChunkedValueStore.DELETE_SCRIPT.getSha1())) {
+				ttls.remove(key);
+				data.remove(key);
+				byte[] manifest = manifestOrNull(previous);
+				if (manifest != null) {
+					return manifest;
+				}
+				return (previous == null ? "0" : "1").getBytes(StandardCharsets.US_ASCII);
+			}
+			if (sha.equals(ChunkedValueStore.EXPIRE_SCRIPT.getSha1())) {
+				long ttlMillis = decimal(keysAndArgs[1]);
+				long result;
+				if (previous == null) {
+					result = 0L;
+				} else if (ttlMillis >= 0) {
+					ttls.put(key, ttlMillis);
+					result = 1L;
+				} else {
+					result = ttls.remove(key) == null ? 0L : 1L;
+				}
+				byte[] manifest = manifestOrNull(previous);
+				return manifest == null ? Collections.singletonList(result) : Arrays.asList(result, manifest);
+			}
+			throw new IllegalArgumentException("未知脚本");
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterKeysTest {
+
+	@Test
+	void testColocatedKeysShareSlot() {
+		String profile = ClusterKeys.colocated("user:5", "profile");
+		String orders = ClusterKeys.colocated("user:5", "orders");
+		assertEquals("{user:5}:profile", profile);
+		assertEquals(ClusterKeys.slot("user:5"), ClusterKeys.slot(profile));
+		assertTrue(ClusterKeys.sameSlot(Arrays.asList(profile, orders)));
+		assertFalse(ClusterKeys.sameSlot(Arrays.asList("foo", "bar")));
+		assertEquals(12182, ClusterKeys.slot("foo"));
+		assertThrows(IllegalArgumentException.class, () -> ClusterKeys.hashTag("a{b"));
+	}
+
+	@Test
+	void testGroupBySlotKeepsCallerOrder() {
+		List<String> keys = Arrays.asList("foo", "{foo}:1", "bar", "{foo}:2", "{bar}:1");
+		Map<Integer, List<Integer>> groups = ClusterKeys.groupBySlot(keys);
+		assertEquals(2, groups.size());
+		assertEquals(Arrays.asList(0, 1, 3), groups.get(ClusterKeys.slot("foo")));
+		assertEquals(Arrays.asList(2, 4), groups.get(ClusterKeys.slot("bar")));
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.guorenjie.helloredis.config.RedisConfig;
+import com.guorenjie.helloredis.entity.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Slf4j
+class CompactRedisSerializerTest {
+
+	private final Jackson2JsonRedisSerializer<Object> jackson = RedisConfig.jackson2JsonRedisSerializer();
+
+	private final CompactRedisSerializer compact = new CompactRedisSerializer(jackson);
+
+	@Test
+	void testRoundTrip() {
+		User user = user();
+		assertEquals(user, compact.deserialize(compact.serialize(user)));
+		assertEquals("熊坚强", compact.deserialize(compact.serialize("熊坚强")));
+		assertEquals(1.5, compact.deserialize(compact.serialize(1.5)));
+		assertEquals(true, compact.deserialize(compact.serialize(true)));
+		assertArrayEquals(new byte[]{1, 2}, (byte[]) compact.deserialize(compact.serialize(new byte[]{1, 2})));
+		assertNull(compact.deserialize(compact.serialize(null)));
+		Map<String, Object> map = new HashMap<>();
+		map.put("a", "b");
+		assertEquals(map, compact.deserialize(compact.serialize(map)));
+	}
+
+	@Test
+	void testNumbersStayIncrementable() {
+		assertEquals("42", new String(compact.serialize(42L)));
+		assertEquals(42, compact.deserialize(compact.serialize(42L)));
+		assertEquals(-9999999999L, compact.deserialize(compact.serialize(-9999999999L)));
+	}
+
+	@Test
+	void testReadLegacyJson() {
+		User user = user();
+		assertEquals(user, compact.deserialize(jackson.serialize(user)));
+		assertEquals("熊坚强", compact.deserialize(jackson.serialize("熊坚强")));
+		List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+		assertEquals(list, compact.deserialize(jackson.serialize(list)));
+	}
+
+	/**
+	 * 与jackson序列化并排对比体积和吞吐
+	 */
+	@Test
+	void testCompareWithJackson() {
+		User user = user();
+		int jacksonSize = jackson.serialize(user).length;
+		int compactSize = compact.serialize(user).length;
+		log.info("User序列化体积 jackson={}B compact={}B", jacksonSize, compactSize);
+		assertTrue(compactSize < jacksonSize);
+
+		int iterations = 200_000;
+		log.info("User编解码吞吐 jackson={}ops/s compact={}ops/s",
+				throughput(jackson, user, iterations), throughput(compact, user, iterations));
+	}
+
+	private static long throughput(RedisSerializer<Object> serializer, Object value, int iterations) {
+		for (int i = 0; i < iterations / 10; i++) {
+			serializer.deserialize(serializer.serialize(value));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			serializer.deserialize(serializer.serialize(value));
+		}
+		return iterations * 1_000_000_000L / Math.max(1, System.nanoTime() - start);
+	}
+
+	private static User user() {
+		User user = new User();
+		user.setId("5");
+		user.setName("杨瑞");
+		user.setAge(30);
+		user.setEmail("yangrui@example.com");
+		return user;
+	}
+
+}
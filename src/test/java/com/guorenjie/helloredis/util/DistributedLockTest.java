@@ -0,0 +1,201 @@
+package com.guorenjie.helloredis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.guorenjie.helloredis.config.HelloRedisProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class DistributedLockTest {
+
+	private final FakeRedis redis = new FakeRedis();
+
+	private final DistributedLock lock = new DistributedLock();
+
+	{
+		lock.stringRedisTemplate = redis;
+		lock.properties = new HelloRedisProperties();
+		lock.redisMessageListenerContainer = mock(RedisMessageListenerContainer.class);
+		doAnswer(invocation -> {
+			redis.listener = invocation.getArgument(0);
+			return null;
+		}).when(lock.redisMessageListenerContainer).addMessageListener(any(MessageListener.class), any(Topic.class));
+	}
+
+	@AfterEach
+	void shutdown() {
+		lock.shutdown();
+	}
+
+	@Test
+	void testNotReentrant() {
+		DistributedLock.LockHandle handle = lock.tryLock("order");
+		assertNotNull(handle);
+		//锁不可重入，同一线程再次加锁失败
+		assertNull(lock.tryLock("order"));
+		assertTrue(handle.isHeld());
+		assertTrue(handle.unlock());
+		assertFalse(handle.isHeld());
+		assertFalse(handle.unlock());
+		DistributedLock.LockHandle again = lock.tryLock("order");
+		assertNotNull(again);
+		again.close();
+	}
+
+	@Test
+	void testUnlockOnlyReleasesOwnLock() throws InterruptedException {
+		DistributedLock.LockHandle stale = lock.tryLock("order", 0, 100, TimeUnit.MILLISECONDS);
+		assertNotNull(stale);
+		//租约到期后被其他持有者获得，旧持有者解锁不能删除新持有者的锁
+		redis.expire(lockKey("order"));
+		DistributedLock.LockHandle current = lock.tryLock("order");
+		assertNotNull(current);
+		assertFalse(stale.unlock());
+		assertNull(lock.tryLock("order"));
+		assertTrue(current.unlock());
+	}
+
+	@Test
+	void testFencingTokensIncrease() throws InterruptedException {
+		long previous = 0;
+		for (int i = 0; i < 5; i++) {
+			DistributedLock.LockHandle handle = lock.tryLock("order");
+			assertTrue(handle.getFencingToken() > previous);
+			previous = handle.getFencingToken();
+			if (i % 2 == 0) {
+				handle.unlock();
+			} else {
+				//过期而不是解锁，令牌同样递增
+				redis.expire(lockKey("order"));
+			}
+		}
+		//不同的锁各自计数
+		DistributedLock.LockHandle other = lock.tryLock("other", 0, 1000, TimeUnit.MILLISECONDS);
+		assertEquals(1, other.getFencingToken());
+		other.unlock();
+	}
+
+	@Test
+	void testWaitersWokenAndSignalRemoved() throws Exception {
+		DistributedLock.LockHandle holder = lock.tryLock("order");
+		List<Long> tokens = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(2);
+		for (int i = 0; i < 2; i++) {
+			Thread waiter = new Thread(() -> {
+				try {
+					DistributedLock.LockHandle handle = lock.tryLock("order", 5, TimeUnit.SECONDS);
+					tokens.add(handle.getFencingToken());
+					handle.unlock();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			});
+			waiter.setDaemon(true);
+			waiter.start();
+		}
+		assertTrue(waitFor(() -> redis.acquireAttempts >= 5));
+		assertTrue(lock.signals.containsKey("order"));
+		//租约30秒，等待者只能靠释放通知唤醒
+		holder.unlock();
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertEquals(2, tokens.size());
+		assertTrue(lock.signals.isEmpty());
+	}
+
+	@Test
+	void testSignalRemovedWhenWaiterTimesOut() throws InterruptedException {
+		DistributedLock.LockHandle holder = lock.tryLock("order");
+		assertNull(lock.tryLock("order", 50, TimeUnit.MILLISECONDS));
+		assertTrue(lock.signals.isEmpty());
+		holder.unlock();
+	}
+
+	private String lockKey(String name) {
+		return lock.properties.getLock().getPrefix() + ClusterKeys.hashTag(name);
+	}
+
+	private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline) {
+			if (condition.getAsBoolean()) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return condition.getAsBoolean();
+	}
+
+	/**
+	 * 内存中的锁和fencing计数，按DistributedLock中脚本的语义执行，释放时通知订阅的监听器
+	 */
+	private static final class FakeRedis extends StringRedisTemplate {
+		private final Map<String, String> values = new HashMap<>();
+		private volatile MessageListener listener;
+		private volatile int acquireAttempts;
+
+		private synchronized void expire(String key) {
+			values.remove(key);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+			if (script == DistributedLock.RELEASE_SCRIPT) {
+				boolean released;
+				synchronized (this) {
+					released = args[0].equals(values.get(keys.get(0)));
+					if (released) {
+						values.remove(keys.get(0));
+					}
+				}
+				MessageListener current = listener;
+				if (released && current != null) {
+					current.onMessage(new DefaultMessage(((String) args[1]).getBytes(StandardCharsets.UTF_8),
+							((String) args[2]).getBytes(StandardCharsets.UTF_8)), null);
+				}
+				return (T) Long.valueOf(released ? 1 : 0);
+			}
+			synchronized (this) {
+				if (script == DistributedLock.ACQUIRE_SCRIPT) {
+					acquireAttempts++;
+					if (values.containsKey(keys.get(0))) {
+						return (T) Long.valueOf(-30_000);
+					}
+					values.put(keys.get(0), (String) args[0]);
+					long token = Long.parseLong(values.getOrDefault(keys.get(1), "0")) + 1;
+					values.put(keys.get(1), Long.toString(token));
+					return (T) Long.valueOf(token);
+				}
+				if (script == DistributedLock.RENEW_SCRIPT) {
+					return (T) Long.valueOf(args[0].equals(values.get(keys.get(0))) ? 1 : 0);
+				}
+			}
+			throw new IllegalArgumentException("未知脚本");
+		}
+	}
+
+}
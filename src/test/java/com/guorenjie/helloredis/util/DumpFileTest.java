@@ -0,0 +1,86 @@
+package com.guorenjie.helloredis.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DumpFileTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testRoundTrip() throws IOException {
+		Path path = dir.resolve("keys.dump");
+		//超过1MB缓冲区的记录走直接读写
+		byte[] big = new byte[3 * 1024 * 1024 + 7];
+		for (int i = 0; i < big.length; i++) {
+			big[i] = (byte) i;
+		}
+		try (DumpFile.Writer writer = DumpFile.create(path)) {
+			for (int i = 0; i < 10000; i++) {
+				writer.write(("user:" + i).getBytes(StandardCharsets.UTF_8), i % 2 == 0 ? 0 : 1589906880000L + i,
+						new byte[]{(byte) i, 9});
+			}
+			writer.write("big".getBytes(StandardCharsets.UTF_8), Long.MAX_VALUE, big);
+			writer.finish();
+		}
+		try (DumpFile.Reader reader = DumpFile.open(path)) {
+			for (int i = 0; i < 10000; i++) {
+				DumpFile.Record record = reader.next();
+				assertEquals("user:" + i, new String(record.getKey(), StandardCharsets.UTF_8));
+				assertEquals(i % 2 == 0 ? 0 : 1589906880000L + i, record.getExpireAt());
+				assertArrayEquals(new byte[]{(byte) i, 9}, record.getPayload());
+			}
+			DumpFile.Record record = reader.next();
+			assertEquals(Long.MAX_VALUE, record.getExpireAt());
+			assertArrayEquals(big, record.getPayload());
+			assertNull(reader.next());
+			assertEquals(10001, reader.getRecords());
+		}
+	}
+
+	@Test
+	void testTruncatedFileRejected() throws IOException {
+		Path path = dir.resolve("keys.dump");
+		try (DumpFile.Writer writer = DumpFile.create(path)) {
+			writer.write("a".getBytes(StandardCharsets.UTF_8), 0, new byte[]{1});
+			writer.write("b".getBytes(StandardCharsets.UTF_8), 0, new byte[]{2});
+			writer.finish();
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			//去掉结尾的记录数
+			channel.truncate(Files.size(path) - 1);
+		}
+		try (DumpFile.Reader reader = DumpFile.open(path)) {
+			reader.next();
+			reader.next();
+			assertThrows(EOFException.class, reader::next);
+		}
+	}
+
+	@Test
+	void testCloseWithoutFinishRejected() throws IOException {
+		Path path = dir.resolve("keys.dump");
+		try (DumpFile.Writer writer = DumpFile.create(path)) {
+			writer.write("a".getBytes(StandardCharsets.UTF_8), 0, new byte[]{1});
+			//导出中途失败，没有调用finish
+		}
+		try (DumpFile.Reader reader = DumpFile.open(path)) {
+			assertArrayEquals(new byte[]{1}, reader.next().getPayload());
+			assertThrows(EOFException.class, reader::next);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EarlyRefresherTest {
+
+	@Test
+	void testRefreshProbabilityRisesNearExpiry() {
+		//回源耗时100ms，剩余1秒时只有random <= e^-10才刷新
+		assertFalse(EarlyRefresher.shouldRefresh(100, 1000, 1.0, 0.5));
+		assertTrue(EarlyRefresher.shouldRefresh(100, 1000, 1.0, 1e-5));
+		//剩余50ms时random <= e^-0.5(约0.61)就刷新
+		assertTrue(EarlyRefresher.shouldRefresh(100, 50, 1.0, 0.5));
+		assertFalse(EarlyRefresher.shouldRefresh(100, 50, 1.0, 0.7));
+		assertTrue(EarlyRefresher.shouldRefresh(100, 0, 1.0, 1.0));
+	}
+
+	@Test
+	void testJitterOnlyExtends() {
+		assertEquals(1000, EarlyRefresher.jitter(1000, 0.1, 0));
+		assertEquals(1050, EarlyRefresher.jitter(1000, 0.1, 0.5));
+		assertEquals(1000, EarlyRefresher.jitter(1000, 0, 0.9));
+	}
+
+	@Test
+	void testOneRefreshPerKey() {
+		List<Runnable> queued = new ArrayList<>();
+		EarlyRefresher refresher = new EarlyRefresher(1.0, queued::add);
+		List<String> refreshed = new ArrayList<>();
+		assertTrue(refresher.submit("user:1", () -> refreshed.add("user:1")));
+		assertFalse(refresher.submit("user:1", () -> refreshed.add("user:1")));
+		queued.get(0).run();
+		assertEquals(1, refreshed.size());
+		assertTrue(refresher.submit("user:1", () -> refreshed.add("user:1")));
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HotKeyDetectorTest {
+
+	private final AtomicLong now = new AtomicLong();
+
+	private final HotKeyDetector detector = new HotKeyDetector(4, 1024, 1, 100, 2, 1000, 10,
+			TimeUnit.NANOSECONDS, now::get);
+
+	@Test
+	void testBecomesHotAtThreshold() {
+		for (int i = 0; i < 99; i++) {
+			assertFalse(detector.record("user:1"));
+		}
+		assertTrue(detector.record("user:1"));
+		assertFalse(detector.isHot("user:2"));
+		assertEquals(100L, detector.hotKeys().get("user:1"));
+	}
+
+	@Test
+	void testKeepsHottestTopK() {
+		access("a", 150);
+		access("b", 120);
+		access("c", 200);
+		assertEquals(2, detector.hotKeys().size());
+		assertFalse(detector.isHot("b"));
+		assertTrue(detector.isHot("c"));
+		assertEquals("c", detector.hotKeys().keySet().iterator().next());
+	}
+
+	@Test
+	void testDecayCoolsIdleKeys() {
+		access("a", 150);
+		assertTrue(detector.isHot("a"));
+		now.addAndGet(1000);
+		detector.record("other");
+		assertFalse(detector.isHot("a"));
+		//窗口内计数减半到75，再来25次重新成为热点
+		access("a", 24);
+		assertFalse(detector.isHot("a"));
+		assertTrue(detector.record("a"));
+	}
+
+	@Test
+	void testWriteToOneKeyDoesNotBlockFillOfAnother() {
+		access("a", 100);
+		access("b", 100);
+		NearCache localCopies = detector.getLocalCopies();
+		long generation = localCopies.generation();
+		//回源读取b期间写入a，只失效a的副本
+		localCopies.invalidate("a");
+		localCopies.put("b", "2", generation);
+		assertEquals("2", localCopies.get("b"));
+		localCopies.put("a", "stale", generation);
+		assertNull(localCopies.get("a"));
+	}
+
+	@Test
+	void testCooledKeyDoesNotBlockFillOfAnother() {
+		access("a", 150);
+		access("b", 120);
+		long generation = detector.getLocalCopies().generation();
+		//c挤掉b，b的副本被失效
+		access("c", 200);
+		assertFalse(detector.isHot("b"));
+		detector.getLocalCopies().put("c", "3", generation);
+		assertEquals("3", detector.getLocalCopies().get("c"));
+	}
+
+	private void access(String key, int times) {
+		for (int i = 0; i < times; i++) {
+			detector.record(key);
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package com.guorenjie.helloredis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LeaderboardTest {
+
+	private final RedisSerializer<Object> serializer = RedisSerializer.java();
+
+	private final FakeRedisUtil redisUtil = new FakeRedisUtil();
+
+	private final FakeLuaScripts luaScripts = new FakeLuaScripts();
+
+	@Test
+	void testParseInfiniteScores() {
+		assertEquals(Double.POSITIVE_INFINITY, Leaderboard.parseScore("inf"));
+		assertEquals(Double.POSITIVE_INFINITY, Leaderboard.parseScore("+inf"));
+		assertEquals(Double.NEGATIVE_INFINITY, Leaderboard.parseScore("-inf"));
+		assertEquals(1.5, Leaderboard.parseScore("1.5"));
+	}
+
+	@Test
+	void testFlushMergesAndTrims() {
+		Leaderboard leaderboard = leaderboard(60_000);
+		leaderboard.incrementScore("a", 1);
+		leaderboard.incrementScore("a", 2);
+		leaderboard.incrementScore("b", 5);
+		assertEquals(2, leaderboard.flush());
+		assertEquals(Arrays.asList("zincrby a 3.0", "zincrby b 5.0", "zremrangebyrank 0 -11"), redisUtil.commands);
+		assertEquals(0, leaderboard.pendingSize());
+		assertEquals(0, leaderboard.flush());
+	}
+
+	@Test
+	void testFlushFailureRequeues() {
+		Leaderboard leaderboard = leaderboard(60_000);
+		leaderboard.incrementScore("a", 1);
+		redisUtil.failing = true;
+		assertThrows(IllegalStateException.class, leaderboard::flush);
+		assertEquals(1, leaderboard.pendingSize());
+		//失败期间的新加分与放回的加分合并
+		leaderboard.incrementScore("a", 2);
+		redisUtil.failing = false;
+		redisUtil.commands.clear();
+		assertEquals(1, leaderboard.flush());
+		assertEquals("zincrby a 3.0", redisUtil.commands.get(0));
+	}
+
+	@Test
+	void testTopReadsSnapshotWithinTtl() {
+		Leaderboard leaderboard = leaderboard(60_000);
+		assertEquals("b", leaderboard.top(2).get(1).getMember());
+		assertEquals(1, leaderboard.top(1).size());
+		assertEquals(1, redisUtil.rangeReads);
+		//超过快照大小直接读redis
+		leaderboard.top(5);
+		assertEquals(2, redisUtil.rangeReads);
+	}
+
+	@Test
+	void testTopReloadsExpiredSnapshot() {
+		Leaderboard leaderboard = leaderboard(0);
+		leaderboard.top(1);
+		leaderboard.top(1);
+		assertEquals(2, redisUtil.rangeReads);
+	}
+
+	@Test
+	void testAroundRanks() {
+		Leaderboard leaderboard = leaderboard(60_000);
+		//成员在第4名(下标3)，radius为2，从下标1开始
+		luaScripts.result = Arrays.asList(1L, Arrays.asList(
+				serializer.serialize("b"), ascii("inf"),
+				serializer.serialize("c"), ascii("7"),
+				serializer.serialize("d"), ascii("6.5")));
+		List<Leaderboard.Entry> entries = leaderboard.around("c", 2);
+		assertEquals(3, entries.size());
+		assertEquals(2, entries.get(0).getRank());
+		assertEquals(Double.POSITIVE_INFINITY, entries.get(0).getScore());
+		assertEquals("c", entries.get(1).getMember());
+		assertEquals(3, entries.get(1).getRank());
+		assertEquals(4, entries.get(2).getRank());
+
+		luaScripts.result = null;
+		assertEquals(0, leaderboard.around("x", 2).size());
+	}
+
+	private Leaderboard leaderboard(long snapshotTtlMillis) {
+		return new Leaderboard("board", redisUtil, luaScripts, serializer, 10, 2, snapshotTtlMillis, 100);
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * 记录批次中的命令，可以模拟执行失败
+	 */
+	private static final class FakeRedisUtil extends RedisUtil {
+		private final List<String> commands = new ArrayList<>();
+		private boolean failing;
+		private int rangeReads;
+
+		@Override
+		public RedisBatch batch(int maxOps, long maxBytes) {
+			List<String> queued = new ArrayList<>();
+			return new RedisBatch(new RedisTemplate<>(), null, maxOps, maxBytes, null) {
+				@Override
+				public Response<Double> zIncrby(String key, double increment, Object member) {
+					queued.add("zincrby " + member + " " + increment);
+					return null;
+				}
+
+				@Override
+				public Response<Long> zRemRangeByRank(String key, long start, long end) {
+					queued.add("zremrangebyrank " + start + " " + end);
+					return null;
+				}
+
+				@Override
+				public List<Object> execute() {
+					if (failing) {
+						throw new IllegalStateException("redis不可用");
+					}
+					commands.addAll(queued);
+					return new ArrayList<>();
+				}
+			};
+		}
+
+		@Override
+		public Set<ZSetOperations.TypedTuple<Object>> zReverseRangeWithScores(String key, long start, long end) {
+			rangeReads++;
+			Set<ZSetOperations.TypedTuple<Object>> tuples = new LinkedHashSet<>();
+			String[] members = {"a", "b", "c", "d", "e"};
+			for (long i = start; i <= end && i < members.length; i++) {
+				tuples.add(new DefaultTypedTuple<>(members[(int) i], 10.0 - i));
+			}
+			return tuples;
+		}
+	}
+
+	private static final class FakeLuaScripts extends LuaScriptRegistry {
+		private List<Object> result;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T execute(RedisScript<T> script, List<String> keys, byte[]... args) {
+			return (T) result;
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeasedRateLimiterTest {
+
+	private final AtomicLong now = new AtomicLong();
+
+	private final CountingLimiter redis = new CountingLimiter(25);
+
+	private final LeasedRateLimiter limiter = new LeasedRateLimiter(redis, 10, 100, 16, TimeUnit.NANOSECONDS,
+			now::get);
+
+	@Test
+	void testSpendsLeaseLocally() {
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.tryAcquire("api"));
+		}
+		assertEquals(1, redis.calls);
+		assertTrue(limiter.tryAcquire("api"));
+		assertEquals(2, redis.calls);
+	}
+
+	@Test
+	void testRejectsLocallyUntilLeaseExpires() {
+		for (int i = 0; i < 25; i++) {
+			assertTrue(limiter.tryAcquire("api"));
+		}
+		assertFalse(limiter.tryAcquire("api"));
+		int calls = redis.calls;
+		assertFalse(limiter.tryAcquire("api"));
+		assertEquals(calls, redis.calls);
+		now.addAndGet(100);
+		redis.available = 10;
+		assertTrue(limiter.tryAcquire("api"));
+	}
+
+	@Test
+	void testExpiredLeaseIsDiscarded() {
+		assertTrue(limiter.tryAcquire("api"));
+		now.addAndGet(100);
+		assertTrue(limiter.tryAcquire("api"));
+		//第一次租到的9个许可过期作废
+		assertEquals(5, redis.available);
+	}
+
+	private static final class CountingLimiter implements RateLimiter {
+		private long available;
+		private int calls;
+
+		private CountingLimiter(long available) {
+			this.available = available;
+		}
+
+		@Override
+		public boolean tryAcquire(String key, long permits) {
+			return acquireUpTo(key, permits) == permits;
+		}
+
+		@Override
+		public long acquireUpTo(String key, long permits) {
+			calls++;
+			long granted = Math.min(available, permits);
+			available -= granted;
+			return granted;
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class NearCacheTest {
+
+	private final AtomicLong now = new AtomicLong();
+
+	private final NearCache nearCache = new NearCache(2, 100, TimeUnit.NANOSECONDS, now::get);
+
+	@Test
+	void testHitAndMiss() {
+		assertNull(nearCache.get("a"));
+		nearCache.put("a", "1", nearCache.generation());
+		assertEquals("1", nearCache.get("a"));
+		assertEquals(1L, nearCache.stats().get("hits"));
+		assertEquals(1L, nearCache.stats().get("misses"));
+	}
+
+	@Test
+	void testExpire() {
+		nearCache.put("a", "1", nearCache.generation());
+		now.addAndGet(100);
+		assertNull(nearCache.get("a"));
+		assertEquals(1L, nearCache.stats().get("expirations"));
+	}
+
+	@Test
+	void testEvictLeastRecentlyUsed() {
+		nearCache.put("a", "1", nearCache.generation());
+		nearCache.put("b", "2", nearCache.generation());
+		nearCache.get("a");
+		nearCache.put("c", "3", nearCache.generation());
+		assertNull(nearCache.get("b"));
+		assertEquals("1", nearCache.get("a"));
+		assertEquals(1L, nearCache.stats().get("evictions"));
+	}
+
+	@Test
+	void testInvalidateDuringLoadSkipsPut() {
+		long generation = nearCache.generation();
+		nearCache.invalidate("a");
+		nearCache.put("a", "stale", generation);
+		assertNull(nearCache.get("a"));
+	}
+
+	@Test
+	void testInvalidateOtherKeyDoesNotSkipPut() {
+		long generation = nearCache.generation();
+		nearCache.invalidate("b");
+		nearCache.put("a", "1", generation);
+		assertEquals("1", nearCache.get("a"));
+	}
+
+	@Test
+	void testInvalidateAllSkipsInFlightPut() {
+		long generation = nearCache.generation();
+		nearCache.invalidateAll();
+		nearCache.put("a", "stale", generation);
+		assertNull(nearCache.get("a"));
+		nearCache.put("a", "1", nearCache.generation());
+		assertEquals("1", nearCache.get("a"));
+	}
+
+	@Test
+	void testDroppedTombstoneStillSkipsPut() {
+		long generation = nearCache.generation();
+		nearCache.invalidate("a");
+		//墓碑数量超过上限，a的墓碑被丢弃
+		for (int i = 0; i < 2000; i++) {
+			nearCache.invalidate("other:" + i);
+		}
+		nearCache.put("a", "stale", generation);
+		assertNull(nearCache.get("a"));
+	}
+
+}
@@ -0,0 +1,268 @@
+package com.guorenjie.helloredis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisListCommands;
+import org.springframework.data.redis.connection.RedisSetCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RedisQueueWorkersTest {
+
+	private static final String QUEUE = "jobs";
+
+	private final RedisSerializer<Object> serializer = RedisSerializer.java();
+
+	private final FakeRedis redis = new FakeRedis();
+
+	@Test
+	void testRecoverRequeuesOnlyExpiredWorkers() {
+		redis.sets.computeIfAbsent(ClusterKeys.colocated(QUEUE, "workers"), key -> ConcurrentHashMap.newKeySet())
+				.addAll(Arrays.asList("dead", "alive"));
+		//处理中列表左进：b比a晚取出
+		redis.list(ClusterKeys.colocated(QUEUE, "processing", "dead")).addAll(Arrays.asList(
+				serializer.serialize("b"), serializer.serialize("a")));
+		redis.list(ClusterKeys.colocated(QUEUE, "processing", "alive")).add(serializer.serialize("c"));
+		redis.heartbeats.add(ClusterKeys.colocated(QUEUE, "heartbeat", "alive"));
+		try (RedisQueueWorkers workers = workers(60)) {
+			assertEquals(2, workers.recover(QUEUE));
+			//a最早取出，放在右端下一个被消费
+			LinkedList<byte[]> queue = redis.list(QUEUE);
+			assertEquals("a", serializer.deserialize(queue.getLast()));
+			assertEquals("b", serializer.deserialize(queue.getFirst()));
+			assertEquals(1, redis.list(ClusterKeys.colocated(QUEUE, "processing", "alive")).size());
+			assertEquals(Collections.singleton("alive"), redis.sets.get(ClusterKeys.colocated(QUEUE, "workers")));
+			assertEquals(0, workers.recover(QUEUE));
+		}
+	}
+
+	@Test
+	void testAckMovesFailedItemsAndClearsProcessing() throws Exception {
+		CountDownLatch handled = new CountDownLatch(3);
+		try (RedisQueueWorkers workers = workers(60)) {
+			for (String item : new String[]{"ok", "bad", "ok2"}) {
+				redis.list(QUEUE).addFirst(serializer.serialize(item));
+			}
+			workers.start(QUEUE, 1, item -> {
+				handled.countDown();
+				if ("bad".equals(item)) {
+					throw new IllegalStateException("处理失败");
+				}
+			});
+			assertTrue(handled.await(5, TimeUnit.SECONDS));
+			assertTrue(waitFor(() -> redis.processingSize() == 0));
+			List<byte[]> failed = redis.list(RedisQueueWorkers.failedKey(QUEUE));
+			assertEquals(1, failed.size());
+			assertEquals("bad", serializer.deserialize(failed.get(0)));
+			assertTrue(redis.list(QUEUE).isEmpty());
+		}
+	}
+
+	@Test
+	void testHeartbeatRefreshedWhileHandling() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try (RedisQueueWorkers workers = workers(2)) {
+			redis.list(QUEUE).add(serializer.serialize("slow"));
+			workers.start(QUEUE, 1, item -> {
+				started.countDown();
+				release.await(5, TimeUnit.SECONDS);
+			});
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			int before = redis.heartbeatWrites.get();
+			//心跳2秒，每2/3秒刷新一次；处理卡住期间心跳仍在刷新
+			assertTrue(waitFor(() -> redis.heartbeatWrites.get() >= before + 2));
+			assertEquals(0, workers.recover(QUEUE));
+			//心跳和恢复走共享模板，独占连接只有worker自己的一个
+			verify(redis.dedicated, times(1)).getConnection();
+			release.countDown();
+		}
+	}
+
+	private RedisQueueWorkers workers(long heartbeatSeconds) {
+		return new RedisQueueWorkers(redis.dedicated, redis.template, new FakeLuaScripts(redis), RedisSerializer.string(),
+				serializer, 1, 10, heartbeatSeconds, 60_000);
+	}
+
+	private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline) {
+			if (condition.getAsBoolean()) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return condition.getAsBoolean();
+	}
+
+	private static String string(byte[] raw) {
+		return new String(raw, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 内存中的list、set和心跳，连接上的命令和脚本都在这里执行
+	 */
+	private static final class FakeRedis {
+		private final Map<String, LinkedList<byte[]>> lists = new ConcurrentHashMap<>();
+		private final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+		private final Set<String> heartbeats = ConcurrentHashMap.newKeySet();
+		private final AtomicInteger heartbeatWrites = new AtomicInteger();
+		/**
+		 * 只给worker阻塞读取用的独占连接工厂
+		 */
+		private LettuceConnectionFactory dedicated;
+		private RedisTemplate<String, Object> template;
+
+		private FakeRedis() {
+			connect();
+		}
+
+		private synchronized LinkedList<byte[]> list(String key) {
+			return lists.computeIfAbsent(key, k -> new LinkedList<>());
+		}
+
+		private synchronized int processingSize() {
+			int size = 0;
+			for (Map.Entry<String, LinkedList<byte[]>> entry : lists.entrySet()) {
+				if (entry.getKey().contains("processing")) {
+					size += entry.getValue().size();
+				}
+			}
+			return size;
+		}
+
+		private synchronized byte[] rPopLPush(String source, String destination) {
+			byte[] item = list(source).pollLast();
+			if (item != null) {
+				list(destination).addFirst(item);
+			}
+			return item;
+		}
+
+		private void connect() {
+			RedisListCommands listCommands = mock(RedisListCommands.class);
+			when(listCommands.lRange(any(), anyLong(), anyLong())).thenAnswer(invocation -> {
+				synchronized (this) {
+					return new ArrayList<>(list(string(invocation.getArgument(0))));
+				}
+			});
+			when(listCommands.bRPopLPush(anyInt(), any(), any())).thenAnswer(invocation -> {
+				byte[] item = rPopLPush(string(invocation.getArgument(1)), string(invocation.getArgument(2)));
+				if (item == null) {
+					//模拟阻塞等待
+					Thread.sleep(50);
+				}
+				return item;
+			});
+			RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+			when(stringCommands.setEx(any(), anyLong(), any())).thenAnswer(invocation -> {
+				heartbeats.add(string(invocation.getArgument(0)));
+				heartbeatWrites.incrementAndGet();
+				return true;
+			});
+			RedisSetCommands setCommands = mock(RedisSetCommands.class);
+			when(setCommands.sAdd(any(), any())).thenAnswer(invocation -> {
+				sets.computeIfAbsent(string(invocation.getArgument(0)), key -> ConcurrentHashMap.newKeySet())
+						.add(string(invocation.getArgument(1)));
+				return 1L;
+			});
+			when(setCommands.sMembers(any())).thenAnswer(invocation -> {
+				Set<byte[]> members = new HashSet<>();
+				for (String member : sets.getOrDefault(string(invocation.getArgument(0)), Collections.emptySet())) {
+					members.add(member.getBytes(StandardCharsets.UTF_8));
+				}
+				return members;
+			});
+			RedisConnection connection = mock(RedisConnection.class);
+			when(connection.listCommands()).thenReturn(listCommands);
+			when(connection.stringCommands()).thenReturn(stringCommands);
+			when(connection.setCommands()).thenReturn(setCommands);
+			dedicated = mock(LettuceConnectionFactory.class);
+			when(dedicated.getConnection()).thenReturn(connection);
+			RedisConnectionFactory shared = mock(RedisConnectionFactory.class);
+			when(shared.getConnection()).thenReturn(connection);
+			template = new RedisTemplate<>();
+			template.setConnectionFactory(shared);
+			template.afterPropertiesSet();
+		}
+	}
+
+	/**
+	 * 按RedisQueueWorkers中脚本的语义在FakeRedis上执行
+	 */
+	private static final class FakeLuaScripts extends LuaScriptRegistry {
+		private final FakeRedis redis;
+
+		private FakeLuaScripts(FakeRedis redis) {
+			this.redis = redis;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T execute(RedisScript<T> script, List<String> keys, byte[]... args) {
+			synchronized (redis) {
+				if (script == RedisQueueWorkers.DRAIN_SCRIPT) {
+					List<Object> items = new ArrayList<>();
+					for (int i = 0; i < Integer.parseInt(new String(args[0], StandardCharsets.US_ASCII)); i++) {
+						byte[] item = redis.rPopLPush(keys.get(0), keys.get(1));
+						if (item == null) {
+							break;
+						}
+						items.add(item);
+					}
+					return (T) items;
+				}
+				if (script == RedisQueueWorkers.ACK_SCRIPT) {
+					for (byte[] failed : args) {
+						redis.list(keys.get(1)).addFirst(failed);
+					}
+					return (T) Long.valueOf(redis.lists.remove(keys.get(0)) == null ? 0 : 1);
+				}
+				if (script == RedisQueueWorkers.RECOVER_SCRIPT) {
+					if (redis.heartbeats.contains(keys.get(2))) {
+						return (T) Long.valueOf(-1);
+					}
+					long moved = 0;
+					byte[] item;
+					while ((item = redis.list(keys.get(1)).pollFirst()) != null) {
+						redis.list(keys.get(0)).addLast(item);
+						moved++;
+					}
+					redis.sets.get(keys.get(3)).remove(string(args[0]));
+					return (T) Long.valueOf(moved);
+				}
+				throw new IllegalArgumentException("未知脚本");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package com.guorenjie.helloredis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.Invocation;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RedisStreamsTest {
+
+	private static final String STREAM = "events";
+
+	private static final String GROUP = "group";
+
+	private final RedisSerializer<Object> serializer = RedisSerializer.java();
+
+	private final FakeStreams redis = new FakeStreams();
+
+	@Test
+	void testReadFailureReleasesPermits() throws Exception {
+		redis.failReads.set(1);
+		try (RedisStreams streams = streams(60_000, 3)) {
+			streams.subscribe(STREAM, GROUP, 1, (id, fields) -> {
+			});
+			//第一次读取失败，1秒后重试时名额已全部归还
+			assertTrue(waitFor(() -> redis.readCounts.size() >= 2));
+			assertEquals(Arrays.asList(2L, 2L), redis.readCounts.subList(0, 2));
+		}
+	}
+
+	@Test
+	void testPartialReadReleasesUnusedPermits() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		redis.add("1-0", "a");
+		try (RedisStreams streams = streams(60_000, 3)) {
+			streams.subscribe(STREAM, GROUP, 1, (id, fields) -> {
+				release.await(5, TimeUnit.SECONDS);
+				handled.incrementAndGet();
+			});
+			//名额共3个(1个处理线程 + 批量2)，第一次只读到1条，其余名额归还，之后每次仍能读满一批
+			assertTrue(waitFor(() -> redis.readCounts.size() >= 3));
+			for (Long count : redis.readCounts) {
+				assertEquals(2L, count);
+			}
+			//再读到2条后名额用完，处理完之前不再拉取
+			redis.add("2-0", "b");
+			redis.add("3-0", "c");
+			assertTrue(waitFor(() -> redis.freshSize() == 0));
+			Thread.sleep(100);
+			int reads = redis.readCounts.size();
+			Thread.sleep(300);
+			assertEquals(reads, redis.readCounts.size());
+			release.countDown();
+			assertTrue(waitFor(() -> redis.acked.size() == 3));
+			assertEquals(3, handled.get());
+			assertTrue(waitFor(() -> redis.readCounts.size() > reads));
+		}
+	}
+
+	@Test
+	void testReclaimSkipsMessagesStillProcessing() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+		redis.add("1-0", "slow");
+		try (RedisStreams streams = streams(100, 10)) {
+			streams.subscribe(STREAM, GROUP, 1, (id, fields) -> {
+				attempts.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+				release.await(5, TimeUnit.SECONDS);
+			});
+			//处理时间超过claimIdleMillis，消息被多次认领，但本消费者还在处理，不重复投递
+			assertTrue(waitFor(() -> redis.claims.get() >= 3));
+			assertEquals(1, attempts.get("1-0").get());
+			//跳过的消息不占用名额
+			assertEquals(2L, (long) redis.readCounts.get(redis.readCounts.size() - 1));
+			release.countDown();
+			assertTrue(waitFor(() -> redis.acked.contains("1-0")));
+		}
+	}
+
+	@Test
+	void testDeadLetterAfterMaxDeliveries() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		Map<String, Object> received = new ConcurrentHashMap<>();
+		redis.add("1-0", "poison");
+		try (RedisStreams streams = streams(100, 3)) {
+			streams.subscribe(STREAM, GROUP, 1, (id, fields) -> {
+				received.putAll(fields);
+				attempts.incrementAndGet();
+				throw new IllegalStateException("处理失败");
+			});
+			assertTrue(waitFor(() -> redis.deadLetters.containsKey(RedisStreams.deadLetterKey(STREAM))));
+			assertEquals(Collections.singletonList("1-0"), redis.deadLetters.get(RedisStreams.deadLetterKey(STREAM)));
+			//首次投递加两次认领，达到3次后不再投递
+			assertEquals(3, attempts.get());
+			assertEquals("poison", received.get("value"));
+			assertTrue(redis.pendingIds().isEmpty());
+			Thread.sleep(300);
+			assertEquals(3, attempts.get());
+		}
+	}
+
+	private RedisStreams streams(long claimIdleMillis, int maxDeliveries) {
+		return new RedisStreams(redis.factory, new FakeLuaScripts(redis), RedisSerializer.string(), serializer, 1000,
+				2, 100, claimIdleMillis, maxDeliveries);
+	}
+
+	private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline) {
+			if (condition.getAsBoolean()) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return condition.getAsBoolean();
+	}
+
+	private static String string(byte[] raw) {
+		return new String(raw, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 内存中的stream、pending列表和死信，连接上的命令和RedisStreams的脚本都在这里执行
+	 */
+	private final class FakeStreams {
+		private final LinkedList<String> fresh = new LinkedList<>();
+		private final Map<String, Map<byte[], byte[]>> bodies = new HashMap<>();
+		/**
+		 * id -> {投递次数, 最后投递时间}
+		 */
+		private final Map<String, long[]> pending = new LinkedHashMap<>();
+		private final Map<String, List<String>> deadLetters = new ConcurrentHashMap<>();
+		private final List<String> acked = new CopyOnWriteArrayList<>();
+		private final List<Long> readCounts = new CopyOnWriteArrayList<>();
+		private final AtomicInteger failReads = new AtomicInteger();
+		private final AtomicInteger claims = new AtomicInteger();
+		private final LettuceConnectionFactory factory;
+
+		private FakeStreams() {
+			RedisStreamCommands streamCommands = mock(RedisStreamCommands.class, this::answer);
+			RedisConnection connection = mock(RedisConnection.class);
+			when(connection.streamCommands()).thenReturn(streamCommands);
+			factory = mock(LettuceConnectionFactory.class);
+			when(factory.getConnection()).thenReturn(connection);
+		}
+
+		private synchronized void add(String id, Object value) {
+			Map<byte[], byte[]> body = new LinkedHashMap<>();
+			body.put(RedisSerializer.string().serialize("value"), serializer.serialize(value));
+			bodies.put(id, body);
+			fresh.add(id);
+		}
+
+		private synchronized int freshSize() {
+			return fresh.size();
+		}
+
+		private synchronized List<String> pendingIds() {
+			return new ArrayList<>(pending.keySet());
+		}
+
+		private Object answer(InvocationOnMock invocation) throws Throwable {
+			//保留可变参数的原始数组
+			Object[] args = ((Invocation) invocation).getRawArguments();
+			switch (invocation.getMethod().getName()) {
+				case "xReadGroup":
+					return readGroup(((StreamReadOptions) args[1]).getCount());
+				case "xAck":
+					return ack((RecordId[]) args[2]);
+				default:
+					return Mockito.RETURNS_DEFAULTS.answer(invocation);
+			}
+		}
+
+		private List<ByteRecord> readGroup(long count) throws InterruptedException {
+			readCounts.add(count);
+			if (failReads.getAndDecrement() > 0) {
+				throw new RedisConnectionFailureException("连接断开");
+			}
+			List<ByteRecord> records = new ArrayList<>();
+			synchronized (this) {
+				while (records.size() < count && !fresh.isEmpty()) {
+					String id = fresh.poll();
+					pending.put(id, new long[]{1, System.currentTimeMillis()});
+					records.add(StreamRecords.rawBytes(bodies.get(id)).withId(RecordId.of(id)));
+				}
+			}
+			if (records.isEmpty()) {
+				//模拟阻塞等待
+				Thread.sleep(20);
+			}
+			return records;
+		}
+
+		private synchronized long ack(RecordId[] ids) {
+			long count = 0;
+			for (RecordId id : ids) {
+				if (pending.remove(id.getValue()) != null) {
+					acked.add(id.getValue());
+					count++;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * 按RECLAIM_SCRIPT的语义执行
+		 */
+		private synchronized List<Object> reclaim(List<String> keys, byte[]... args) {
+			long minIdle = Long.parseLong(string(args[2]));
+			int limit = Integer.parseInt(string(args[3]));
+			int maxDeliveries = Integer.parseInt(string(args[4]));
+			long now = System.currentTimeMillis();
+			List<Object> claimed = new ArrayList<>();
+			int checked = 0;
+			for (Iterator<Map.Entry<String, long[]>> it = pending.entrySet().iterator(); it.hasNext() && checked < limit;
+				 checked++) {
+				Map.Entry<String, long[]> entry = it.next();
+				long[] delivery = entry.getValue();
+				if (now - delivery[1] < minIdle) {
+					continue;
+				}
+				if (delivery[0] >= maxDeliveries) {
+					deadLetters.computeIfAbsent(keys.get(1), key -> new CopyOnWriteArrayList<>()).add(entry.getKey());
+					it.remove();
+					continue;
+				}
+				delivery[0]++;
+				delivery[1] = now;
+				List<Object> fields = new ArrayList<>();
+				bodies.get(entry.getKey()).forEach((field, value) -> {
+					fields.add(field);
+					fields.add(value);
+				});
+				claimed.add(Arrays.asList(entry.getKey().getBytes(StandardCharsets.US_ASCII), fields));
+				claims.incrementAndGet();
+			}
+			return claimed;
+		}
+	}
+
+	private static final class FakeLuaScripts extends LuaScriptRegistry {
+		private final FakeStreams redis;
+
+		private FakeLuaScripts(FakeStreams redis) {
+			this.redis = redis;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T execute(RedisScript<T> script, List<String> keys, byte[]... args) {
+			if (script == RedisStreams.CREATE_GROUP_SCRIPT) {
+				return (T) Long.valueOf(1);
+			}
+			if (script == RedisStreams.RECLAIM_SCRIPT) {
+				return (T) redis.reclaim(keys, args);
+			}
+			throw new IllegalArgumentException("未知脚本");
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.guorenjie.helloredis.util;
+
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReplicaReadRouterTest {
+
+	@Test
+	void testParseStandaloneLag() {
+		Properties info = new Properties();
+		info.setProperty("role", "master");
+		info.setProperty("connected_slaves", "2");
+		info.setProperty("slave0", "ip=10.0.0.2,port=6379,state=online,offset=1000,lag=0");
+		info.setProperty("slave1", "ip=10.0.0.3,port=6379,state=online,offset=400,lag=3");
+		info.setProperty("master_repl_offset", "1200");
+		assertArrayEquals(new long[]{800, 3}, ReplicaReadRouter.parseLag(info));
+	}
+
+	@Test
+	void testParseClusterLagPerNode() {
+		Properties info = new Properties();
+		info.setProperty("10.0.0.1:7000.master_repl_offset", "500");
+		info.setProperty("10.0.0.1:7000.slave0", "ip=10.0.0.4,port=7003,state=online,offset=500,lag=1");
+		info.setProperty("10.0.0.2:7001.master_repl_offset", "9000");
+		info.setProperty("10.0.0.2:7001.slave0", "ip=10.0.0.5,port=7004,state=online,offset=8000,lag=0");
+		info.setProperty("10.0.0.4:7003.slave_repl_offset", "500");
+		assertArrayEquals(new long[]{1000, 1}, ReplicaReadRouter.parseLag(info));
+	}
+
+	@Test
+	void testReplicaStillSyncingIsNotReadable() {
+		Properties info = new Properties();
+		info.setProperty("master_repl_offset", "100");
+		info.setProperty("slave0", "ip=10.0.0.2,port=6379,state=wait_bgsave,offset=0,lag=0");
+		assertEquals(Long.MAX_VALUE, ReplicaReadRouter.parseLag(info)[1]);
+	}
+
+}